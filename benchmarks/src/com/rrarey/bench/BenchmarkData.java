@@ -0,0 +1,54 @@
+package com.rrarey.bench;
+
+import java.util.Random;
+
+/**
+ * Realistic payloads for the benchmarks
+ */
+public class BenchmarkData {
+	public static final long START_MILLIS = 1700000000000L;
+
+	/**
+	 * Build a ComEd 5-minute feed response, newest entry first like the real feed
+	 * @param entries Number of prices in the feed
+	 * @return Feed JSON text
+	 */
+	public static String comEdFeed(int entries) {
+		Random random = new Random(entries);
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = entries - 1; i >= 0; i--) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append("{\"millisUTC\":\"").append(START_MILLIS + i * 300000L)
+				.append("\",\"price\":\"").append(String.format("%.1f", random.nextGaussian() * 2 + 3)).append("\"}");
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * @return A vehicle_data response about the size of a real one (several KB)
+	 */
+	public static String vehicleData() {
+		StringBuilder sb = new StringBuilder("{\"response\":{\"id\":12345678901234567,\"user_id\":123456,\"vehicle_id\":1234567890,\"vin\":\"5YJ3E1EA7KF000000\",\"display_name\":\"Car\",\"state\":\"online\",");
+		sb.append("\"charge_state\":{\"battery_heater_on\":false,\"battery_level\":71,\"battery_range\":201.37,\"charge_current_request\":32,\"charge_current_request_max\":32,")
+			.append("\"charge_enable_request\":true,\"charge_energy_added\":12.4,\"charge_limit_soc\":80,\"charge_limit_soc_max\":100,\"charge_limit_soc_min\":50,")
+			.append("\"charge_limit_soc_std\":90,\"charge_miles_added_ideal\":50.0,\"charge_miles_added_rated\":50.0,\"charge_port_cold_weather_mode\":false,")
+			.append("\"charge_port_door_open\":true,\"charge_port_latch\":\"Engaged\",\"charge_rate\":22.1,\"charger_actual_current\":32,\"charger_phases\":1,")
+			.append("\"charger_pilot_current\":32,\"charger_power\":7,\"charger_voltage\":240,\"charging_state\":\"Charging\",\"conn_charge_cable\":\"SAE\",")
+			.append("\"est_battery_range\":180.2,\"fast_charger_brand\":\"<invalid>\",\"fast_charger_present\":false,\"fast_charger_type\":\"<invalid>\",")
+			.append("\"ideal_battery_range\":201.37,\"managed_charging_active\":false,\"minutes_to_full_charge\":75,\"not_enough_power_to_heat\":null,")
+			.append("\"preconditioning_enabled\":true,\"scheduled_charging_pending\":false,\"scheduled_departure_time\":1700030000,\"time_to_full_charge\":1.25,")
+			.append("\"timestamp\":1700000000000,\"trip_charging\":false,\"usable_battery_level\":70,\"user_charge_enable_request\":null},");
+		sb.append("\"drive_state\":{\"gps_as_of\":1700000000,\"heading\":181,\"latitude\":41.881832,\"longitude\":-87.623177,\"native_latitude\":41.881832,")
+			.append("\"native_location_supported\":1,\"native_longitude\":-87.623177,\"native_type\":\"wgs\",\"power\":-7,\"shift_state\":null,\"speed\":null,\"timestamp\":1700000000000},");
+		sb.append("\"climate_state\":{\"battery_heater\":false,\"defrost_mode\":0,\"driver_temp_setting\":21.0,\"fan_status\":0,\"inside_temp\":17.2,\"is_climate_on\":false,")
+			.append("\"outside_temp\":8.5,\"passenger_temp_setting\":21.0,\"timestamp\":1700000000000},");
+		sb.append("\"vehicle_state\":{\"api_version\":54,\"car_version\":\"2023.38.6 abcdef\",\"locked\":true,\"odometer\":23456.7,\"sentry_mode\":false,");
+		for(int i = 0; i < 40; i++) {
+			sb.append("\"option_").append(i).append("\":\"value_").append(i).append("\",");
+		}
+		sb.append("\"timestamp\":1700000000000}}}");
+		return sb.toString();
+	}
+}
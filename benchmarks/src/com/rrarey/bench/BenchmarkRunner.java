@@ -0,0 +1,33 @@
+package com.rrarey.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result includes allocation rates
+ * (gc.alloc.rate.norm is bytes allocated per operation). Accepts the usual JMH command line options,
+ * e.g. a benchmark name regex.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws RunnerException {
+		Options commandLine;
+		try {
+			commandLine = new CommandLineOptions(args);
+		} catch (Exception ex) {
+			System.err.println("Invalid benchmark options: " + ex.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		Options options = new OptionsBuilder()
+			.parent(commandLine)
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		new Runner(options).run();
+	}
+}
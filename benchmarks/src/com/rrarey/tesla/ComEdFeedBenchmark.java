@@ -0,0 +1,95 @@
+package com.rrarey.tesla;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rrarey.bench.BenchmarkData;
+import com.rrarey.web.RESTRequest;
+
+/**
+ * Cost of finding the newest price in a ComEd feed response. sortNewest is the parse-and-sort approach the main
+ * loop used before ComEdPriceFeed, kept here as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ComEdFeedBenchmark {
+	// A day of 5-minute prices is what the feed returns by default. A week is the worst case after an outage.
+	@Param({"12", "288", "2016"})
+	int entries;
+
+	JSONObject feed;
+	RESTRequest request = new RESTRequest("http://localhost");
+	ComEdPriceFeed caughtUpFeed;
+
+	@Setup
+	public void setup() {
+		// Same {d: [...]} wrapping RESTRequest does for array responses
+		feed = new JSONObject("{d:" + BenchmarkData.comEdFeed(entries) + "}");
+		caughtUpFeed = new ComEdPriceFeed(request);
+		caughtUpFeed.ingest(feed);
+	}
+
+	@Benchmark
+	public JSONObject sortNewest() {
+		JSONArray values = feed.getJSONArray("d");
+		List<JSONObject> sortedValues = new ArrayList<JSONObject>();
+		for(int i = 0; i < values.length(); i++) {
+			JSONObject value = values.getJSONObject(i);
+			if (value != null) {
+				sortedValues.add(value);
+			}
+		}
+
+		Collections.sort(sortedValues, new Comparator<JSONObject>() {
+			@Override
+			public int compare(JSONObject a, JSONObject b) {
+				Long valA = (long) 0;
+				Long valB = (long) 0;
+
+				try {
+					valA = Long.parseLong(a.getString("millisUTC"));
+					valB = Long.parseLong(b.getString("millisUTC"));
+				}
+				catch (JSONException e) { }
+
+				return valB.compareTo(valA);
+			}
+		});
+
+		return sortedValues.get(0);
+	}
+
+	// First poll: every entry is new.
+	@Benchmark
+	public int ingestFullFeed() {
+		return new ComEdPriceFeed(request).ingest(feed);
+	}
+
+	// Nothing new: every entry is skipped after a single comparison.
+	@Benchmark
+	public int ingestCaughtUp() {
+		return caughtUpFeed.ingest(feed);
+	}
+}
@@ -0,0 +1,86 @@
+package com.rrarey.tesla;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeofencesBenchmark {
+	// Zones scattered over an area about 50 km across, besides home
+	@Param({ "1", "10", "1000" })
+	int zoneCount;
+
+	double
+		homeLatitude = 41.881832,
+		homeLongitude = -87.623177
+	;
+	List<Geofences.Zone> zones;
+	Geofences geofences;
+
+	// Locations around the area, some in zones and most not
+	double[] latitudes, longitudes;
+	int next = 0;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		zones = new ArrayList<Geofences.Zone>();
+		zones.add(new Geofences.Zone(Geofences.HOME, homeLatitude, homeLongitude, Configuration.DEFAULT_HOME_RADIUS_METERS));
+		for(int i = 1; i < zoneCount; i++) {
+			zones.add(new Geofences.Zone("zone" + i, homeLatitude + random.nextDouble() * 0.5 - 0.25, homeLongitude + random.nextDouble() * 0.5 - 0.25, 50 + random.nextDouble() * 450));
+		}
+		geofences = new Geofences(zones);
+
+		latitudes = new double[1024];
+		longitudes = new double[1024];
+		for(int i = 0; i < latitudes.length; i++) {
+			Geofences.Zone zone = zones.get(random.nextInt(zones.size()));
+			boolean nearZone = random.nextInt(4) == 0;
+			latitudes[i] = nearZone ? zone.latitude + random.nextDouble() * 0.008 - 0.004 : homeLatitude + random.nextDouble() * 0.5 - 0.25;
+			longitudes[i] = nearZone ? zone.longitude + random.nextDouble() * 0.008 - 0.004 : homeLongitude + random.nextDouble() * 0.5 - 0.25;
+		}
+	}
+
+	// Baseline: haversine against every zone
+	@Benchmark
+	public int scanZones() {
+		int i = next++ & 1023;
+		for(int z = 0; z < zones.size(); z++) {
+			Geofences.Zone zone = zones.get(z);
+			if (Geofences.distanceMeters(zone.latitude, zone.longitude, latitudes[i], longitudes[i]) <= zone.radiusMeters) {
+				return z;
+			}
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public int find() {
+		int i = next++ & 1023;
+		return geofences.find(latitudes[i], longitudes[i]);
+	}
+
+	@Benchmark
+	public boolean isAtHome() {
+		int i = next++ & 1023;
+		return geofences.isAtHome(latitudes[i], longitudes[i]);
+	}
+}
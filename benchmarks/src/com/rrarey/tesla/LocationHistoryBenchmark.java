@@ -0,0 +1,79 @@
+package com.rrarey.tesla;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.collections4.queue.CircularFifoQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding where the vehicle stopped at the top of each main loop iteration, over a full 250-entry history ending
+ * with the vehicle stopped. scanQueue is the old walk over a queue of VehicleLocation objects, kept as a baseline.
+ * readStop is the constant-time read from LocationHistory, and addSample is what each new sample costs to keep it
+ * up to date.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LocationHistoryBenchmark {
+	CircularFifoQueue<VehicleLocation> queue = new CircularFifoQueue<VehicleLocation>(250);
+	LocationHistory history = new LocationHistory(250);
+
+	@Setup
+	public void setup() {
+		double latitude = 41.881832, longitude = -87.623177;
+		long timestamp = 1700000000000L;
+		for(int i = 0; i < 248; i++) {
+			latitude += 0.002;
+			longitude -= 0.001;
+			timestamp += 300000;
+			queue.add(new VehicleLocation(latitude, longitude, 30, 90, timestamp));
+			history.add(latitude, longitude, 30, 90, timestamp / 1000, 0, false, false);
+		}
+		for(int i = 0; i < 2; i++) {
+			timestamp += 300000;
+			queue.add(new VehicleLocation(latitude, longitude, 0, 90, timestamp));
+			history.add(latitude, longitude, 0, 90, timestamp / 1000, 0, false, false);
+		}
+	}
+
+	@Benchmark
+	public VehicleLocation scanQueue() {
+		VehicleLocation previousLocationInHistory = null;
+		VehicleLocation stoppedAtLocation = null;
+		for(int i = 0; i < queue.size(); i++) {
+			VehicleLocation currentLocationInHistory = queue.get(i);
+			if (previousLocationInHistory != null && currentLocationInHistory.distanceFrom(previousLocationInHistory) == 0) {
+				if (stoppedAtLocation == null) {
+					stoppedAtLocation = previousLocationInHistory;
+				}
+			} else {
+				stoppedAtLocation = null;
+			}
+			previousLocationInHistory = currentLocationInHistory;
+		}
+		return stoppedAtLocation;
+	}
+
+	@Benchmark
+	public long readStop() {
+		return history.isStopped() ? history.getStoppedSinceSeconds() : 0;
+	}
+
+	@Benchmark
+	public int addSample() {
+		history.add(41.9, -87.7, 30, 90, 1700000000L, 0, false, false);
+		return history.size();
+	}
+}
@@ -0,0 +1,91 @@
+package com.rrarey.tesla;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rrarey.bench.BenchmarkData;
+
+/**
+ * The logging one vehicle iteration does, with arguments built eagerly by concatenation, toString(2) and formatTime,
+ * against parameterized messages with lazy suppliers. Events go to a Null appender, so this measures what the call
+ * sites cost the control loop, not the appender. Run with -prof gc to see the allocation per iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoggingBenchmark {
+	@Param({"INFO", "DEBUG"})
+	String level;
+
+	Logger logger;
+	JSONObject vehicleState = new JSONObject(BenchmarkData.vehicleData()).getJSONObject("response");
+	long
+		locationMillis = BenchmarkData.START_MILLIS,
+		nextCheckMillis = BenchmarkData.START_MILLIS + 15 * 60 * 1000
+	;
+	double
+		distanceFromHome = 12.5,
+		currentPrice = 3.4,
+		maxElectricityPrice = 5.0,
+		batteryLevel = 62,
+		chargeLimit = 80
+	;
+
+	@Setup
+	public void setup() {
+		ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+		builder.setStatusLevel(Level.WARN);
+		builder.add(builder.newAppender("Null", "Null"));
+		builder.add(builder.newRootLogger(Level.getLevel(level)).add(builder.newAppenderRef("Null")));
+		LoggerContext context = (LoggerContext) LogManager.getContext(false);
+		context.setConfiguration(builder.build());
+		context.updateLoggers();
+		logger = context.getLogger(LoggingBenchmark.class.getName());
+		if (logger.getLevel() != Level.getLevel(level)) {
+			throw new IllegalStateException("Logger level is " + logger.getLevel() + ", not " + level);
+		}
+	}
+
+	@Benchmark
+	public void eager() {
+		logger.debug("Vehicle state response: {}", vehicleState.toString(2));
+		logger.debug("Next location check will be at {}, IF VEHICLE IS ONLINE.", RTPCharging.formatTime(nextCheckMillis));
+		logger.info("Vehicle is " + distanceFromHome + " miles from home as of " + RTPCharging.formatTime(locationMillis));
+		logger.debug("Next vehicle location check scheduled for: {}", RTPCharging.formatTime(nextCheckMillis));
+		logger.info("5-minute price (" + currentPrice + "¢/kWh) from " + RTPCharging.formatTime(locationMillis) + " is " + (currentPrice <= maxElectricityPrice ? "valid for charging (<=" + maxElectricityPrice : "not valid for charging (>" + maxElectricityPrice) + "¢/kWh)");
+		logger.info("Charge: " + String.valueOf(batteryLevel) + "%. Charge limit: " + String.valueOf(chargeLimit) + "%.");
+	}
+
+	@Benchmark
+	public void lazy() {
+		logger.debug("Vehicle state response: {}", () -> vehicleState.toString(2));
+		logger.debug("Next location check will be at {}, IF VEHICLE IS ONLINE.", () -> RTPCharging.formatTime(nextCheckMillis));
+		logger.info("Vehicle is {} miles from home as of {}", distanceFromHome, RTPCharging.formatTime(locationMillis));
+		logger.debug("Next vehicle location check scheduled for: {}", () -> RTPCharging.formatTime(nextCheckMillis));
+		boolean validPrice = currentPrice <= maxElectricityPrice;
+		logger.info("5-minute price ({}¢/kWh) from {} is {} charging ({}{}¢/kWh)", currentPrice, RTPCharging.formatTime(locationMillis), validPrice ? "valid for" : "not valid for", validPrice ? "<=" : ">", maxElectricityPrice);
+		logger.info("Charge: {}%. Charge limit: {}%.", batteryLevel, chargeLimit);
+	}
+}
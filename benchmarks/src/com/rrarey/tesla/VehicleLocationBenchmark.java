@@ -0,0 +1,45 @@
+package com.rrarey.tesla;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VehicleLocationBenchmark {
+	double
+		homeLatitude = 41.881832,
+		homeLongitude = -87.623177
+	;
+	VehicleLocation atHome = new VehicleLocation(41.881900, -87.623100);
+	VehicleLocation awayFromHome = new VehicleLocation(41.978611, -87.904724);
+
+	// Within the 0.0008 degree box, so no haversine
+	@Benchmark
+	public double distanceFromNearby() {
+		return atHome.distanceFrom(homeLatitude, homeLongitude);
+	}
+
+	// Full haversine
+	@Benchmark
+	public double distanceFromFar() {
+		return awayFromHome.distanceFrom(homeLatitude, homeLongitude);
+	}
+
+	@Benchmark
+	public double distanceFromLocation() {
+		return awayFromHome.distanceFrom(atHome);
+	}
+}
@@ -0,0 +1,39 @@
+package com.rrarey.utils;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering an exception the way the retry paths do
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExceptionUtilsBenchmark {
+	Exception exception = nested(20);
+
+	private static Exception nested(int depth) {
+		if (depth == 0) {
+			return new IOException("Server returned HTTP response code: 408 for URL: https://owner-api.teslamotors.com/api/1/vehicles/1/vehicle_data");
+		}
+		return nested(depth - 1);
+	}
+
+	@Benchmark
+	public String getExceptionString() {
+		return ExceptionUtils.getExceptionString(exception);
+	}
+}
@@ -0,0 +1,71 @@
+package com.rrarey.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rrarey.bench.BenchmarkData;
+
+/**
+ * Reading the fields we use from a vehicle_data response: buffering the body into a String and building the whole
+ * JSONObject, against streaming only the declared fields into a reused holder. Both start from the raw bytes, as
+ * they would arrive from the connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JSONFieldExtractorBenchmark {
+	static final JSONFieldExtractor EXTRACTOR = new JSONFieldExtractor(
+		"response.charge_state.charging_state",
+		"response.charge_state.charge_port_door_open",
+		"response.charge_state.usable_battery_level",
+		"response.charge_state.charge_limit_soc",
+		"response.charge_state.charger_actual_current",
+		"response.charge_state.charge_current_request",
+		"response.drive_state.latitude",
+		"response.drive_state.longitude"
+	);
+
+	RESTRequest request = new RESTRequest("http://localhost");
+	byte[] vehicleData = BenchmarkData.vehicleData().getBytes(StandardCharsets.UTF_8);
+	JSONFieldValues values = new JSONFieldValues(EXTRACTOR);
+	char[] buffer = new char[4096];
+
+	@Benchmark
+	public double fullParse() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try (Reader reader = new InputStreamReader(new ByteArrayInputStream(vehicleData), StandardCharsets.UTF_8)) {
+			int read;
+			while ((read = reader.read(buffer)) >= 0) {
+				sb.append(buffer, 0, read);
+			}
+		}
+		JSONObject response = request.processResponseData(sb.toString(), "vehicle_data").getJSONObject("response");
+		return response.getJSONObject("charge_state").getDouble("usable_battery_level") + response.getJSONObject("drive_state").getDouble("latitude");
+	}
+
+	@Benchmark
+	public double extractFields() throws IOException {
+		try (Reader reader = new InputStreamReader(new ByteArrayInputStream(vehicleData), StandardCharsets.UTF_8)) {
+			EXTRACTOR.extract(reader, values);
+		}
+		return values.getDouble(2, 0) + values.getDouble(6, 0);
+	}
+}
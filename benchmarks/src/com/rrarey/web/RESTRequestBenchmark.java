@@ -0,0 +1,41 @@
+package com.rrarey.web;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rrarey.bench.BenchmarkData;
+
+/**
+ * Response parsing in RESTRequest, including the {d: ...} wrapping copy made for array responses
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RESTRequestBenchmark {
+	RESTRequest request = new RESTRequest("http://localhost");
+	String vehicleData = BenchmarkData.vehicleData();
+	String comEdFeed = BenchmarkData.comEdFeed(288);
+
+	@Benchmark
+	public JSONObject processVehicleData() {
+		return request.processResponseData(vehicleData, "vehicle_data");
+	}
+
+	@Benchmark
+	public JSONObject processArray() {
+		return request.processResponseData(comEdFeed, "api?type=5minutefeed");
+	}
+}
@@ -0,0 +1,42 @@
+package com.rrarey.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A count that only goes up. Increments are lock-free and don't allocate.
+ */
+public final class Counter extends Metric {
+	private final LongAdder count = new LongAdder();
+
+	// Reads the count from elsewhere instead, e.g. stats another class already keeps
+	private final LongSupplier function;
+
+	Counter() {
+		this(null);
+	}
+
+	Counter(LongSupplier function) {
+		this.function = function;
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long amount) {
+		if (function != null) {
+			throw new UnsupportedOperationException("Counter is read from a function");
+		}
+		count.add(amount);
+	}
+
+	public long get() {
+		return function != null ? function.getAsLong() : count.sum();
+	}
+
+	@Override
+	void write(StringBuilder sb, String name, String labels) {
+		writeSample(sb, name, labels, get());
+	}
+}
@@ -0,0 +1,39 @@
+package com.rrarey.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value that can go up and down. Either set directly, or read from a function when scraped.
+ */
+public final class Gauge extends Metric {
+	private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+	private final DoubleSupplier function;
+
+	Gauge() {
+		this(null);
+	}
+
+	Gauge(DoubleSupplier function) {
+		this.function = function;
+	}
+
+	public void set(double value) {
+		if (function != null) {
+			throw new UnsupportedOperationException("Gauge is read from a function");
+		}
+		bits.set(Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * @return Current value, or NaN if it was never set
+	 */
+	public double get() {
+		return function != null ? function.getAsDouble() : Double.longBitsToDouble(bits.get());
+	}
+
+	@Override
+	void write(StringBuilder sb, String name, String labels) {
+		writeSample(sb, name, labels, get());
+	}
+}
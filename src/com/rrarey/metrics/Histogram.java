@@ -0,0 +1,147 @@
+package com.rrarey.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with HDR-style log-linear buckets.
+ *
+ * Values are recorded in microseconds. Below 16 each value has its own bucket. Above that every power of two is split
+ * into 8 equal buckets, so a bucket is never wider than 12.5% of its value, from microseconds up to hours. Recording
+ * is an atomic increment of one array slot plus a LongAdder, with no locks or allocation. Buckets are only merged
+ * into the coarser Prometheus le buckets when scraped.
+ */
+public final class Histogram extends Metric {
+	static final int
+		SUB_BUCKET_BITS = 3,
+		SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+	;
+
+	// Longest value kept apart from the others (about 19 hours). Longer values count as this.
+	static final long MAX_MICROS = (1L << 36) - 1;
+
+	static final int BUCKETS = index(MAX_MICROS) + 1;
+
+	// Bucket bounds in seconds for the Prometheus exposition
+	static final double[] EXPORT_BOUNDS_SECONDS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300 };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sumMicros = new LongAdder();
+
+	Histogram() { }
+
+	/**
+	 * Record a duration measured with System.nanoTime
+	 * @param nanos Duration in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		recordMicros(nanos / 1000);
+	}
+
+	/**
+	 * @param micros Duration in microseconds
+	 */
+	public void recordMicros(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		} else if (micros > MAX_MICROS) {
+			micros = MAX_MICROS;
+		}
+		counts.incrementAndGet(index(micros));
+		sumMicros.add(micros);
+	}
+
+	/**
+	 * @param micros Value in microseconds
+	 * @return Bucket holding the value
+	 */
+	static int index(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return exponent * SUB_BUCKETS + (int) (micros >>> exponent);
+	}
+
+	/**
+	 * @param index Bucket
+	 * @return Smallest value above the bucket, in microseconds
+	 */
+	static long upperBound(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index + 1;
+		}
+		int exponent = index / SUB_BUCKETS - 1;
+		long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+		return (mantissa + 1) << exponent;
+	}
+
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @param quantile Quantile, from 0 to 1
+	 * @return Upper bound of the bucket holding the quantile, in microseconds, or 0 if nothing was recorded
+	 */
+	public long getQuantileMicros(double quantile) {
+		long[] snapshot = snapshot();
+		long count = 0;
+		for(long bucket : snapshot) {
+			count += bucket;
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * count), seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(1, rank)) {
+				return upperBound(i);
+			}
+		}
+		return MAX_MICROS;
+	}
+
+	private long[] snapshot() {
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Write cumulative le buckets. A fine bucket counts towards an le bound once all of it is at or below the bound,
+	 * so a bucket straddling a bound is counted under the next one.
+	 */
+	@Override
+	void write(StringBuilder sb, String name, String labels) {
+		long[] snapshot = snapshot();
+		String bucketLabels = labels.isEmpty() ? "{le=\"" : labels.substring(0, labels.length() - 1) + ",le=\"";
+
+		long cumulative = 0;
+		int i = 0;
+		for(double bound : EXPORT_BOUNDS_SECONDS) {
+			long boundMicros = (long) (bound * 1000000);
+			while (i < BUCKETS && upperBound(i) - 1 <= boundMicros) {
+				cumulative += snapshot[i++];
+			}
+			writeSample(sb, name + "_bucket", bucketLabels + bound + "\"}", cumulative);
+		}
+		while (i < BUCKETS) {
+			cumulative += snapshot[i++];
+		}
+		writeSample(sb, name + "_bucket", bucketLabels + "+Inf\"}", cumulative);
+		writeSample(sb, name + "_sum", labels, sumMicros.sum() / 1000000.0);
+		writeSample(sb, name + "_count", labels, cumulative);
+	}
+}
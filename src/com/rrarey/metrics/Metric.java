@@ -0,0 +1,27 @@
+package com.rrarey.metrics;
+
+/**
+ * A series in a MetricsRegistry: one metric name with one set of label values.
+ */
+abstract class Metric {
+	/**
+	 * Append this series to a Prometheus text exposition
+	 * @param sb Where to write
+	 * @param name Metric name
+	 * @param labels Rendered label values, like {client="tesla"}, or an empty string
+	 */
+	abstract void write(StringBuilder sb, String name, String labels);
+
+	/**
+	 * Append one sample line
+	 */
+	static void writeSample(StringBuilder sb, String name, String labels, double value) {
+		sb.append(name).append(labels).append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+			sb.append((long) value);
+		} else {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+}
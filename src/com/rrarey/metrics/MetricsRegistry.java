@@ -0,0 +1,165 @@
+package com.rrarey.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and histograms, written out in the Prometheus text format.
+ *
+ * Metrics are looked up or created by name and label values once, up front, and the returned object is kept and
+ * updated directly, so recording never touches the registry. Asking for the same name and labels again returns the
+ * same object. Labels are given as name, value pairs.
+ */
+public class MetricsRegistry {
+	static final String
+		COUNTER = "counter",
+		GAUGE = "gauge",
+		HISTOGRAM = "histogram"
+	;
+
+	private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+	/**
+	 * All series with one metric name
+	 */
+	private static final class Family {
+		final String
+			help,
+			type
+		;
+		final Map<String, Metric> series = new ConcurrentSkipListMap<String, Metric>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * @return Registry the application's metrics are kept in
+	 */
+	public static MetricsRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * @param name Metric name, e.g. tesla_calls_total
+	 * @param help Description
+	 * @param labels Label name, value pairs
+	 * @return Counter for the name and labels
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return register(name, help, COUNTER, labels, Counter::new);
+	}
+
+	/**
+	 * Expose a count kept somewhere else
+	 * @param name Metric name
+	 * @param help Description
+	 * @param function Reads the count when scraped. Must be thread-safe.
+	 * @param labels Label name, value pairs
+	 * @return Counter for the name and labels
+	 */
+	public Counter counter(String name, String help, LongSupplier function, String... labels) {
+		return register(name, help, COUNTER, labels, () -> new Counter(function));
+	}
+
+	/**
+	 * @param name Metric name
+	 * @param help Description
+	 * @param labels Label name, value pairs
+	 * @return Gauge for the name and labels
+	 */
+	public Gauge gauge(String name, String help, String... labels) {
+		return register(name, help, GAUGE, labels, Gauge::new);
+	}
+
+	/**
+	 * Expose a value kept somewhere else
+	 * @param name Metric name
+	 * @param help Description
+	 * @param function Reads the value when scraped. Must be thread-safe.
+	 * @param labels Label name, value pairs
+	 * @return Gauge for the name and labels
+	 */
+	public Gauge gauge(String name, String help, DoubleSupplier function, String... labels) {
+		return register(name, help, GAUGE, labels, () -> new Gauge(function));
+	}
+
+	/**
+	 * @param name Metric name, e.g. http_client_request_duration_seconds
+	 * @param help Description
+	 * @param labels Label name, value pairs
+	 * @return Latency histogram for the name and labels
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return register(name, help, HISTOGRAM, labels, Histogram::new);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Metric> T register(String name, String help, String type, String[] labels, Supplier<T> factory) {
+		if (!name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+			throw new IllegalArgumentException("Invalid metric name: " + name);
+		}
+		Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+		}
+		return (T) family.series.computeIfAbsent(renderLabels(labels), l -> factory.get());
+	}
+
+	/**
+	 * @param labels Label name, value pairs
+	 * @return Labels as they appear in the exposition, like {client="tesla",method="GET"}
+	 */
+	static String renderLabels(String[] labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name, value pairs");
+		}
+		if (labels.length == 0) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for(int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for(int c = 0; c < value.length(); c++) {
+				char ch = value.charAt(c);
+				if (ch == '\\' || ch == '"') {
+					sb.append('\\').append(ch);
+				} else if (ch == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(ch);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format (version 0.0.4)
+	 */
+	public String scrape() {
+		StringBuilder sb = new StringBuilder(4096);
+		for(Map.Entry<String, Family> entry : families.entrySet()) {
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			sb.append("# HELP ").append(name).append(' ').append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for(Map.Entry<String, Metric> series : family.series.entrySet()) {
+				series.getValue().write(sb, name, series.getKey());
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,83 @@
+package com.rrarey.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a MetricsRegistry at /metrics for Prometheus to scrape. Only listens on the loopback address.
+ */
+public class MetricsServer {
+	public static final String PATH = "/metrics";
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final Logger logger = LogManager.getLogger(MetricsServer.class);
+
+	private final MetricsRegistry registry;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "metrics-http");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param registry Registry to serve
+	 * @param port Local port to listen on. 0 picks a free port.
+	 * @throws IOException When the port can't be bound
+	 */
+	public MetricsServer(MetricsRegistry registry, int port) throws IOException {
+		this.registry = registry;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 8);
+		server.createContext(PATH, this::handle);
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+		logger.debug("Serving metrics at http://{}:{}{}", server.getAddress().getHostString(), getPort(), PATH);
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("HEAD")) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if (method.equals("HEAD")) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
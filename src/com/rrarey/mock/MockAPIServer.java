@@ -0,0 +1,479 @@
+package com.rrarey.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the Tesla owner API, the Tesla auth server and ComEd's price API, for load testing without waking
+ * real cars or getting rate limited. Point TESLA_API_BASE, TESLA_AUTH_URL and COMED_API_BASE in app.properties at it.
+ *
+ * Usage: MockAPIServer [properties]
+ *
+ * Settings (all optional):
+ *	MOCK_PORT						Port to listen on. Defaults to 8080.
+ *	MOCK_VEHICLES					Number of vehicles on the account. Defaults to 1.
+ *	MOCK_HOME_LATITUDE/LONGITUDE	Where the vehicles are parked
+ *	MOCK_SOC_GAIN_PER_HOUR			Charging speed of the vehicles. Defaults to 10.
+ *	MOCK_SLEEP_AFTER_SECONDS		Vehicles fall asleep after this long without a data request or command. Defaults to 900.
+ *	MOCK_WAKE_SECONDS				Time a vehicle takes to come online after a wake_up request. Defaults to 20.
+ *	MOCK_TOKEN_LIFETIME_SECONDS		Access tokens are rejected with a 401 after this long. Defaults to 28800.
+ *	MOCK_LATENCY_MEDIAN_MILLIS		Median response latency. Latency is log-normally distributed. Defaults to 0.
+ *	MOCK_LATENCY_P99_MILLIS			99th percentile response latency. Defaults to 4x the median.
+ *	MOCK_FAULT_RATE_408				Fraction of vehicle requests that fail with a 408 even when the vehicle is awake
+ *	MOCK_FAULT_RATE_401				Fraction of Tesla requests that fail with a 401 even with a valid token
+ *	MOCK_FAULT_RATE_429				Fraction of Tesla requests that fail with a 429 and a Retry-After header
+ *	MOCK_FAULT_RATE_5XX				Fraction of all requests that fail with a 500, 502 or 503
+ *
+ * GET /mock/stats returns request counts by endpoint and status, API calls per vehicle-hour and throughput.
+ */
+public class MockAPIServer {
+	static final String
+		MOCK_PORT = "MOCK_PORT",
+		MOCK_VEHICLES = "MOCK_VEHICLES",
+		MOCK_HOME_LATITUDE = "MOCK_HOME_LATITUDE",
+		MOCK_HOME_LONGITUDE = "MOCK_HOME_LONGITUDE",
+		MOCK_SOC_GAIN_PER_HOUR = "MOCK_SOC_GAIN_PER_HOUR",
+		MOCK_SLEEP_AFTER_SECONDS = "MOCK_SLEEP_AFTER_SECONDS",
+		MOCK_WAKE_SECONDS = "MOCK_WAKE_SECONDS",
+		MOCK_TOKEN_LIFETIME_SECONDS = "MOCK_TOKEN_LIFETIME_SECONDS",
+		MOCK_LATENCY_MEDIAN_MILLIS = "MOCK_LATENCY_MEDIAN_MILLIS",
+		MOCK_LATENCY_P99_MILLIS = "MOCK_LATENCY_P99_MILLIS",
+		MOCK_FAULT_RATE_408 = "MOCK_FAULT_RATE_408",
+		MOCK_FAULT_RATE_401 = "MOCK_FAULT_RATE_401",
+		MOCK_FAULT_RATE_429 = "MOCK_FAULT_RATE_429",
+		MOCK_FAULT_RATE_5XX = "MOCK_FAULT_RATE_5XX"
+	;
+
+	// z-score of the 99th percentile of a normal distribution
+	static final double Z_99 = 2.326;
+
+	static final int RETRY_AFTER_SECONDS = 30;
+
+	// ComEd's date range parameters are in Central time.
+	static final DateTimeFormatter dateRangeFormatter = DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneId.of("America/Chicago"));
+
+	private static final Logger logger = LogManager.getLogger(MockAPIServer.class);
+
+	// Settings
+	int port = 8080;
+	double
+		latencyMedianMillis = 0,
+		latencySigma = Math.log(4) / Z_99,
+		faultRate408 = 0,
+		faultRate401 = 0,
+		faultRate429 = 0,
+		faultRate5xx = 0
+	;
+	long tokenLifetimeMillis = 8 * 3600 * 1000L;
+
+	final List<MockVehicle> vehicles = new ArrayList<MockVehicle>();
+
+	// Access tokens and when they expire. Tokens we haven't issued are accepted once and expire a token lifetime
+	// after they are first seen, so the token in app.properties works against a fresh server.
+	private final Map<String, Long> accessTokens = new ConcurrentHashMap<String, Long>();
+
+	// Stats
+	private final long startMillis = System.currentTimeMillis();
+	private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final AtomicLong
+		teslaRequests = new AtomicLong(),
+		comEdRequests = new AtomicLong(),
+		injectedFaults = new AtomicLong()
+	;
+
+	private HttpServer server;
+
+	public static void main(String[] args) {
+		MockAPIServer mock = new MockAPIServer();
+		try {
+			mock.loadSettings(args.length > 0 ? args[0] : null);
+			mock.start();
+		} catch (IOException ex) {
+			System.err.println("Could not start mock API server: " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Read settings from a properties file
+	 * @param propertiesFile Properties file name, or null to use the defaults
+	 * @throws IOException When the file can't be read
+	 */
+	void loadSettings(String propertiesFile) throws IOException {
+		Properties prop = new Properties();
+		if (propertiesFile != null) {
+			try (FileInputStream fis = new FileInputStream(propertiesFile)) {
+				prop.load(fis);
+			}
+		}
+
+		port = Integer.parseInt(prop.getProperty(MOCK_PORT, "8080"));
+		tokenLifetimeMillis = Long.parseLong(prop.getProperty(MOCK_TOKEN_LIFETIME_SECONDS, "28800")) * 1000;
+
+		latencyMedianMillis = Double.parseDouble(prop.getProperty(MOCK_LATENCY_MEDIAN_MILLIS, "0"));
+		double latencyP99Millis = Double.parseDouble(prop.getProperty(MOCK_LATENCY_P99_MILLIS, Double.toString(latencyMedianMillis * 4)));
+		if (latencyMedianMillis > 0 && latencyP99Millis > latencyMedianMillis) {
+			latencySigma = Math.log(latencyP99Millis / latencyMedianMillis) / Z_99;
+		} else {
+			latencySigma = 0;
+		}
+
+		faultRate408 = Double.parseDouble(prop.getProperty(MOCK_FAULT_RATE_408, "0"));
+		faultRate401 = Double.parseDouble(prop.getProperty(MOCK_FAULT_RATE_401, "0"));
+		faultRate429 = Double.parseDouble(prop.getProperty(MOCK_FAULT_RATE_429, "0"));
+		faultRate5xx = Double.parseDouble(prop.getProperty(MOCK_FAULT_RATE_5XX, "0"));
+
+		int vehicleCount = Integer.parseInt(prop.getProperty(MOCK_VEHICLES, "1"));
+		double homeLatitude = Double.parseDouble(prop.getProperty(MOCK_HOME_LATITUDE, "41.881832"));
+		double homeLongitude = Double.parseDouble(prop.getProperty(MOCK_HOME_LONGITUDE, "-87.623177"));
+		double soCGainPerHour = Double.parseDouble(prop.getProperty(MOCK_SOC_GAIN_PER_HOUR, "10"));
+		long sleepAfterMillis = Long.parseLong(prop.getProperty(MOCK_SLEEP_AFTER_SECONDS, "900")) * 1000;
+		long wakeMillis = Long.parseLong(prop.getProperty(MOCK_WAKE_SECONDS, "20")) * 1000;
+
+		vehicles.clear();
+		long now = System.currentTimeMillis();
+		for(int i = 1; i <= vehicleCount; i++) {
+			vehicles.add(new MockVehicle(i, homeLatitude, homeLongitude, soCGainPerHour, sleepAfterMillis, wakeMillis, now));
+		}
+	}
+
+	/**
+	 * Start serving requests. Each request runs on its own thread, so injected latency doesn't hold up other requests.
+	 */
+	void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 128);
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		port = server.getAddress().getPort();
+		logger.info("Mock API server listening on port {} with {} vehicle(s)", port, vehicles.size());
+	}
+
+	void stop() {
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int status = 500;
+		String body;
+		try {
+			URI uri = exchange.getRequestURI();
+			String path = uri.getPath();
+			Map<String, String> query = parseQuery(uri.getRawQuery());
+
+			// Stats are served without injected latency.
+			if (!path.equals("/mock/stats")) {
+				delay();
+			}
+			long now = System.currentTimeMillis();
+
+			if (path.equals("/mock/stats")) {
+				status = 200;
+				body = getStats(now).toString(2);
+			} else if (path.equals("/api") && "5minutefeed".equals(query.get("type"))) {
+				comEdRequests.incrementAndGet();
+				count("comed 5minutefeed");
+				if (inject(faultRate5xx)) {
+					status = 500 + new int[] {0, 2, 3}[ThreadLocalRandom.current().nextInt(3)];
+					body = "";
+				} else {
+					// ETags let clients revalidate the feed with a 304
+					status = 200;
+					body = getComEdFeed(query, now).toString();
+					String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+					exchange.getResponseHeaders().set("ETag", etag);
+					if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+						count("comed not modified");
+						status = 304;
+						body = "";
+					}
+				}
+			} else if (path.equals("/oauth2/v3/token")) {
+				count("oauth2 token");
+				status = 200;
+				body = refreshToken(readBody(exchange)).toString();
+			} else if (path.startsWith("/api/1/vehicles")) {
+				teslaRequests.incrementAndGet();
+				JSONObject response = new JSONObject();
+				status = handleVehicleRequest(exchange, path, query, now, response);
+				if (status == 429) {
+					exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+				}
+				body = response.toString();
+			} else {
+				count("not found");
+				status = 404;
+				body = new JSONObject().put("error", "not_found").toString();
+			}
+		} catch (Exception ex) {
+			status = 500;
+			body = new JSONObject().put("error", String.valueOf(ex.getMessage())).toString();
+		}
+
+		statusCounts.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	/**
+	 * Handle a request under /api/1/vehicles
+	 * @param response Response JSON to fill in
+	 * @return HTTP status
+	 */
+	private int handleVehicleRequest(HttpExchange exchange, String path, Map<String, String> query, long now, JSONObject response) {
+		String[] parts = path.substring("/api/1/vehicles".length()).split("/");
+		// parts[0] is always empty, parts[1] is the vehicle ID and the rest is the endpoint.
+		String endpoint = parts.length <= 1 ? "vehicles" : parts.length == 2 ? "vehicle" : String.join("/", Arrays.copyOfRange(parts, 2, parts.length));
+		count(endpoint);
+
+		if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"), now) || inject(faultRate401)) {
+			response.put("error", "invalid bearer token");
+			return 401;
+		}
+		if (inject(faultRate429)) {
+			response.put("error", "Retry in " + RETRY_AFTER_SECONDS + " seconds");
+			return 429;
+		}
+		if (inject(faultRate5xx)) {
+			response.put("error", "upstream internal error");
+			return 500 + new int[] {0, 2, 3}[ThreadLocalRandom.current().nextInt(3)];
+		}
+
+		if (parts.length <= 1) {
+			JSONArray list = new JSONArray();
+			for(MockVehicle vehicle : vehicles) {
+				list.put(vehicle.toSummaryJSON(now));
+			}
+			response.put("response", list).put("count", list.length());
+			return 200;
+		}
+
+		MockVehicle vehicle = findVehicle(parts[1]);
+		if (vehicle == null) {
+			response.put("error", "not_found");
+			return 404;
+		}
+
+		// Listing a vehicle never wakes it, and always works.
+		if (endpoint.equals("vehicle")) {
+			response.put("response", vehicle.toSummaryJSON(now));
+			return 200;
+		}
+
+		if (endpoint.equals("wake_up")) {
+			JSONObject summary = vehicle.toSummaryJSON(now);
+			summary.put("state", vehicle.wakeUp(now));
+			response.put("response", summary);
+			return 200;
+		}
+
+		if (!vehicle.touch(now) || inject(faultRate408)) {
+			response.put("error", "vehicle unavailable: {:error=>\"vehicle unavailable:\"}");
+			return 408;
+		}
+
+		if (endpoint.equals("vehicle_data")) {
+			response.put("response", vehicle.toVehicleDataJSON(query.get("endpoints"), now));
+			return 200;
+		} else if (endpoint.equals("command/charge_start") || endpoint.equals("command/charge_stop")) {
+			response.put("response", vehicle.chargeCommand(endpoint.endsWith("start"), now));
+			return 200;
+		}
+
+		response.put("error", "not_found");
+		return 404;
+	}
+
+	private MockVehicle findVehicle(String id) {
+		for(MockVehicle vehicle : vehicles) {
+			if (Long.toString(vehicle.id).equals(id)) {
+				return vehicle;
+			}
+		}
+		return null;
+	}
+
+	private boolean isAuthorized(String authorization, long now) {
+		if (authorization == null || !authorization.startsWith("Bearer ") || authorization.length() <= 7) {
+			return false;
+		}
+		String token = authorization.substring(7).trim();
+		long expires = accessTokens.computeIfAbsent(token, t -> now + tokenLifetimeMillis);
+		return now < expires;
+	}
+
+	/**
+	 * Issue a new access/refresh token pair. Any refresh token is accepted.
+	 */
+	private JSONObject refreshToken(String requestBody) {
+		JSONObject request = new JSONObject(requestBody);
+		if (!"refresh_token".equals(request.optString("grant_type")) || request.optString("refresh_token").isEmpty()) {
+			return new JSONObject().put("error", "invalid_request");
+		}
+
+		// Shaped like Tesla's JWTs, with an exp claim but no real signature
+		long expires = System.currentTimeMillis() + tokenLifetimeMillis;
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String accessToken =
+			encoder.encodeToString("{\"alg\":\"none\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8)) + "." +
+			encoder.encodeToString(new JSONObject().put("exp", expires / 1000).put("jti", UUID.randomUUID().toString()).toString().getBytes(StandardCharsets.UTF_8)) + "." +
+			"mock";
+		accessTokens.put(accessToken, expires);
+		return new JSONObject()
+			.put("access_token", accessToken)
+			.put("refresh_token", "mock-refresh-" + UUID.randomUUID())
+			.put("expires_in", tokenLifetimeMillis / 1000)
+			.put("token_type", "Bearer")
+		;
+	}
+
+	/**
+	 * Build a 5-minute price feed, newest first like ComEd's. Prices follow a daily curve with noise, and are the
+	 * same for a given time on every request.
+	 * @param query Request parameters. datestart and dateend limit the range, otherwise the last 24 hours are returned.
+	 */
+	private JSONArray getComEdFeed(Map<String, String> query, long now) {
+		long interval = 5 * 60 * 1000;
+		long end = now - now % interval;
+		long start = end - 24 * 3600 * 1000L;
+		try {
+			if (query.containsKey("datestart") && query.containsKey("dateend")) {
+				start = LocalDateTime.parse(query.get("datestart"), dateRangeFormatter).atZone(dateRangeFormatter.getZone()).toInstant().toEpochMilli();
+				end = Math.min(end, LocalDateTime.parse(query.get("dateend"), dateRangeFormatter).atZone(dateRangeFormatter.getZone()).toInstant().toEpochMilli());
+			}
+		} catch (Exception ex) { }
+
+		JSONArray feed = new JSONArray();
+		for(long millis = end; millis >= start; millis -= interval) {
+			double hour = (millis / 3600000.0) % 24;
+			double price = 3 + 2 * Math.sin((hour - 12) / 24 * 2 * Math.PI) + new Random(millis).nextGaussian();
+			feed.put(new JSONObject()
+				.put("millisUTC", Long.toString(millis))
+				.put("price", String.format("%.1f", price))
+			);
+		}
+		return feed;
+	}
+
+	/**
+	 * @return Request counts, API calls per vehicle-hour and throughput since the server started
+	 */
+	JSONObject getStats(long now) {
+		double hours = Math.max(1, now - startMillis) / 3600000.0;
+		JSONObject endpoints = new JSONObject();
+		for(Map.Entry<String, AtomicLong> entry : requestCounts.entrySet()) {
+			endpoints.put(entry.getKey(), entry.getValue().get());
+		}
+		JSONObject statuses = new JSONObject();
+		for(Map.Entry<Integer, AtomicLong> entry : statusCounts.entrySet()) {
+			statuses.put(Integer.toString(entry.getKey()), entry.getValue().get());
+		}
+
+		long total = teslaRequests.get() + comEdRequests.get();
+		return new JSONObject()
+			.put("uptimeSeconds", (now - startMillis) / 1000)
+			.put("vehicles", vehicles.size())
+			.put("teslaRequests", teslaRequests.get())
+			.put("comEdRequests", comEdRequests.get())
+			.put("injectedFaults", injectedFaults.get())
+			.put("teslaCallsPerVehicleHour", vehicles.isEmpty() ? 0 : teslaRequests.get() / hours / vehicles.size())
+			.put("requestsPerSecond", total / (hours * 3600))
+			.put("endpoints", endpoints)
+			.put("statuses", statuses)
+		;
+	}
+
+	private void count(String endpoint) {
+		requestCounts.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+	}
+
+	private boolean inject(double rate) {
+		if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+			injectedFaults.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sleep for a log-normally distributed latency
+	 */
+	private void delay() {
+		if (latencyMedianMillis <= 0) {
+			return;
+		}
+		double latency = latencyMedianMillis * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian());
+		try {
+			Thread.sleep((long) latency);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		try (InputStream is = exchange.getRequestBody()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) > 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery != null) {
+			for(String pair : rawQuery.split("&")) {
+				int equals = pair.indexOf('=');
+				try {
+					if (equals > 0) {
+						query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+					} else if (!pair.isEmpty()) {
+						query.put(pair, "");
+					}
+				} catch (IOException ex) { }
+			}
+		}
+		return query;
+	}
+}
@@ -0,0 +1,186 @@
+package com.rrarey.mock;
+
+import org.json.JSONObject;
+
+/**
+ * Simulated vehicle for MockAPIServer. It is parked and plugged in at home, falls asleep after a period without data
+ * requests, takes a while to wake up, and gains charge while charging.
+ */
+class MockVehicle {
+	final long id;
+	final String
+		vin,
+		displayName
+	;
+
+	private final double
+		latitude,
+		longitude,
+		soCGainPerHour
+	;
+	private final long
+		sleepAfterMillis,
+		wakeMillis
+	;
+
+	private double batteryLevel;
+	private int chargeLimit = 90;
+	private boolean charging = false;
+	private long
+		lastActivityMillis,
+		wakingUntilMillis = 0,
+		lastUpdateMillis
+	;
+
+	MockVehicle(int number, double latitude, double longitude, double soCGainPerHour, long sleepAfterMillis, long wakeMillis, long now) {
+		this.id = 10000000000000000L + number;
+		this.vin = String.format("5YJ3E1EA0MF%06d", number);
+		this.displayName = "Mock " + number;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.soCGainPerHour = soCGainPerHour;
+		this.sleepAfterMillis = sleepAfterMillis;
+		this.wakeMillis = wakeMillis;
+		this.batteryLevel = 40 + (number * 7) % 40;
+		this.lastActivityMillis = now;
+		this.lastUpdateMillis = now;
+	}
+
+	/**
+	 * Advance charging and sleep state to the current time
+	 * @param now Current time in milliseconds since January 1, 1970
+	 */
+	private void update(long now) {
+		if (charging) {
+			batteryLevel = Math.min(chargeLimit, batteryLevel + soCGainPerHour * (now - lastUpdateMillis) / 3600000.0);
+			if (batteryLevel >= chargeLimit) {
+				charging = false;
+			}
+			// A charging car stays awake.
+			lastActivityMillis = now;
+		}
+		if (wakingUntilMillis > 0 && now >= wakingUntilMillis) {
+			wakingUntilMillis = 0;
+			lastActivityMillis = now;
+		}
+		lastUpdateMillis = now;
+	}
+
+	/**
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return State as reported by the API (online, asleep)
+	 */
+	synchronized String getState(long now) {
+		update(now);
+		return isAsleep(now) ? "asleep" : "online";
+	}
+
+	private boolean isAsleep(long now) {
+		return wakingUntilMillis > 0 || now - lastActivityMillis > sleepAfterMillis;
+	}
+
+	/**
+	 * Handle a wake_up request. The vehicle comes online wakeMillis after the first request.
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return State after the request (online, asleep)
+	 */
+	synchronized String wakeUp(long now) {
+		update(now);
+		if (isAsleep(now) && wakingUntilMillis == 0) {
+			wakingUntilMillis = now + wakeMillis;
+			update(now);
+		}
+		return isAsleep(now) ? "asleep" : "online";
+	}
+
+	/**
+	 * Record a request that needs the vehicle awake. Keeps it awake, like polling a real car does.
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return false if the vehicle is asleep and the request should fail with a 408
+	 */
+	synchronized boolean touch(long now) {
+		update(now);
+		if (isAsleep(now)) {
+			return false;
+		}
+		lastActivityMillis = now;
+		return true;
+	}
+
+	/**
+	 * @param start true to start charging, false to stop
+	 * @return Command result, in the form returned by the API
+	 */
+	synchronized JSONObject chargeCommand(boolean start, long now) {
+		update(now);
+		JSONObject result = new JSONObject();
+		if (start && batteryLevel >= chargeLimit) {
+			result.put("result", false).put("reason", "complete");
+		} else if (start && charging) {
+			result.put("result", false).put("reason", "is_charging");
+		} else if (!start && !charging) {
+			result.put("result", false).put("reason", "not_charging");
+		} else {
+			charging = start;
+			result.put("result", true).put("reason", "");
+		}
+		return result;
+	}
+
+	/**
+	 * @return Entry for the /api/1/vehicles list and /api/1/vehicles/{id}
+	 */
+	synchronized JSONObject toSummaryJSON(long now) {
+		return new JSONObject()
+			.put("id", id)
+			.put("id_s", Long.toString(id))
+			.put("vehicle_id", id % 1000000000L)
+			.put("vin", vin)
+			.put("display_name", displayName)
+			.put("state", getState(now))
+			.put("in_service", false)
+		;
+	}
+
+	/**
+	 * @param endpoints Value of the endpoints query parameter, or null for the default data set
+	 * @return vehicle_data response
+	 */
+	synchronized JSONObject toVehicleDataJSON(String endpoints, long now) {
+		update(now);
+		JSONObject data = toSummaryJSON(now);
+		boolean all = endpoints == null || endpoints.isEmpty();
+
+		if (all || endpoints.contains("charge_state")) {
+			data.put("charge_state", new JSONObject()
+				.put("battery_level", (int) Math.floor(batteryLevel))
+				.put("usable_battery_level", (int) Math.floor(batteryLevel))
+				.put("charge_limit_soc", chargeLimit)
+				.put("charging_state", charging ? "Charging" : batteryLevel >= chargeLimit ? "Complete" : "Stopped")
+				.put("charge_port_door_open", true)
+				.put("charge_current_request", 32)
+				.put("charger_actual_current", charging ? 32 : 0)
+				.put("minutes_to_full_charge", soCGainPerHour > 0 ? (int) Math.ceil((chargeLimit - batteryLevel) / soCGainPerHour * 60) : 0)
+				.put("scheduled_departure_time", (now / 1000) + 12 * 3600)
+				.put("preconditioning_enabled", false)
+				.put("timestamp", now)
+			);
+		}
+
+		// Like the real API, location is only returned when location_data is requested.
+		if (all || endpoints.contains("location_data") || endpoints.contains("drive_state")) {
+			JSONObject driveState = new JSONObject()
+				.put("heading", 180)
+				.put("speed", JSONObject.NULL)
+				.put("shift_state", JSONObject.NULL)
+				.put("timestamp", now)
+			;
+			if (!all && endpoints.contains("location_data")) {
+				driveState.put("latitude", latitude).put("longitude", longitude);
+			}
+			data.put("drive_state", driveState);
+		}
+
+		return data;
+	}
+}
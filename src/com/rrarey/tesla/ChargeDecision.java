@@ -0,0 +1,90 @@
+package com.rrarey.tesla;
+
+/**
+ * Decide what to do about charging, given the vehicle's charge state and the current price.
+ * This has no side effects and doesn't look at the clock, so the live loop and the replay engine share it.
+ */
+class ChargeDecision {
+	enum Action {
+		NONE,			// Nothing to do
+		START,			// Start charging
+		STOP,			// Stop charging
+		RESTART,		// Charging current has dropped - stop and start charging again
+		FULLY_CHARGED,	// Plugged in, but already at the charge limit
+		NOT_PLUGGED_IN	// Not plugged in, or charge state unknown
+	}
+
+	final Action action;
+	final boolean
+		vehicleCharging,	// Whether the vehicle reported that it was charging
+		forceCharging,		// Set to true when time and departure SoC dictate.
+		planCharging		// Set to true when the charge plan charges now
+	;
+	final int
+		minutesToDeparture,
+		minutesToDepartureSoC
+	;
+
+	private ChargeDecision(Action action, boolean vehicleCharging, boolean forceCharging, boolean planCharging, int minutesToDeparture, int minutesToDepartureSoC) {
+		this.action = action;
+		this.vehicleCharging = vehicleCharging;
+		this.forceCharging = forceCharging;
+		this.planCharging = planCharging;
+		this.minutesToDeparture = minutesToDeparture;
+		this.minutesToDepartureSoC = minutesToDepartureSoC;
+	}
+
+	/**
+	 * Decide whether charging should start, stop, restart, or be left alone
+	 * @param state Charge state reported by the vehicle
+	 * @param currentPrice Current 5-minute price in cents per kWh
+	 * @param maxElectricityPrice Highest price we'll charge at
+	 * @param restartOnCurrentDrop Whether to restart charging when the current drops below the requested current
+	 * @param minimumDepartureSoC SoC required at the scheduled departure time, or 0
+	 * @param soCGainPerHour Approximate SoC gained per hour of charging
+	 * @param planCharging Whether the charge plan charges now, regardless of price (see ChargePlan)
+	 * @return Decision
+	 */
+	static ChargeDecision decide(ChargeState state, double currentPrice, double maxElectricityPrice, boolean restartOnCurrentDrop, int minimumDepartureSoC, double soCGainPerHour, boolean planCharging) {
+		boolean forceCharging = false;
+		int minutesToDeparture = 0, minutesToDepartureSoC = 0;
+
+		if (state.hasChargingState) {
+			minutesToDeparture = state.getMinutesToDeparture();
+			if (minutesToDeparture > 0 && minimumDepartureSoC > 0 && minimumDepartureSoC > state.batteryLevel) {
+				double soCGainPerMinute = (soCGainPerHour / 60);
+				double requiredCharge = minimumDepartureSoC - state.batteryLevel;
+				minutesToDepartureSoC = (int) Math.ceil(requiredCharge / soCGainPerMinute);
+				forceCharging = (minutesToDepartureSoC >= minutesToDeparture);
+			}
+		}
+
+		// Set to true when we determine we need to stop and restart charging to get the rate back up.
+		boolean stopStartCharge = restartOnCurrentDrop && state.chargerActualCurrent < state.chargeCurrentRequest;
+
+		boolean vehicleCharging = state.isCharging();
+		Action action;
+		if (!state.isPluggedIn()) {
+			action = Action.NOT_PLUGGED_IN;
+
+		// Checking chargeLimit - 1 because the vehicle will often report that it's done charging at chargeLimit - 1, and
+		// attempting to start charging at this point results in an error. Minutes to full charge is reported at 0 before
+		// charging starts, so we can't reliably use just that. The OR case should still allow us to reach "full" charge on
+		// a car that is actually plugged in and charging.
+		} else if (state.batteryLevel >= (state.chargeLimit - 1) && state.minutesToFullCharge <= 0) {
+			action = Action.FULLY_CHARGED;
+		} else if (currentPrice <= maxElectricityPrice || forceCharging || planCharging) {
+			if (vehicleCharging && stopStartCharge) {
+				action = Action.RESTART;
+			} else if (!vehicleCharging) {
+				action = Action.START;
+			} else {
+				action = Action.NONE;
+			}
+		} else {
+			action = vehicleCharging ? Action.STOP : Action.NONE;
+		}
+
+		return new ChargeDecision(action, vehicleCharging, forceCharging, planCharging, minutesToDeparture, minutesToDepartureSoC);
+	}
+}
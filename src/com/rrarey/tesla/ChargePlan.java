@@ -0,0 +1,263 @@
+package com.rrarey.tesla;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Hours to charge in so the vehicle reaches the minimum departure SoC as cheaply as possible, worked out ahead of
+ * time from an hourly price forecast.
+ *
+ * The hours from now until departure are split into slots, the first and last of which may be partial. The cheapest
+ * slots are picked until together they add enough charge at SOC_GAIN_PER_HOUR. Where forecasts tie, earlier slots win,
+ * so an uninformed forecast charges as soon as possible. If there isn't enough time, every slot is picked.
+ *
+ * Immutable. Whether to charge at a given time and when that next changes are looked up by slot, in constant time,
+ * so the main loop can ask on every price without waking the vehicle. A new plan is only needed when the inputs change
+ * or the vehicle falls behind or gets ahead of it (see isValidFor).
+ */
+final class ChargePlan {
+	static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+	// Longest plan. Tesla only reports the next departure, which is at most a day away.
+	static final int MAX_SLOTS = 25;
+
+	// How long to go without checking for a new departure when nothing is planned
+	static final long RECHECK_MILLIS = 3 * HOUR_MILLIS;
+
+	// How far, in hours of charging, the vehicle may be off the plan's SoC before it is worked out again
+	static final double REPLAN_HOURS = 1;
+
+	final long
+		startMillis,		// Start of the first slot, at the top of the hour
+		createdMillis,
+		departureMillis		// 0 without a departure
+	;
+	final double
+		startSoC,
+		chargeLimit,
+		soCGainPerHour
+	;
+	final int minimumDepartureSoC;
+
+	private final double[] prices;
+	private final boolean[] charge;
+
+	// Per slot: when charge next changes after this slot starts, or Long.MAX_VALUE if it doesn't
+	private final long[] nextTransitionMillis;
+
+	// Per slot: planned SoC at the start of the slot
+	private final double[] plannedSoC;
+
+	private ChargePlan(long createdMillis, long departureMillis, double startSoC, double chargeLimit, int minimumDepartureSoC, double soCGainPerHour, double[] prices, boolean[] charge) {
+		this.createdMillis = createdMillis;
+		this.startMillis = createdMillis - createdMillis % HOUR_MILLIS;
+		this.departureMillis = departureMillis;
+		this.startSoC = startSoC;
+		this.chargeLimit = chargeLimit;
+		this.minimumDepartureSoC = minimumDepartureSoC;
+		this.soCGainPerHour = soCGainPerHour;
+		this.prices = prices;
+		this.charge = charge;
+
+		int slots = charge.length;
+		nextTransitionMillis = new long[slots];
+		long next = slots > 0 ? Math.min(departureMillis, getSlotStart(slots)) : Long.MAX_VALUE;
+		for(int i = slots - 1; i >= 0; i--) {
+			nextTransitionMillis[i] = next;
+			if (i > 0 && charge[i] != charge[i - 1]) {
+				next = getSlotStart(i);
+			}
+		}
+
+		plannedSoC = new double[slots];
+		double soc = startSoC;
+		for(int i = 0; i < slots; i++) {
+			plannedSoC[i] = soc;
+			if (charge[i]) {
+				soc = Math.min(chargeLimit, soc + soCGainPerHour * getSlotHours(i));
+			}
+		}
+	}
+
+	/**
+	 * Work out a plan
+	 * @param nowMillis Current time
+	 * @param soc Current SoC
+	 * @param chargeLimit Vehicle's charge limit
+	 * @param departureMillis Scheduled departure, or 0 if there isn't one
+	 * @param minimumDepartureSoC SoC required at departure, or 0
+	 * @param soCGainPerHour Approximate SoC gained per hour of charging
+	 * @param forecast Forecast price for each hour starting with the current one. NaN where unknown.
+	 * @return Plan. Without a departure, a departure SoC, or anything to charge, the plan never charges.
+	 */
+	static ChargePlan compute(long nowMillis, double soc, double chargeLimit, long departureMillis, int minimumDepartureSoC, double soCGainPerHour, double[] forecast) {
+		if (departureMillis <= nowMillis || minimumDepartureSoC <= 0 || soCGainPerHour <= 0) {
+			return new ChargePlan(nowMillis, departureMillis, soc, chargeLimit, minimumDepartureSoC, soCGainPerHour, new double[0], new boolean[0]);
+		}
+
+		long startMillis = nowMillis - nowMillis % HOUR_MILLIS;
+		int slots = (int) Math.min(MAX_SLOTS, (departureMillis - startMillis + HOUR_MILLIS - 1) / HOUR_MILLIS);
+		double[] prices = new double[slots];
+		double knownSum = 0;
+		int known = 0;
+		for(int i = 0; i < slots && i < forecast.length; i++) {
+			if (!Double.isNaN(forecast[i])) {
+				knownSum += forecast[i];
+				known++;
+			}
+		}
+		// Hours without a forecast are assumed to be average
+		double average = known > 0 ? knownSum / known : 0;
+		for(int i = 0; i < slots; i++) {
+			prices[i] = i < forecast.length && !Double.isNaN(forecast[i]) ? forecast[i] : average;
+		}
+
+		boolean[] charge = new boolean[slots];
+		double hoursNeeded = (Math.min(minimumDepartureSoC, chargeLimit) - soc) / soCGainPerHour;
+		if (hoursNeeded > 0) {
+			Integer[] byPrice = new Integer[slots];
+			for(int i = 0; i < slots; i++) {
+				byPrice[i] = i;
+			}
+			Arrays.sort(byPrice, (a, b) -> prices[a] != prices[b] ? Double.compare(prices[a], prices[b]) : Integer.compare(a, b));
+			for(int i = 0; i < slots && hoursNeeded > 0; i++) {
+				charge[byPrice[i]] = true;
+				hoursNeeded -= getSlotHours(nowMillis, departureMillis, byPrice[i]);
+			}
+		}
+		return new ChargePlan(nowMillis, departureMillis, soc, chargeLimit, minimumDepartureSoC, soCGainPerHour, prices, charge);
+	}
+
+	/**
+	 * @param nowMillis Current time
+	 * @return Whether the plan charges now
+	 */
+	boolean shouldCharge(long nowMillis) {
+		int slot = getSlot(nowMillis);
+		return slot >= 0 && charge[slot];
+	}
+
+	/**
+	 * @param nowMillis Current time
+	 * @return When shouldCharge next changes, or the plan runs out, whichever is first. Long.MAX_VALUE if never.
+	 */
+	long getNextTransitionMillis(long nowMillis) {
+		int slot = getSlot(nowMillis);
+		if (slot < 0) {
+			return nowMillis < startMillis && charge.length > 0 ? startMillis : Long.MAX_VALUE;
+		}
+		return nextTransitionMillis[slot];
+	}
+
+	/**
+	 * Whether the plan still holds. It doesn't once the departure or settings change, it has run out before the
+	 * departure, or the vehicle is more than REPLAN_HOURS of charging away from the SoC the plan expected by now.
+	 * @param nowMillis Current time
+	 * @param soc Current SoC
+	 * @param chargeLimit Vehicle's charge limit
+	 * @param departureMillis Scheduled departure, or 0 if there isn't one
+	 * @param minimumDepartureSoC SoC required at departure, or 0
+	 * @param soCGainPerHour Approximate SoC gained per hour of charging
+	 * @return Whether the plan can still be followed
+	 */
+	boolean isValidFor(long nowMillis, double soc, double chargeLimit, long departureMillis, int minimumDepartureSoC, double soCGainPerHour) {
+		if (departureMillis != this.departureMillis && (departureMillis > nowMillis || this.departureMillis > nowMillis)) {
+			return false;
+		}
+		if (chargeLimit != this.chargeLimit || minimumDepartureSoC != this.minimumDepartureSoC || soCGainPerHour != this.soCGainPerHour) {
+			return false;
+		}
+		int slot = getSlot(nowMillis);
+		if (slot < 0) {
+			return charge.length == 0 || departureMillis <= nowMillis;
+		}
+		double expected = plannedSoC[slot];
+		if (charge[slot]) {
+			expected = Math.min(chargeLimit, expected + soCGainPerHour * (nowMillis - Math.max(createdMillis, getSlotStart(slot))) / HOUR_MILLIS);
+		}
+		return Math.abs(soc - expected) <= soCGainPerHour * REPLAN_HOURS;
+	}
+
+	/**
+	 * @return Hours the plan charges in
+	 */
+	double getChargeHours() {
+		double hours = 0;
+		for(int i = 0; i < charge.length; i++) {
+			if (charge[i]) {
+				hours += getSlotHours(i);
+			}
+		}
+		return hours;
+	}
+
+	/**
+	 * @return Plan for the admin status endpoint
+	 */
+	JSONObject toJSON() {
+		JSONArray slots = new JSONArray();
+		for(int i = 0; i < charge.length; i++) {
+			slots.put(new JSONObject()
+				.put("start", Math.max(createdMillis, getSlotStart(i)))
+				.put("forecast", prices[i])
+				.put("charge", charge[i]));
+		}
+		return new JSONObject()
+			.put("created", createdMillis)
+			.put("departure", departureMillis > 0 ? departureMillis : JSONObject.NULL)
+			.put("startSoC", startSoC)
+			.put("minimumDepartureSoC", minimumDepartureSoC)
+			.put("chargeHours", getChargeHours())
+			.put("slots", slots);
+	}
+
+	public String toString() {
+		if (charge.length == 0) {
+			return "no departure charging needed";
+		}
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < charge.length; i++) {
+			if (charge[i] && (i == 0 || !charge[i - 1])) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(RTPCharging.formatTime(Math.max(createdMillis, getSlotStart(i)))).append(" to ");
+			}
+			if (charge[i] && (i == charge.length - 1 || !charge[i + 1])) {
+				sb.append(RTPCharging.formatTime(Math.min(departureMillis, getSlotStart(i + 1))));
+			}
+		}
+		return sb.length() > 0 ? "charge " + sb : "no departure charging needed";
+	}
+
+	private int getSlot(long nowMillis) {
+		if (nowMillis < createdMillis || (departureMillis > 0 && nowMillis >= departureMillis)) {
+			return -1;
+		}
+		long slot = (nowMillis - startMillis) / HOUR_MILLIS;
+		return slot < charge.length ? (int) slot : -1;
+	}
+
+	private long getSlotStart(int slot) {
+		return startMillis + slot * HOUR_MILLIS;
+	}
+
+	private double getSlotHours(int slot) {
+		return getSlotHours(createdMillis, departureMillis, slot);
+	}
+
+	/**
+	 * @param createdMillis When the plan starts
+	 * @param departureMillis When the plan ends
+	 * @param slot Slot
+	 * @return Length of a slot in hours, less for the first and last ones
+	 */
+	private static double getSlotHours(long createdMillis, long departureMillis, int slot) {
+		long slotStart = createdMillis - createdMillis % HOUR_MILLIS + slot * HOUR_MILLIS;
+		long start = Math.max(createdMillis, slotStart);
+		long end = Math.min(departureMillis, slotStart + HOUR_MILLIS);
+		return Math.max(0, end - start) / (double) HOUR_MILLIS;
+	}
+}
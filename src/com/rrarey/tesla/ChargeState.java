@@ -0,0 +1,134 @@
+package com.rrarey.tesla;
+
+import org.json.JSONObject;
+
+import com.rrarey.web.JSONFieldValues;
+
+/**
+ * The charge_state fields the charging decision depends on.
+ */
+class ChargeState {
+	boolean hasChargingState = false;	// Set when the response had both charging_state and charge_port_door_open
+
+	String chargingState = "";			// "Stopped" when not charging but plugged in. "Disconnected" when unplugged. "Charging" when charging.
+	boolean chargePortOpen = false;		// true when door is open. Else false.
+	int minutesToFullCharge = 0;
+	double batteryLevel = 0;
+	double chargeLimit = 90;
+
+	long timestampMillis = 0;
+	int scheduledDepartureTime = 0;		// Seconds since January 1, 1970
+	boolean preconditioningEnabled = false;
+
+	double chargeCurrentRequest = 12;	// Charge current we'd like to see
+	double chargerActualCurrent = 12;	// Charge current we are currently seeing
+
+	/**
+	 * Reset every field to the value used when the response doesn't include it
+	 * @return this ChargeState
+	 */
+	ChargeState clear() {
+		hasChargingState = false;
+		chargingState = "";
+		chargePortOpen = false;
+		minutesToFullCharge = 0;
+		batteryLevel = 0;
+		chargeLimit = 90;
+		timestampMillis = 0;
+		scheduledDepartureTime = 0;
+		preconditioningEnabled = false;
+		chargeCurrentRequest = 12;
+		chargerActualCurrent = 12;
+		return this;
+	}
+
+	/**
+	 * Read fields from a charge_state response
+	 * @param chargeStateResponse charge_state JSON object
+	 * @return this ChargeState
+	 */
+	ChargeState update(JSONObject chargeStateResponse) {
+		clear();
+
+		if (chargeStateResponse.has("charging_state") && chargeStateResponse.has("charge_port_door_open")) {
+			hasChargingState = true;
+			minutesToFullCharge = chargeStateResponse.getInt("minutes_to_full_charge");
+			chargingState = chargeStateResponse.getString("charging_state");
+			chargePortOpen = chargeStateResponse.getBoolean("charge_port_door_open");
+			batteryLevel = chargeStateResponse.getDouble("usable_battery_level");
+			chargeLimit = chargeStateResponse.getDouble("charge_limit_soc");
+			timestampMillis = chargeStateResponse.getLong("timestamp");
+			scheduledDepartureTime = chargeStateResponse.getInt("scheduled_departure_time");
+			preconditioningEnabled = chargeStateResponse.getBoolean("preconditioning_enabled");
+		}
+
+		if (chargeStateResponse.has("charge_current_request") && !chargeStateResponse.isNull("charge_current_request")) {
+			chargeCurrentRequest = chargeStateResponse.getDouble("charge_current_request");
+		}
+
+		chargerActualCurrent = chargeCurrentRequest;
+		if (chargeStateResponse.has("charger_actual_current") && !chargeStateResponse.isNull("charger_actual_current")) {
+			chargerActualCurrent = chargeStateResponse.getDouble("charger_actual_current");
+		}
+
+		return this;
+	}
+
+	/**
+	 * Read fields from a streamed vehicle_data response
+	 * @param fields vehicle_data fields
+	 * @return this ChargeState
+	 */
+	ChargeState update(JSONFieldValues fields) {
+		clear();
+
+		if (fields.has(VehicleDataFields.CHARGING_STATE) && fields.has(VehicleDataFields.CHARGE_PORT_DOOR_OPEN)) {
+			hasChargingState = true;
+			minutesToFullCharge = fields.getInt(VehicleDataFields.MINUTES_TO_FULL_CHARGE, minutesToFullCharge);
+			chargingState = fields.getString(VehicleDataFields.CHARGING_STATE, chargingState);
+			chargePortOpen = fields.getBoolean(VehicleDataFields.CHARGE_PORT_DOOR_OPEN, chargePortOpen);
+			batteryLevel = fields.getDouble(VehicleDataFields.USABLE_BATTERY_LEVEL, batteryLevel);
+			chargeLimit = fields.getDouble(VehicleDataFields.CHARGE_LIMIT_SOC, chargeLimit);
+			timestampMillis = fields.getLong(VehicleDataFields.CHARGE_TIMESTAMP, timestampMillis);
+			scheduledDepartureTime = fields.getInt(VehicleDataFields.SCHEDULED_DEPARTURE_TIME, scheduledDepartureTime);
+			preconditioningEnabled = fields.getBoolean(VehicleDataFields.PRECONDITIONING_ENABLED, preconditioningEnabled);
+		}
+
+		chargeCurrentRequest = fields.getDouble(VehicleDataFields.CHARGE_CURRENT_REQUEST, chargeCurrentRequest);
+		chargerActualCurrent = fields.getDouble(VehicleDataFields.CHARGER_ACTUAL_CURRENT, chargeCurrentRequest);
+
+		return this;
+	}
+
+	/**
+	 * @return Whether the vehicle is plugged in with the charge port open
+	 */
+	boolean isPluggedIn() {
+		return chargePortOpen && chargingState != null && chargingState.length() > 0 && !chargingState.equals("Disconnected");
+	}
+
+	/**
+	 * @return Whether the vehicle reports that it is charging
+	 */
+	boolean isCharging() {
+		return chargingState != null && chargingState.toLowerCase().equals("charging");
+	}
+
+	/**
+	 * @return Scheduled departure in milliseconds since January 1, 1970, or 0 if preconditioning isn't enabled
+	 */
+	long getDepartureMillis() {
+		return preconditioningEnabled ? scheduledDepartureTime * 1000L : 0;
+	}
+
+	/**
+	 * @return Minutes until the scheduled departure, or 0 if there's no upcoming departure with preconditioning enabled
+	 */
+	int getMinutesToDeparture() {
+		int timestamp = (int) Math.floor(timestampMillis / 1000);
+		if (preconditioningEnabled && scheduledDepartureTime > timestamp) {
+			return (int) Math.floor((scheduledDepartureTime - timestamp) / 60);
+		}
+		return 0;
+	}
+}
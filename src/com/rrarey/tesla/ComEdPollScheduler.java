@@ -0,0 +1,208 @@
+package com.rrarey.tesla;
+
+import java.util.Arrays;
+
+/**
+ * Decides when to poll ComEd's 5-minute feed.
+ *
+ * ComEd doesn't publish each price on a fixed second, so the scheduler learns how long after a price's millisUTC it
+ * shows up. Each new price gives a range for that delay: after the last poll that didn't see it, and no later than
+ * the poll that did. Once enough delays have been seen, polling backs off between prices and resumes at the normal
+ * interval in a window covering nearly all of the learned delays. A price that hasn't appeared by the end of the
+ * window is still polled for at the normal interval until it shows up, so late prices are not seen any later than
+ * before. Only when it is more than a whole price interval past the window, and the feed has likely stalled, does
+ * polling back off until a new price arrives.
+ */
+class ComEdPollScheduler {
+	static final long PRICE_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+	// Poll this often between windows, in case a price comes out unusually early
+	static final long BACKOFF_INTERVAL_MILLIS = 2 * 60 * 1000;
+
+	// Delays needed before polling is adapted, and how many recent delays are kept (one day)
+	static final int
+		MIN_SAMPLES = 12,
+		SAMPLE_CAPACITY = 288
+	;
+
+	// Share of learned delays the polling window covers at each end
+	static final double
+		WINDOW_START_PERCENTILE = 0.02,
+		WINDOW_END_PERCENTILE = 0.98
+	;
+
+	// Publication delay ranges, in milliseconds after the price's millisUTC. Ring buffers of SAMPLE_CAPACITY.
+	private final long[]
+		earliestDelays = new long[SAMPLE_CAPACITY],
+		latestDelays = new long[SAMPLE_CAPACITY]
+	;
+	private int
+		sampleCount = 0,
+		nextSample = 0
+	;
+
+	// Polling window relative to the next price's expected millisUTC. Only used once there are MIN_SAMPLES delays.
+	private long
+		windowStartMillis = 0,
+		windowEndMillis = 0
+	;
+
+	private long
+		pollIntervalMillis,
+		lastPollMillis = 0,
+		latestMillisUTC = 0
+	;
+
+	// Stats
+	private long
+		polls = 0,
+		newPrices = 0
+	;
+	private double fixedIntervalPolls = 0;	// Polls a fixed POLL_INTERVAL_SECONDS schedule would have made
+
+	/**
+	 * @param pollIntervalSeconds Normal polling interval
+	 */
+	ComEdPollScheduler(int pollIntervalSeconds) {
+		setPollIntervalSeconds(pollIntervalSeconds);
+	}
+
+	synchronized void setPollIntervalSeconds(int pollIntervalSeconds) {
+		pollIntervalMillis = Math.max(1, pollIntervalSeconds) * 1000L;
+	}
+
+	/**
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return Whether ComEd should be polled now
+	 */
+	synchronized boolean isPollDue(long now) {
+		return now >= getNextPollMillis();
+	}
+
+	/**
+	 * @return Time of the next poll, in milliseconds since January 1, 1970
+	 */
+	synchronized long getNextPollMillis() {
+		long nextPoll = lastPollMillis + pollIntervalMillis;
+		if (sampleCount < MIN_SAMPLES || latestMillisUTC == 0) {
+			return nextPoll;
+		}
+
+		// Before the window: back off, but be there when it opens.
+		long expectedMillisUTC = latestMillisUTC + PRICE_INTERVAL_MILLIS;
+		long windowStart = expectedMillisUTC + windowStartMillis;
+		if (nextPoll < windowStart) {
+			return Math.min(windowStart, lastPollMillis + BACKOFF_INTERVAL_MILLIS);
+		}
+
+		// Inside the window, or the price is late: poll at the normal interval until it shows up.
+		if (nextPoll <= expectedMillisUTC + windowEndMillis + PRICE_INTERVAL_MILLIS) {
+			return nextPoll;
+		}
+
+		// A whole interval past the window, the feed has likely stalled: back off until a new price arrives.
+		return lastPollMillis + BACKOFF_INTERVAL_MILLIS;
+	}
+
+	/**
+	 * Record a completed poll
+	 * @param pollMillis Time the poll was sent, in milliseconds since January 1, 1970
+	 * @param newestMillisUTC millisUTC of the newest price after the poll, or 0 if there is none
+	 * @return Whether the poll found a new price
+	 */
+	synchronized boolean recordPoll(long pollMillis, long newestMillisUTC) {
+		boolean newPrice = newestMillisUTC > latestMillisUTC;
+
+		polls++;
+		if (lastPollMillis > 0) {
+			fixedIntervalPolls += (double) (pollMillis - lastPollMillis) / pollIntervalMillis;
+		} else {
+			fixedIntervalPolls++;
+		}
+
+		if (newPrice) {
+			// Only learn from the steady state, where exactly one new price appeared since a poll that didn't see it.
+			if (latestMillisUTC > 0 && lastPollMillis > 0 && newestMillisUTC - latestMillisUTC == PRICE_INTERVAL_MILLIS) {
+				addSample(lastPollMillis - newestMillisUTC, pollMillis - newestMillisUTC);
+			}
+			latestMillisUTC = newestMillisUTC;
+			newPrices++;
+		}
+
+		lastPollMillis = pollMillis;
+		return newPrice;
+	}
+
+	private void addSample(long earliestDelay, long latestDelay) {
+		earliestDelays[nextSample] = earliestDelay;
+		latestDelays[nextSample] = latestDelay;
+		nextSample = (nextSample + 1) % SAMPLE_CAPACITY;
+		if (sampleCount < SAMPLE_CAPACITY) {
+			sampleCount++;
+		}
+
+		if (sampleCount >= MIN_SAMPLES) {
+			windowStartMillis = percentile(earliestDelays, WINDOW_START_PERCENTILE);
+			windowEndMillis = percentile(latestDelays, WINDOW_END_PERCENTILE);
+		}
+	}
+
+	/**
+	 * @param delays Delays to look at. Only the first sampleCount are used.
+	 * @param p Percentile, from 0 to 1
+	 * @return Delay at the percentile
+	 */
+	private long percentile(long[] delays, double p) {
+		long[] sorted = Arrays.copyOf(delays, sampleCount);
+		Arrays.sort(sorted);
+		return sorted[(int) Math.min(sampleCount - 1, Math.floor(p * sampleCount))];
+	}
+
+	/**
+	 * @return Whether enough delays have been seen to adapt polling
+	 */
+	synchronized boolean isAdapted() {
+		return sampleCount >= MIN_SAMPLES;
+	}
+
+	/**
+	 * @return Polls made so far
+	 */
+	synchronized long getPolls() {
+		return polls;
+	}
+
+	/**
+	 * @return Polls saved compared to polling at a fixed interval
+	 */
+	synchronized long getPollsSaved() {
+		return Math.max(0, Math.round(fixedIntervalPolls) - polls);
+	}
+
+	/**
+	 * @return Number of new prices seen
+	 */
+	synchronized long getNewPrices() {
+		return newPrices;
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder()
+			.append(polls).append(" ComEd poll(s) for ").append(newPrices).append(" new price(s), ")
+			.append(getPollsSaved()).append(" saved vs. polling every ").append(pollIntervalMillis / 1000).append(" seconds");
+		if (sampleCount > 0) {
+			long[] midpoints = new long[sampleCount];
+			for(int i = 0; i < sampleCount; i++) {
+				midpoints[i] = (earliestDelays[i] + latestDelays[i]) / 2;
+			}
+			Arrays.sort(midpoints);
+			sb.append(". Publication delay over ").append(sampleCount).append(" price(s): median ")
+				.append(midpoints[sampleCount / 2] / 1000).append("s, range ")
+				.append(midpoints[0] / 1000).append("-").append(midpoints[sampleCount - 1] / 1000).append("s");
+		}
+		if (sampleCount >= MIN_SAMPLES) {
+			sb.append(". Polling window ").append(windowStartMillis / 1000).append("-").append(windowEndMillis / 1000).append("s after each price");
+		}
+		return sb.toString();
+	}
+}
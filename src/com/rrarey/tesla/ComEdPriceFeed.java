@@ -0,0 +1,262 @@
+package com.rrarey.tesla;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.rrarey.utils.ExceptionUtils;
+import com.rrarey.web.RESTRequest;
+
+/**
+ * Incremental reader for ComEd's 5-minute price feed.
+ * Remembers the newest millisUTC it has seen and only ingests entries after it. Once caught up, only the tail of
+ * the feed is requested using its datestart/dateend parameters, so each poll costs O(new entries).
+ */
+class ComEdPriceFeed {
+	static final String FEED_METHOD = "api?type=5minutefeed";
+
+	// Request the full feed instead of the tail when we haven't seen a new price for this long. This covers restarts,
+	// outages, and ComEd ignoring the date range.
+	static final long TAIL_WINDOW_MILLIS = 15 * 60 * 1000;
+
+	static final long
+		HOUR_MILLIS = 60 * 60 * 1000,
+		DAY_MILLIS = 24 * HOUR_MILLIS
+	;
+
+	// One week of 5-minute prices
+	static final int SERIES_CAPACITY = 7 * 24 * 12;
+
+	// ComEd's date range parameters are in Central time.
+	static final DateTimeFormatter dateRangeFormatter = DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneId.of("America/Chicago"));
+
+	private static final Logger logger = LogManager.getLogger(ComEdPriceFeed.class);
+
+	/**
+	 * Most recent price seen in the feed
+	 */
+	static final class Price {
+		final long millisUTC;
+		final double price;
+
+		Price(long millisUTC, double price) {
+			this.millisUTC = millisUTC;
+			this.price = price;
+		}
+	}
+
+	private final RESTRequest api;
+	private final PriceSeries series = new PriceSeries(SERIES_CAPACITY);
+	private Price latest = null;
+	private PriceHistoryStore historyStore = null;
+
+	// Scratch space for new entries found in one response, so they can be appended in time order.
+	private long[] newMillis = new long[16];
+	private double[] newPrices = new double[16];
+
+	ComEdPriceFeed(RESTRequest api) {
+		this.api = api;
+	}
+
+	/**
+	 * Also append every new price to a persistent history store
+	 * @param historyStore Store to append to, or null to stop storing prices
+	 */
+	synchronized void setHistoryStore(PriceHistoryStore historyStore) {
+		this.historyStore = historyStore;
+	}
+
+	/**
+	 * Request new prices from ComEd without blocking the calling thread
+	 * @return Future completed with the most recent price, or null if no price has been retrieved yet
+	 */
+	CompletableFuture<Price> pollAsync() {
+		return api.requestJSONAsync(getRequestMethod(System.currentTimeMillis())).handle((pricesResponse, ex) -> {
+			if (ex != null) {
+				logger.debug("ComEd price request failed: {}", ex.getMessage());
+			} else {
+				int newEntries = ingest(pricesResponse);
+				logger.debug("{} new ComEd price(s) received", newEntries);
+			}
+			return getLatest();
+		});
+	}
+
+	/**
+	 * The tail's range only depends on the newest price we have, so every poll until the next price arrives requests
+	 * the same URL and can be revalidated with a 304 instead of fetching and parsing it again. The range ends two tail
+	 * windows after the newest price, which is always at least one past now since the tail is only requested within
+	 * one window of it.
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return Feed method to request: the full feed, or just the tail after the newest price we have
+	 */
+	synchronized String getRequestMethod(long now) {
+		long latestMillisUTC = series.getLatestMillisUTC();
+		if (latestMillisUTC == 0 || now - latestMillisUTC > TAIL_WINDOW_MILLIS) {
+			return FEED_METHOD;
+		}
+		return FEED_METHOD +
+			"&datestart=" + dateRangeFormatter.format(Instant.ofEpochMilli(latestMillisUTC)) +
+			"&dateend=" + dateRangeFormatter.format(Instant.ofEpochMilli(latestMillisUTC + 2 * TAIL_WINDOW_MILLIS));
+	}
+
+	/**
+	 * Add any entries newer than the latest one we've seen to the series. Entries are scanned once, and ComEd's
+	 * ordering isn't trusted.
+	 * @param pricesResponse Feed response, in the {d: [...]} form returned by RESTRequest for arrays
+	 * @return Number of new entries
+	 */
+	synchronized int ingest(JSONObject pricesResponse) {
+		if (pricesResponse == null || !pricesResponse.has("d")) {
+			return 0;
+		}
+
+		long latestMillisUTC = series.getLatestMillisUTC();
+		JSONArray values = pricesResponse.getJSONArray("d");
+		int count = 0;
+		for(int i = 0; i < values.length(); i++) {
+			JSONObject value = values.optJSONObject(i);
+			if (value == null) {
+				continue;
+			}
+
+			try {
+				long millis = Long.parseLong(value.getString("millisUTC"));
+				if (millis <= latestMillisUTC) {
+					continue;
+				}
+				double price = value.getDouble("price");
+
+				if (count == newMillis.length) {
+					newMillis = Arrays.copyOf(newMillis, count * 2);
+					newPrices = Arrays.copyOf(newPrices, count * 2);
+				}
+				newMillis[count] = millis;
+				newPrices[count] = price;
+				count++;
+			} catch (Exception ex) { }
+		}
+
+		// ComEd lists the newest entry first, so reversing usually leaves the entries in time order and the
+		// insertion sort below has nothing left to do.
+		if (count > 1 && newMillis[0] > newMillis[count - 1]) {
+			for(int i = 0, j = count - 1; i < j; i++, j--) {
+				long m = newMillis[i];
+				newMillis[i] = newMillis[j];
+				newMillis[j] = m;
+				double p = newPrices[i];
+				newPrices[i] = newPrices[j];
+				newPrices[j] = p;
+			}
+		}
+		for(int i = 1; i < count; i++) {
+			long m = newMillis[i];
+			double p = newPrices[i];
+			int j = i;
+			while (j > 0 && newMillis[j - 1] > m) {
+				newMillis[j] = newMillis[j - 1];
+				newPrices[j] = newPrices[j - 1];
+				j--;
+			}
+			newMillis[j] = m;
+			newPrices[j] = p;
+		}
+
+		int added = 0;
+		for(int i = 0; i < count; i++) {
+			if (series.add(newMillis[i], newPrices[i])) {
+				added++;
+				if (historyStore != null) {
+					try {
+						historyStore.append(newMillis[i], newPrices[i]);
+					} catch (IOException ex) {
+						logger.warn("Could not store price history: {}", ExceptionUtils.getExceptionString(ex));
+					}
+				}
+			}
+		}
+
+		if (added > 0) {
+			latest = new Price(series.getLatestMillisUTC(), series.getLatestPrice());
+		}
+
+		return added;
+	}
+
+	/**
+	 * @return Most recent price, or null if no price has been retrieved yet
+	 */
+	synchronized Price getLatest() {
+		return latest;
+	}
+
+	/**
+	 * Forecast hourly prices from the same hours on the days before, since the 5-minute feed has no day-ahead prices.
+	 * Prices come from the history store when there is one, since it outlives restarts, and otherwise from the series.
+	 * @param fromMillis Time in the first hour to forecast
+	 * @param hours Number of hours to forecast
+	 * @return Average price of each hour over the past week, starting with the hour fromMillis is in. NaN for hours
+	 * there are no prices for.
+	 */
+	synchronized double[] forecastHourly(long fromMillis, int hours) {
+		if (historyStore == null) {
+			return forecastHourly(series, fromMillis, hours);
+		}
+		double[] forecast = new double[hours];
+		double[] sum = new double[1];
+		long hourStart = fromMillis - fromMillis % HOUR_MILLIS;
+		for(int h = 0; h < hours; h++, hourStart += HOUR_MILLIS) {
+			sum[0] = 0;
+			int count = 0;
+			for(int day = 1; day <= 7; day++) {
+				long start = hourStart - day * DAY_MILLIS;
+				count += historyStore.query(start, Math.min(start + HOUR_MILLIS, fromMillis), (millisUTC, price) -> sum[0] += price);
+			}
+			forecast[h] = count > 0 ? sum[0] / count : Double.NaN;
+		}
+		return forecast;
+	}
+
+	/**
+	 * Forecast hourly prices from a series, the same way as forecastHourly(long, int). Only prices before fromMillis
+	 * are used, so a replay doesn't see prices it hasn't reached yet.
+	 * @param series Prices
+	 * @param fromMillis Time in the first hour to forecast
+	 * @param hours Number of hours to forecast
+	 * @return Average price of each hour over the past week. NaN for hours there are no prices for.
+	 */
+	static double[] forecastHourly(PriceSeries series, long fromMillis, int hours) {
+		double[] forecast = new double[hours];
+		long hourStart = fromMillis - fromMillis % HOUR_MILLIS;
+		for(int h = 0; h < hours; h++, hourStart += HOUR_MILLIS) {
+			double sum = 0;
+			int count = 0;
+			for(int day = 1; day <= 7; day++) {
+				long start = hourStart - day * DAY_MILLIS;
+				long end = Math.min(start + HOUR_MILLIS, fromMillis);
+				for(int i = series.indexAtOrAfter(start); i < series.size() && series.getMillisUTC(i) < end; i++) {
+					sum += series.getPrice(i);
+					count++;
+				}
+			}
+			forecast[h] = count > 0 ? sum / count : Double.NaN;
+		}
+		return forecast;
+	}
+
+	/**
+	 * @return Series of every price seen since startup, up to SERIES_CAPACITY entries. Only read it while holding
+	 * this feed's lock.
+	 */
+	PriceSeries getSeries() {
+		return series;
+	}
+}
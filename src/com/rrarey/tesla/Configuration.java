@@ -0,0 +1,264 @@
+package com.rrarey.tesla;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.json.JSONObject;
+
+/**
+ * Settings that can change while the program is running, from the properties file or the admin endpoint.
+ *
+ * Immutable. A change publishes a whole new Configuration, so code that reads RTPCharging.configuration once and
+ * works from that copy always sees one consistent set of settings, e.g. a home latitude and longitude that belong
+ * together.
+ */
+final class Configuration {
+	// Close to the square of +/-0.0008 degrees that counted as home before there were zones
+	static final double DEFAULT_HOME_RADIUS_METERS = 80;
+
+	final double
+		homeLatitude,
+		homeLongitude,
+		homeRadiusMeters,
+		maxElectricityPrice,
+		soCGainPerHour
+	;
+	final int
+		minimumDepartureSoC,
+		pollIntervalSeconds
+	;
+	final boolean restartOnCurrentDrop;
+
+	// Zones other than home, as written in the GEOFENCES property
+	final String geofenceSpec;
+
+	// Home and the other zones, indexed
+	final Geofences geofences;
+
+	/**
+	 * @throws IllegalArgumentException When the home zone or one of the other zones isn't valid
+	 */
+	Configuration(double homeLatitude, double homeLongitude, double homeRadiusMeters, String geofenceSpec, double maxElectricityPrice, int minimumDepartureSoC, int pollIntervalSeconds, boolean restartOnCurrentDrop, double soCGainPerHour) {
+		this.homeLatitude = homeLatitude;
+		this.homeLongitude = homeLongitude;
+		this.homeRadiusMeters = homeRadiusMeters;
+		this.geofenceSpec = geofenceSpec == null ? "" : geofenceSpec.trim();
+		this.maxElectricityPrice = maxElectricityPrice;
+		this.minimumDepartureSoC = minimumDepartureSoC;
+		this.pollIntervalSeconds = pollIntervalSeconds;
+		this.restartOnCurrentDrop = restartOnCurrentDrop;
+		this.soCGainPerHour = soCGainPerHour;
+
+		List<Geofences.Zone> zones = Geofences.parse(this.geofenceSpec);
+		zones.add(0, new Geofences.Zone(Geofences.HOME, homeLatitude, homeLongitude, homeRadiusMeters));
+		geofences = new Geofences(zones);
+	}
+
+	/**
+	 * Read settings from the properties file. Settings that are missing or invalid get their defaults, except for the
+	 * home location, which we can't do without, and the zones, which would otherwise be silently missing.
+	 * @param prop Properties read from the file
+	 * @return Settings from the properties
+	 * @throws IllegalArgumentException When the home latitude/longitude is missing or invalid, or a zone is invalid
+	 */
+	static Configuration fromProperties(Properties prop) {
+		double homeLatitude, homeLongitude;
+		try {
+			homeLatitude = Double.parseDouble(prop.getProperty(RTPCharging.HOME_LATITUDE));
+			homeLongitude = Double.parseDouble(prop.getProperty(RTPCharging.HOME_LONGITUDE));
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid home latitude/longitude: " + ex.getMessage(), ex);
+		}
+
+		double homeRadiusMeters;
+		try {
+			homeRadiusMeters = Double.parseDouble(prop.getProperty(RTPCharging.HOME_RADIUS_METERS));
+		} catch (Exception ex) {
+			homeRadiusMeters = DEFAULT_HOME_RADIUS_METERS;
+		}
+
+		double maxElectricityPrice;
+		try {
+			maxElectricityPrice = Double.parseDouble(prop.getProperty(RTPCharging.MAX_ELECTRICITY_PRICE));
+		} catch (Exception ex) {
+			maxElectricityPrice = 6;
+		}
+
+		int pollIntervalSeconds;
+		try {
+			pollIntervalSeconds = Integer.parseInt(prop.getProperty(RTPCharging.POLL_INTERVAL_SECONDS));
+		} catch (Exception ex) {
+			pollIntervalSeconds = 30;
+		}
+
+		int minimumDepartureSoC;
+		try {
+			minimumDepartureSoC = Integer.parseInt(prop.getProperty(RTPCharging.MINIMUM_DEPARTURE_SOC));
+		} catch (Exception ex) {
+			minimumDepartureSoC = 0;
+		}
+
+		double soCGainPerHour;
+		try {
+			soCGainPerHour = Double.parseDouble(prop.getProperty(RTPCharging.SOC_GAIN_PER_HOUR));
+		} catch (Exception ex) {
+			soCGainPerHour = 0;
+			minimumDepartureSoC = 0;
+		}
+
+		boolean restartOnCurrentDrop = "y".equalsIgnoreCase(prop.getProperty(RTPCharging.RESTART_ON_CURRENT_DROP));
+
+		return new Configuration(homeLatitude, homeLongitude, homeRadiusMeters, prop.getProperty(RTPCharging.GEOFENCES), maxElectricityPrice, minimumDepartureSoC, pollIntervalSeconds, restartOnCurrentDrop, soCGainPerHour);
+	}
+
+	/**
+	 * Settings from the admin endpoint are checked strictly. Every value must be valid, or nothing changes.
+	 * @param changes Property keys (e.g. MAX_ELECTRICITY_PRICE) and their new values
+	 * @return Copy of these settings with the changes
+	 * @throws IllegalArgumentException When a key can't be changed at runtime or a value is invalid
+	 */
+	Configuration withChanges(JSONObject changes) {
+		double
+			newHomeLatitude = homeLatitude,
+			newHomeLongitude = homeLongitude,
+			newHomeRadiusMeters = homeRadiusMeters,
+			newMaxElectricityPrice = maxElectricityPrice,
+			newSoCGainPerHour = soCGainPerHour
+		;
+		int
+			newMinimumDepartureSoC = minimumDepartureSoC,
+			newPollIntervalSeconds = pollIntervalSeconds
+		;
+		boolean newRestartOnCurrentDrop = restartOnCurrentDrop;
+		String newGeofenceSpec = geofenceSpec;
+
+		for(String key : changes.keySet()) {
+			String value = String.valueOf(changes.get(key)).trim();
+			switch (key) {
+				case RTPCharging.HOME_LATITUDE:
+					newHomeLatitude = parseSetting(key, value, -90, 90);
+					break;
+				case RTPCharging.HOME_LONGITUDE:
+					newHomeLongitude = parseSetting(key, value, -180, 180);
+					break;
+				case RTPCharging.HOME_RADIUS_METERS:
+					newHomeRadiusMeters = parseSetting(key, value, 1, Geofences.MAX_RADIUS_METERS);
+					break;
+				case RTPCharging.GEOFENCES:
+					newGeofenceSpec = value;
+					break;
+				case RTPCharging.MAX_ELECTRICITY_PRICE:
+					newMaxElectricityPrice = parseSetting(key, value, -1000, 1000);
+					break;
+				case RTPCharging.MINIMUM_DEPARTURE_SOC:
+					newMinimumDepartureSoC = parseWholeSetting(key, value, 0, 100);
+					break;
+				case RTPCharging.POLL_INTERVAL_SECONDS:
+					newPollIntervalSeconds = parseWholeSetting(key, value, 1, 300);
+					break;
+				case RTPCharging.RESTART_ON_CURRENT_DROP:
+					if (value.equalsIgnoreCase("y") || value.equalsIgnoreCase("true")) {
+						newRestartOnCurrentDrop = true;
+					} else if (value.equalsIgnoreCase("n") || value.equalsIgnoreCase("false")) {
+						newRestartOnCurrentDrop = false;
+					} else {
+						throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+					}
+					break;
+				case RTPCharging.SOC_GAIN_PER_HOUR:
+					newSoCGainPerHour = parseSetting(key, value, 0, 100);
+					break;
+				default:
+					throw new IllegalArgumentException(key + " can't be changed while running");
+			}
+		}
+
+		return new Configuration(newHomeLatitude, newHomeLongitude, newHomeRadiusMeters, newGeofenceSpec, newMaxElectricityPrice, newMinimumDepartureSoC, newPollIntervalSeconds, newRestartOnCurrentDrop, newSoCGainPerHour);
+	}
+
+	/**
+	 * @param key Property key, for the error message
+	 * @param value Value to parse
+	 * @param min Smallest allowed value
+	 * @param max Largest allowed value
+	 * @return Parsed value
+	 * @throws IllegalArgumentException When the value isn't a number within range
+	 */
+	private static double parseSetting(String key, String value, double min, double max) {
+		double parsed;
+		try {
+			parsed = Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+		}
+		if (!(parsed >= min && parsed <= max)) {
+			throw new IllegalArgumentException(key + " must be between " + min + " and " + max);
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param key Property key, for the error message
+	 * @param value Value to parse
+	 * @param min Smallest allowed value
+	 * @param max Largest allowed value
+	 * @return Parsed value
+	 * @throws IllegalArgumentException When the value isn't a whole number within range
+	 */
+	private static int parseWholeSetting(String key, String value, int min, int max) {
+		double parsed = parseSetting(key, value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		if (parsed != Math.rint(parsed) || parsed < min || parsed > max) {
+			throw new IllegalArgumentException(key + " must be a whole number between " + min + " and " + max);
+		}
+		return (int) parsed;
+	}
+
+	/**
+	 * @return Whether charging may be forced to reach the minimum departure SoC
+	 */
+	boolean shouldChargeForDeparture() {
+		return minimumDepartureSoC > 0 && soCGainPerHour > 0;
+	}
+
+	/**
+	 * @return Settings keyed by property name
+	 */
+	JSONObject toJSON() {
+		return new JSONObject()
+			.put(RTPCharging.HOME_LATITUDE, homeLatitude)
+			.put(RTPCharging.HOME_LONGITUDE, homeLongitude)
+			.put(RTPCharging.HOME_RADIUS_METERS, homeRadiusMeters)
+			.put(RTPCharging.GEOFENCES, geofenceSpec)
+			.put(RTPCharging.MAX_ELECTRICITY_PRICE, maxElectricityPrice)
+			.put(RTPCharging.MINIMUM_DEPARTURE_SOC, minimumDepartureSoC)
+			.put(RTPCharging.POLL_INTERVAL_SECONDS, pollIntervalSeconds)
+			.put(RTPCharging.RESTART_ON_CURRENT_DROP, restartOnCurrentDrop ? "Y" : "N")
+			.put(RTPCharging.SOC_GAIN_PER_HOUR, soCGainPerHour);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Configuration)) {
+			return false;
+		}
+		Configuration other = (Configuration) o;
+		return Double.compare(homeLatitude, other.homeLatitude) == 0
+			&& Double.compare(homeLongitude, other.homeLongitude) == 0
+			&& Double.compare(homeRadiusMeters, other.homeRadiusMeters) == 0
+			&& geofenceSpec.equals(other.geofenceSpec)
+			&& Double.compare(maxElectricityPrice, other.maxElectricityPrice) == 0
+			&& Double.compare(soCGainPerHour, other.soCGainPerHour) == 0
+			&& minimumDepartureSoC == other.minimumDepartureSoC
+			&& pollIntervalSeconds == other.pollIntervalSeconds
+			&& restartOnCurrentDrop == other.restartOnCurrentDrop;
+	}
+
+	@Override
+	public int hashCode() {
+		return toJSON().toString().hashCode();
+	}
+
+	public String toString() {
+		return toJSON().toString();
+	}
+}
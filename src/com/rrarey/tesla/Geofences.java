@@ -0,0 +1,315 @@
+package com.rrarey.tesla;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Named circular zones (home, work, favorite superchargers, ...) and a spatial index for finding which one a
+ * location is in.
+ *
+ * Zones are indexed on a grid of CELL_DEGREES cells, in an open-addressing table keyed by cell, so a lookup only looks
+ * at the zones overlapping one cell no matter how many zones there are. Each of those is first checked with an
+ * equirectangular approximation, which is just a few multiplications. Only a location within EDGE_BAND of a zone's
+ * radius gets an exact haversine distance. Lookups don't allocate.
+ *
+ * Immutable once built, so it can be shared by every vehicle thread.
+ */
+final class Geofences {
+	static final String HOME = "home";
+
+	// Grid cell size, about 1.1 km north-south
+	static final double CELL_DEGREES = 0.01;
+
+	// Largest zone allowed, so a zone never covers an unreasonable number of cells
+	static final double MAX_RADIUS_METERS = 10000;
+
+	// The equirectangular distance is within a fraction of a percent of the real one at these sizes. Locations
+	// within this fraction of a zone's radius, inside or out, are checked exactly.
+	static final double EDGE_BAND = 0.01;
+
+	static final double
+		EARTH_RADIUS_METERS = 6371000,
+		METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180
+	;
+
+	/**
+	 * Circular zone
+	 */
+	static final class Zone {
+		final String name;
+		final double
+			latitude,
+			longitude,
+			radiusMeters
+		;
+
+		Zone(String name, double latitude, double longitude, double radiusMeters) {
+			if (!(latitude >= -90 && latitude <= 90) || !(longitude >= -180 && longitude <= 180)) {
+				throw new IllegalArgumentException("Invalid location for zone " + name + ": " + latitude + "," + longitude);
+			}
+			if (!(radiusMeters > 0 && radiusMeters <= MAX_RADIUS_METERS)) {
+				throw new IllegalArgumentException("Radius of zone " + name + " must be more than 0 and at most " + (int) MAX_RADIUS_METERS + " meters");
+			}
+			this.name = name;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.radiusMeters = radiusMeters;
+		}
+
+		public String toString() {
+			return name + ":" + latitude + "," + longitude + "," + radiusMeters;
+		}
+	}
+
+	private final List<Zone> zones;
+	private final int homeZone;
+
+	// Per zone, in the same order as zones
+	private final double[]
+		latitude,
+		longitude,
+		cosLatitude,
+		innerSquared,	// Squared radius, in degrees of latitude, inside of which a location is surely in the zone
+		outerSquared,	// Squared radius, in degrees of latitude, outside of which a location is surely not
+		radiusMeters
+	;
+
+	// Cell table: open addressing with linear probing. cellZones[i] holds the zones overlapping cell cellKeys[i],
+	// smallest first, or is null for an empty slot.
+	private final long[] cellKeys;
+	private final int[][] cellZones;
+	private final int cellMask;
+
+	/**
+	 * @param zones Zones to index. Later zones with the same name as an earlier one are ignored.
+	 */
+	Geofences(List<Zone> zones) {
+		List<Zone> unique = new ArrayList<Zone>();
+		List<String> names = new ArrayList<String>();
+		for(Zone zone : zones) {
+			if (!names.contains(zone.name)) {
+				names.add(zone.name);
+				unique.add(zone);
+			}
+		}
+		// Smallest zones first, so the most specific zone is found first where zones overlap
+		unique.sort((a, b) -> Double.compare(a.radiusMeters, b.radiusMeters));
+		this.zones = Collections.unmodifiableList(unique);
+
+		int count = unique.size();
+		latitude = new double[count];
+		longitude = new double[count];
+		cosLatitude = new double[count];
+		innerSquared = new double[count];
+		outerSquared = new double[count];
+		radiusMeters = new double[count];
+		int home = -1;
+
+		List<long[]> cells = new ArrayList<long[]>();	// { cell key, zone }
+		for(int z = 0; z < count; z++) {
+			Zone zone = unique.get(z);
+			if (zone.name.equals(HOME)) {
+				home = z;
+			}
+			latitude[z] = zone.latitude;
+			longitude[z] = zone.longitude;
+			cosLatitude[z] = Math.cos(Math.toRadians(zone.latitude));
+			radiusMeters[z] = zone.radiusMeters;
+			double radiusDegrees = zone.radiusMeters / METERS_PER_DEGREE;
+			innerSquared[z] = square(radiusDegrees * (1 - EDGE_BAND));
+			outerSquared[z] = square(radiusDegrees * (1 + EDGE_BAND));
+
+			// Every cell the zone's bounding box touches, with some room for the approximation
+			double latitudeDegrees = radiusDegrees * (1 + EDGE_BAND);
+			double longitudeDegrees = latitudeDegrees / Math.max(cosLatitude[z], 0.01);
+			int minRow = cell(zone.latitude - latitudeDegrees), maxRow = cell(zone.latitude + latitudeDegrees);
+			int minColumn = cell(zone.longitude - longitudeDegrees), maxColumn = cell(zone.longitude + longitudeDegrees);
+			for(int row = minRow; row <= maxRow; row++) {
+				for(int column = minColumn; column <= maxColumn; column++) {
+					cells.add(new long[] { key(row, column), z });
+				}
+			}
+		}
+		homeZone = home;
+
+		int tableSize = Integer.highestOneBit(Math.max(4, cells.size() * 2) - 1) << 1;
+		cellKeys = new long[tableSize];
+		cellZones = new int[tableSize][];
+		cellMask = tableSize - 1;
+		for(long[] cell : cells) {
+			int slot = findSlot(cell[0]);
+			cellKeys[slot] = cell[0];
+			int[] existing = cellZones[slot];
+			int[] updated = existing == null ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+			// Zones are added in size order, so each cell's list stays smallest first
+			updated[updated.length - 1] = (int) cell[1];
+			cellZones[slot] = updated;
+		}
+	}
+
+	/**
+	 * Read zones written as name:latitude,longitude,radiusMeters and separated by semicolons, e.g.
+	 * "work:41.8789,-87.6359,150;supercharger:41.9,-87.7,100"
+	 * @param spec Zones, or null/empty for none
+	 * @return Zones
+	 * @throws IllegalArgumentException When a zone isn't valid
+	 */
+	static List<Zone> parse(String spec) {
+		List<Zone> zones = new ArrayList<Zone>();
+		if (spec == null || spec.trim().isEmpty()) {
+			return zones;
+		}
+		for(String entry : spec.split(";")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			int colon = entry.indexOf(':');
+			String[] parts = colon > 0 ? entry.substring(colon + 1).split(",") : new String[0];
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("Zone must be name:latitude,longitude,radiusMeters: " + entry);
+			}
+			String name = entry.substring(0, colon).trim();
+			if (name.equalsIgnoreCase(HOME)) {
+				throw new IllegalArgumentException("Home is set with HOME_LATITUDE, HOME_LONGITUDE and HOME_RADIUS_METERS");
+			}
+			try {
+				zones.add(new Zone(name, Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[2].trim())));
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid number in zone " + entry);
+			}
+		}
+		return zones;
+	}
+
+	/**
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @return Index of the smallest zone the location is in, or -1 if it isn't in any
+	 */
+	int find(double latitude, double longitude) {
+		int slot = findSlot(key(cell(latitude), cell(longitude)));
+		int[] candidates = cellZones[slot];
+		if (candidates == null) {
+			return -1;
+		}
+		for(int z : candidates) {
+			if (contains(z, latitude, longitude)) {
+				return z;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @return Name of the smallest zone the location is in, or null if it isn't in any
+	 */
+	String findName(double latitude, double longitude) {
+		int z = find(latitude, longitude);
+		return z >= 0 ? zones.get(z).name : null;
+	}
+
+	/**
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @return Whether the location is in the home zone
+	 */
+	boolean isAtHome(double latitude, double longitude) {
+		return homeZone >= 0 && contains(homeZone, latitude, longitude);
+	}
+
+	/**
+	 * @param location Location
+	 * @return Whether the location is in the home zone
+	 */
+	boolean isAtHome(VehicleLocation location) {
+		return isAtHome(location.getLatitude(), location.getLongitude());
+	}
+
+	/**
+	 * @param z Zone index
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @return Whether the location is in the zone
+	 */
+	boolean contains(int z, double latitude, double longitude) {
+		double dLatitude = latitude - this.latitude[z];
+		double dLongitude = (longitude - this.longitude[z]) * cosLatitude[z];
+		double distanceSquared = dLatitude * dLatitude + dLongitude * dLongitude;
+		if (distanceSquared <= innerSquared[z]) {
+			return true;
+		}
+		if (distanceSquared > outerSquared[z]) {
+			return false;
+		}
+		return distanceMeters(this.latitude[z], this.longitude[z], latitude, longitude) <= radiusMeters[z];
+	}
+
+	/**
+	 * @return Zones, smallest first
+	 */
+	List<Zone> getZones() {
+		return zones;
+	}
+
+	/**
+	 * @return Zones as JSON, for the admin status endpoint
+	 */
+	JSONArray toJSON() {
+		JSONArray json = new JSONArray();
+		for(Zone zone : zones) {
+			json.put(new JSONObject()
+				.put("name", zone.name)
+				.put("latitude", zone.latitude)
+				.put("longitude", zone.longitude)
+				.put("radiusMeters", zone.radiusMeters));
+		}
+		return json;
+	}
+
+	/**
+	 * Great-circle distance with the haversine formula
+	 * @return Distance in meters
+	 */
+	static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sinLatitude * sinLatitude + sinLongitude * sinLongitude * Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2));
+		return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	private int findSlot(long key) {
+		int slot = (int) mix(key) & cellMask;
+		while (cellZones[slot] != null && cellKeys[slot] != key) {
+			slot = (slot + 1) & cellMask;
+		}
+		return slot;
+	}
+
+	private static int cell(double degrees) {
+		return (int) Math.floor(degrees / CELL_DEGREES);
+	}
+
+	private static long key(int row, int column) {
+		return ((long) row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	// Spread cell keys over the table, since neighboring cells differ only in their low bits
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static double square(double x) {
+		return x * x;
+	}
+}
@@ -0,0 +1,230 @@
+package com.rrarey.tesla;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Recent locations of one vehicle since it was last seen at home, in a fixed-size ring of parallel primitive arrays.
+ *
+ * Whether the vehicle has stopped is worked out as each sample arrives, so reading it takes constant time instead of
+ * a walk over the whole history. The vehicle counts as stopped when the latest samples are all at the same place
+ * (distance 0, see VehicleLocation.distance), and it stopped at the first of them. When the ring is full, the oldest
+ * samples are overwritten.
+ *
+ * The vehicle's own iteration adds samples, but the admin status endpoint reads them from another thread, so every
+ * method is synchronized. The lock is never contended in the vehicle loop.
+ */
+class LocationHistory {
+	static final int DEFAULT_CAPACITY = 250;
+
+	private static final byte
+		GOING_HOME = 1,
+		GOING_AWAY_FROM_HOME = 2
+	;
+
+	private final int capacity;
+	private final double[]
+		latitude,
+		longitude,
+		speed,
+		heading,
+		minutesToArrival
+	;
+	private final long[] timestamp;		// Seconds since January 1, 1970
+	private final byte[] navigation;
+
+	// Samples ever added since the last clear. Sample n is at index n % capacity while it is still in the ring.
+	private long added = 0;
+
+	// Sample the current stop started at, or -1 if the vehicle isn't stopped
+	private long stopStart = -1;
+
+	LocationHistory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	LocationHistory(int capacity) {
+		this.capacity = capacity;
+		latitude = new double[capacity];
+		longitude = new double[capacity];
+		speed = new double[capacity];
+		heading = new double[capacity];
+		minutesToArrival = new double[capacity];
+		timestamp = new long[capacity];
+		navigation = new byte[capacity];
+	}
+
+	/**
+	 * Add a sample, updating whether the vehicle is stopped
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @param speed Speed
+	 * @param heading Heading
+	 * @param timestampSeconds When the sample was taken, in seconds since January 1, 1970
+	 * @param minutesToArrival Minutes to the navigation destination, or 0 if not navigating
+	 * @param goingHome Whether the vehicle is navigating home
+	 * @param goingAwayFromHome Whether the vehicle is navigating somewhere other than home
+	 */
+	synchronized void add(double latitude, double longitude, double speed, double heading, long timestampSeconds, double minutesToArrival, boolean goingHome, boolean goingAwayFromHome) {
+		if (added > 0) {
+			int last = (int) ((added - 1) % capacity);
+			if (VehicleLocation.distance(this.latitude[last], this.longitude[last], latitude, longitude) == 0) {
+				if (stopStart < 0) {
+					stopStart = added - 1;
+				}
+			} else {
+				stopStart = -1;
+			}
+		}
+
+		int i = (int) (added % capacity);
+		this.latitude[i] = latitude;
+		this.longitude[i] = longitude;
+		this.speed[i] = speed;
+		this.heading[i] = heading;
+		this.minutesToArrival[i] = minutesToArrival;
+		this.timestamp[i] = timestampSeconds;
+		navigation[i] = (byte) ((goingHome ? GOING_HOME : 0) | (goingAwayFromHome ? GOING_AWAY_FROM_HOME : 0));
+		added++;
+	}
+
+	/**
+	 * Forget every sample, e.g. when the vehicle is seen at home and a new trip starts
+	 */
+	synchronized void clear() {
+		added = 0;
+		stopStart = -1;
+	}
+
+	/**
+	 * @return Number of samples held
+	 */
+	synchronized int size() {
+		return (int) Math.min(added, capacity);
+	}
+
+	/**
+	 * @return Index of the latest sample. Only valid when there are samples.
+	 */
+	private int latest() {
+		return (int) ((added - 1) % capacity);
+	}
+
+	/**
+	 * @return Latitude of the latest sample. Only valid when there are samples.
+	 */
+	synchronized double getLatestLatitude() {
+		return latitude[latest()];
+	}
+
+	/**
+	 * @return Longitude of the latest sample. Only valid when there are samples.
+	 */
+	synchronized double getLatestLongitude() {
+		return longitude[latest()];
+	}
+
+	/**
+	 * @return When the latest sample was taken, in seconds since January 1, 1970. Only valid when there are samples.
+	 */
+	synchronized long getLatestTimestampSeconds() {
+		return timestamp[latest()];
+	}
+
+	/**
+	 * @return Expected arrival at the navigation destination as of the latest sample, in seconds since January 1, 1970.
+	 * Only valid when there are samples.
+	 */
+	synchronized long getLatestArrivalTimeSeconds() {
+		int i = latest();
+		return timestamp[i] + (long) Math.floor(minutesToArrival[i] * 60);
+	}
+
+	/**
+	 * @return Whether the vehicle was navigating home as of the latest sample
+	 */
+	synchronized boolean isLatestGoingHome() {
+		return added > 0 && (navigation[latest()] & GOING_HOME) != 0;
+	}
+
+	/**
+	 * @return Whether the vehicle was navigating somewhere other than home as of the latest sample
+	 */
+	synchronized boolean isLatestGoingAwayFromHome() {
+		return added > 0 && (navigation[latest()] & GOING_AWAY_FROM_HOME) != 0;
+	}
+
+	/**
+	 * @return Whether the latest samples show the vehicle staying in one place
+	 */
+	synchronized boolean isStopped() {
+		return stopStart >= 0;
+	}
+
+	/**
+	 * @return First sample of the current stop, as a sequence number. Samples that have been overwritten don't count,
+	 * so this is never older than the oldest sample held.
+	 */
+	private long getStopStart() {
+		return Math.max(stopStart, added - capacity);
+	}
+
+	/**
+	 * @return When the vehicle arrived at its current stop, in seconds since January 1, 1970. Only valid when stopped.
+	 */
+	synchronized long getStoppedSinceSeconds() {
+		return timestamp[(int) (getStopStart() % capacity)];
+	}
+
+	/**
+	 * @return Latitude of the current stop. Only valid when stopped.
+	 */
+	synchronized double getStopLatitude() {
+		return latitude[(int) (getStopStart() % capacity)];
+	}
+
+	/**
+	 * @return Longitude of the current stop. Only valid when stopped.
+	 */
+	synchronized double getStopLongitude() {
+		return longitude[(int) (getStopStart() % capacity)];
+	}
+
+	/**
+	 * Whether a new sample would only repeat the stop we already know about. Two samples in a row at one place are
+	 * all it takes to decide the vehicle has stopped, so there is no point filling the history with more.
+	 * @param latitude Latitude of the new location
+	 * @param longitude Longitude of the new location
+	 * @return Whether the latest two samples and the new location are all at the same place
+	 */
+	synchronized boolean isRepeatOfStop(double latitude, double longitude) {
+		if (added < 2 || stopStart < 0) {
+			return false;
+		}
+		int last = latest();
+		return VehicleLocation.distance(this.latitude[last], this.longitude[last], latitude, longitude) == 0;
+	}
+
+	/**
+	 * @return Samples oldest first, for the admin status endpoint
+	 */
+	synchronized JSONObject toJSON() {
+		JSONArray samples = new JSONArray();
+		for(long n = Math.max(0, added - capacity); n < added; n++) {
+			int i = (int) (n % capacity);
+			samples.put(new JSONObject()
+				.put("latitude", latitude[i])
+				.put("longitude", longitude[i])
+				.put("speed", speed[i])
+				.put("heading", heading[i])
+				.put("timestamp", timestamp[i])
+				.put("minutesToArrival", minutesToArrival[i])
+				.put("goingHome", (navigation[i] & GOING_HOME) != 0)
+				.put("goingAwayFromHome", (navigation[i] & GOING_AWAY_FROM_HOME) != 0));
+		}
+
+		return new JSONObject()
+			.put("stoppedSince", stopStart >= 0 ? getStoppedSinceSeconds() : JSONObject.NULL)
+			.put("samples", samples);
+	}
+}
@@ -0,0 +1,247 @@
+package com.rrarey.tesla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only store of 5-minute prices in a fixed-width binary file, written through a MappedByteBuffer.
+ *
+ * File layout:
+ *	Header (32 bytes): magic, version, record count, reserved
+ *	Records (16 bytes each): millisUTC (long), price (double), in increasing time order
+ *
+ * The record count in the header is only updated after a record is written, so a crash mid-append loses at most
+ * that record. A sparse in-memory index holding every INDEX_INTERVAL'th timestamp narrows range queries down to
+ * one block before scanning.
+ */
+public class PriceHistoryStore implements Closeable {
+	static final int
+		MAGIC = 0x52545048,		// "RTPH"
+		VERSION = 1,
+		HEADER_SIZE = 32,
+		RECORD_SIZE = 16,
+		COUNT_OFFSET = 8,
+		INDEX_INTERVAL = 64,
+		GROWTH_RECORDS = 65536	// Grow the file by about a month of 5-minute prices at a time (1 MB)
+	;
+
+	/**
+	 * Receives prices from a range query
+	 */
+	public interface PriceConsumer {
+		void accept(long millisUTC, double price);
+	}
+
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private MappedByteBuffer buffer;
+	private int count = 0;
+
+	// Sparse index: sparseIndex[i] is the timestamp of record i * INDEX_INTERVAL.
+	private long[] sparseIndex = new long[64];
+
+	private PriceHistoryStore(FileChannel channel, boolean readOnly) throws IOException {
+		this.channel = channel;
+		this.readOnly = readOnly;
+
+		long fileSize = channel.size();
+		if (readOnly) {
+			if (fileSize < HEADER_SIZE) {
+				throw new IOException("Not a price history file");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		} else if (fileSize == 0) {
+			map(0);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(COUNT_OFFSET, 0);
+		} else {
+			map((int) Math.max(0, (fileSize - HEADER_SIZE) / RECORD_SIZE));
+		}
+
+		if (fileSize > 0) {
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("Not a price history file");
+			}
+
+			// Never trust a count that runs past the end of the file.
+			long storedCount = buffer.getLong(COUNT_OFFSET);
+			count = (int) Math.max(0, Math.min(storedCount, (fileSize - HEADER_SIZE) / RECORD_SIZE));
+			for(int i = 0; i < count; i += INDEX_INTERVAL) {
+				addToIndex(i);
+			}
+		}
+	}
+
+	/**
+	 * Open a price history file, creating it if it doesn't exist
+	 * @param fileName Path to the file
+	 * @return Open PriceHistoryStore
+	 * @throws IOException When the file can't be opened or isn't a price history file
+	 */
+	public static PriceHistoryStore open(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new PriceHistoryStore(channel, false);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Open an existing price history file for reading only. The file is never created, grown or written to.
+	 * @param fileName Path to the file
+	 * @return Open PriceHistoryStore, which can't be appended to
+	 * @throws IOException When the file doesn't exist, can't be opened or isn't a price history file
+	 */
+	public static PriceHistoryStore openReadOnly(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			return new PriceHistoryStore(channel, true);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Append a price. Prices that are not newer than the last stored price are ignored.
+	 * @param millisUTC Time of the price, in milliseconds since January 1, 1970
+	 * @param price Price in cents per kWh
+	 * @return Whether the price was stored
+	 * @throws IOException When the file can't be grown, or was opened read-only
+	 */
+	public synchronized boolean append(long millisUTC, double price) throws IOException {
+		if (readOnly) {
+			throw new IOException("Price history was opened read-only");
+		}
+		if (count > 0 && millisUTC <= getMillisUTC(count - 1)) {
+			return false;
+		}
+
+		int offset = HEADER_SIZE + count * RECORD_SIZE;
+		if (offset + RECORD_SIZE > buffer.capacity()) {
+			map(count + 1);
+		}
+
+		buffer.putLong(offset, millisUTC);
+		buffer.putDouble(offset + 8, price);
+		if (count % INDEX_INTERVAL == 0) {
+			addToIndex(count);
+		}
+		count++;
+		buffer.putLong(COUNT_OFFSET, count);
+		return true;
+	}
+
+	/**
+	 * @return Number of stored prices
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @param i Record number, where 0 is the oldest price
+	 * @return Time of the price, in milliseconds since January 1, 1970
+	 */
+	public synchronized long getMillisUTC(int i) {
+		return buffer.getLong(HEADER_SIZE + i * RECORD_SIZE);
+	}
+
+	/**
+	 * @param i Record number, where 0 is the oldest price
+	 * @return Price in cents per kWh
+	 */
+	public synchronized double getPrice(int i) {
+		return buffer.getDouble(HEADER_SIZE + i * RECORD_SIZE + 8);
+	}
+
+	/**
+	 * Find the first record at or after a point in time, using the sparse index and then a scan of one block.
+	 * @param millisUTC Time in milliseconds since January 1, 1970
+	 * @return Record number of the first price at or after the time, or size() if there is none
+	 */
+	public synchronized int indexAtOrAfter(long millisUTC) {
+		int blocks = (count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+
+		// Last block starting at or before the requested time
+		int low = 0, high = blocks;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sparseIndex[mid] <= millisUTC) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		int i = Math.max(0, low - 1) * INDEX_INTERVAL;
+		while (i < count && getMillisUTC(i) < millisUTC) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Pass every price from fromMillisUTC (inclusive) to toMillisUTC (exclusive) to a consumer
+	 * @param fromMillisUTC Start of the range, in milliseconds since January 1, 1970
+	 * @param toMillisUTC End of the range, in milliseconds since January 1, 1970
+	 * @param consumer Consumer for each price in the range
+	 * @return Number of prices in the range
+	 */
+	public synchronized int query(long fromMillisUTC, long toMillisUTC, PriceConsumer consumer) {
+		int found = 0;
+		for(int i = indexAtOrAfter(fromMillisUTC); i < count; i++) {
+			long millisUTC = getMillisUTC(i);
+			if (millisUTC >= toMillisUTC) {
+				break;
+			}
+			consumer.accept(millisUTC, getPrice(i));
+			found++;
+		}
+		return found;
+	}
+
+	/**
+	 * Flush written prices to disk
+	 */
+	public synchronized void force() {
+		if (!readOnly) {
+			buffer.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	/**
+	 * Map the file with room for at least the given number of records, rounded up to whole GROWTH_RECORDS blocks,
+	 * growing the file if needed. Mapping a file's existing records doesn't grow it.
+	 * The previous mapping is released when it's garbage collected.
+	 * @param records Minimum number of records the mapping must hold
+	 */
+	private void map(int records) throws IOException {
+		int capacity = Math.max(1, (records + GROWTH_RECORDS - 1) / GROWTH_RECORDS) * GROWTH_RECORDS;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+	}
+
+	private void addToIndex(int record) {
+		int slot = record / INDEX_INTERVAL;
+		if (slot >= sparseIndex.length) {
+			sparseIndex = Arrays.copyOf(sparseIndex, sparseIndex.length * 2);
+		}
+		sparseIndex[slot] = getMillisUTC(record);
+	}
+}
@@ -0,0 +1,102 @@
+package com.rrarey.tesla;
+
+/**
+ * Fixed-capacity time series of prices, stored in parallel primitive arrays.
+ * Entries must be added in increasing time order. When the series is full the oldest entry is overwritten.
+ */
+public class PriceSeries {
+	private final long[] millisUTC;
+	private final double[] prices;
+	private int
+		start = 0,
+		size = 0
+	;
+
+	/**
+	 * @param capacity Maximum number of entries to keep
+	 */
+	public PriceSeries(int capacity) {
+		millisUTC = new long[capacity];
+		prices = new double[capacity];
+	}
+
+	/**
+	 * Append a price to the series
+	 * @param millis Time of the price, in milliseconds since January 1, 1970
+	 * @param price Price in cents per kWh
+	 * @return false if the price is not newer than the latest entry and was ignored
+	 */
+	public boolean add(long millis, double price) {
+		if (size > 0 && millis <= getLatestMillisUTC()) {
+			return false;
+		}
+
+		int index;
+		if (size < millisUTC.length) {
+			index = (start + size) % millisUTC.length;
+			size++;
+		} else {
+			index = start;
+			start = (start + 1) % millisUTC.length;
+		}
+		millisUTC[index] = millis;
+		prices[index] = price;
+		return true;
+	}
+
+	public int capacity() {
+		return millisUTC.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i Position in the series, where 0 is the oldest entry
+	 * @return Time of the entry, in milliseconds since January 1, 1970
+	 */
+	public long getMillisUTC(int i) {
+		return millisUTC[(start + i) % millisUTC.length];
+	}
+
+	/**
+	 * @param i Position in the series, where 0 is the oldest entry
+	 * @return Price of the entry in cents per kWh
+	 */
+	public double getPrice(int i) {
+		return prices[(start + i) % prices.length];
+	}
+
+	/**
+	 * @return Time of the newest entry, or 0 if the series is empty
+	 */
+	public long getLatestMillisUTC() {
+		return size > 0 ? getMillisUTC(size - 1) : 0;
+	}
+
+	/**
+	 * @return Price of the newest entry, or NaN if the series is empty
+	 */
+	public double getLatestPrice() {
+		return size > 0 ? getPrice(size - 1) : Double.NaN;
+	}
+
+	/**
+	 * Find the first entry at or after a point in time
+	 * @param millis Time in milliseconds since January 1, 1970
+	 * @return Position of the first entry at or after the time, or size() if there is none
+	 */
+	public int indexAtOrAfter(long millis) {
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getMillisUTC(mid) < millis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
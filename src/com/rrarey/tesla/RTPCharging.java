@@ -1,95 +1,151 @@
 package com.rrarey.tesla;
 
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
-import java.util.Scanner;
-import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.rrarey.metrics.MetricsServer;
 import com.rrarey.utils.ExceptionUtils;
+import com.rrarey.utils.FileWatcher;
+import com.rrarey.web.AdminServer;
+import com.rrarey.web.HttpConnectionPool;
+import com.rrarey.web.HttpStatusException;
+import com.rrarey.web.JSONFieldValues;
 import com.rrarey.web.RESTRequest;
+import com.rrarey.web.ResponseCache;
 import com.rrarey.web.WebRequest;
 
 public class RTPCharging {
 	static final String programVersion = "1.0.6";
 	
+	// Default API URLs. These can be pointed elsewhere (e.g. at MockAPIServer) in the properties file.
+	static final String
+		DEFAULT_API_BASE = "https://owner-api.teslamotors.com",
+		DEFAULT_AUTH_URL = "https://auth.tesla.com/oauth2/v3/token",
+		DEFAULT_COMED_API_BASE = "https://hourlypricing.comed.com"
+	;
+
 	// Tesla API base URL
-	static final String apiBase = "https://owner-api.teslamotors.com";
+	static String apiBase = DEFAULT_API_BASE;
+
+	// Tesla token refresh URL
+	static String authURL = DEFAULT_AUTH_URL;
 
 	static final String propertiesFile = "app.properties";
 
 	// Property file keys
 	static final String
 		ACCESS_TOKEN = "ACCESS_TOKEN",
+		ADMIN_PORT = "ADMIN_PORT",
+		ADMIN_TOKEN = "ADMIN_TOKEN",
+		COMED_API_BASE = "COMED_API_BASE",
+		FLEET_MODE = "FLEET_MODE",
+		FLEET_WORKER_THREADS = "FLEET_WORKER_THREADS",
+		GEOFENCES = "GEOFENCES",
 		HOME_LATITUDE = "HOME_LATITUDE",
 		HOME_LONGITUDE = "HOME_LONGITUDE",
+		HOME_RADIUS_METERS = "HOME_RADIUS_METERS",
 		MAX_ELECTRICITY_PRICE = "MAX_ELECTRICITY_PRICE",
+		METRICS_PORT = "METRICS_PORT",
 		MINIMUM_DEPARTURE_SOC = "MINIMUM_DEPARTURE_SOC",
 		POLL_INTERVAL_SECONDS = "POLL_INTERVAL_SECONDS",
+		PRICE_HISTORY_FILE = "PRICE_HISTORY_FILE",
 		REFRESH_TOKEN = "REFRESH_TOKEN",
 		RESTART_ON_CURRENT_DROP = "RESTART_ON_CURRENT_DROP",
 		SOC_GAIN_PER_HOUR = "SOC_GAIN_PER_HOUR",
+		TOKEN_FILE = "TOKEN_FILE",
+		TRIP_HISTORY_FILE = "TRIP_HISTORY_FILE",
+		TESLA_API_BASE = "TESLA_API_BASE",
+		TESLA_AUTH_URL = "TESLA_AUTH_URL",
 		VIN = "VIN"
 	;
 
 	// API call retry settings
 	static final int
 		MAX_RETRIES = 5,
-		RETRY_INTERVAL_SECONDS = 15
+		RETRY_INTERVAL_SECONDS = 15,
+		MAX_RETRY_AFTER_SECONDS = 300
 	;
 
-	// Set in properties file or command line argument
-	static double
-		homeLatitude,
-		homeLongitude,
-		maxElectricityPrice,
-		soCGainPerHour
-	;
+	// Set in properties file or command line argument. These are read once at startup.
 	static String
 		accessToken,
-		id,
+		adminToken,
+		priceHistoryFile,
 		refreshToken,
+		tokenFile,
+		tripHistoryFile,
 		vin
 	;
 	static int
-		minimumDepartureSoC,
-		pollIntervalSeconds
-	;
-	static boolean
-		restartOnCurrentDrop = false,
-		shouldChargeForDepature = false
-	;
-	static long
-		lastConfigurationModification = 0
+		adminPort,
+		fleetWorkerThreads,
+		metricsPort
 	;
+	static boolean fleetMode = false;
 
-	// Vehicle location history
-	static CircularFifoQueue<VehicleLocation> vehicleLocationHistory = new CircularFifoQueue<VehicleLocation>(250);
-	static VehicleLocation lastHome = null;
+	// Settings that can change while running. Read this once and use that copy, so every setting comes from the same
+	// version of the configuration. Changes are published as a whole new Configuration.
+	static volatile Configuration configuration;
 
-	// Objects for API calls
+	// Settings as last read from the properties file, so saving tokens to the file doesn't undo changes made from
+	// the admin endpoint
+	private static Configuration fileConfiguration;
+
+	// How long the properties file must go without changes before it is reloaded
+	static final long CONFIG_RELOAD_DEBOUNCE_MILLIS = 500;
+
+	// Vehicles being monitored, for the admin status endpoint
+	static volatile List<VehicleContext> monitoredVehicles = Collections.emptyList();
+
+	// Default to checking location every five minutes
+	static final int DEFAULT_LOCATION_POLLING_SECONDS = (5 * 60);
+
+	static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("MM/dd/yyyy hh:mm:ss a").withZone(ZoneId.of("America/Chicago"));
+
+	// Objects for API calls. These all share the default HttpConnectionPool, so connections are kept alive between polls.
+	// They are created once, and tokenManager hands them each new bearer.
 	static RESTRequest teslaAPI = null;
 	static WebRequest teslaCommands = null;
+	static TokenManager tokenManager = null;
+	static TokenStore tokenStore = null;
+
+	// Trips that ended back at home, for learning when vehicles return. Null if not kept.
+	static TripHistoryStore tripHistory = null;
+	static final RESTRequest comEdAPI = new RESTRequest(DEFAULT_COMED_API_BASE);
+
+	// Responses worth keeping between calls. Every ComEd feed request, full or tail, is revalidated when ComEd sends an
+	// ETag or Last-Modified. The tail's URL only changes when a new price arrives, so the polls in between can get a
+	// 304 and reuse the parsed feed. Vehicle state is never cached, since it has to be current.
+	static final int RESPONSE_CACHE_BYTES = 1024 * 1024;
+	static final ResponseCache responseCache = new ResponseCache(RESPONSE_CACHE_BYTES)
+		.setTTL(ComEdPriceFeed.FEED_METHOD, 0)
+	;
+
+	// ComEd 5-minute prices, shared by every vehicle
+	static final ComEdPriceFeed comEdFeed = new ComEdPriceFeed(comEdAPI);
 
     static final Logger logger = LogManager.getLogger(RTPCharging.class);
 
@@ -97,408 +153,469 @@ public class RTPCharging {
 		logger.debug("Loading configuration");
 		loadConfiguration();
 
+		try {
+			new FileWatcher(Paths.get(propertiesFile), CONFIG_RELOAD_DEBOUNCE_MILLIS, RTPCharging::reloadConfiguration).start();
+		} catch (IOException ex) {
+			logger.warn("Could not watch {} for changes. Changes will not be picked up until restart: {}", propertiesFile, ExceptionUtils.getExceptionString(ex));
+		}
+
 		logger.debug("Setting up API objects");
 		setupAPIObjects();
 
-		logger.debug("Requesting vehicle match");
-		JSONObject vehicleMatch = getVehicleMatchForVIN();
-
-		String displayName = null;
-		if (vehicleMatch == null) {
-			exitWithError("Vehicle not found in API response.");
+		if (metricsPort > 0) {
+			try {
+				new MetricsServer(RTPMetrics.registry, metricsPort).start();
+				logger.info("Serving metrics at http://localhost:{}{}", metricsPort, MetricsServer.PATH);
+			} catch (IOException ex) {
+				logger.warn("Could not serve metrics on port {}: {}", metricsPort, ExceptionUtils.getExceptionString(ex));
+			}
 		}
 
-		id = vehicleMatch.getString("id_s");
-		if (vehicleMatch.has("display_name")) {
-			displayName = vehicleMatch.getString("display_name");
+		if (adminPort > 0) {
+			try {
+				new AdminServer(adminPort, adminToken)
+					.get("/status", RTPCharging::getStatus)
+					.get("/config", RTPCharging::getSettings)
+					.post("/config", RTPCharging::applyConfigChanges)
+					.start();
+				logger.info("Serving status at http://localhost:{}/status", adminPort);
+				if (adminToken.isEmpty()) {
+					logger.info("No {} is set, so configuration can't be changed through the admin endpoint.", ADMIN_TOKEN);
+				}
+			} catch (IOException ex) {
+				logger.warn("Could not serve admin endpoint on port {}: {}", adminPort, ExceptionUtils.getExceptionString(ex));
+			}
 		}
 
-		TimeZone tz = TimeZone.getTimeZone("America/Chicago");
-		DateFormat df = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
-		df.setTimeZone(tz);
-
-		logger.debug("Checking vehicle charging state");
-		boolean isCharging = isVehicleCharging(id);
+		if (priceHistoryFile.length() > 0) {
+			try {
+				PriceHistoryStore priceHistory = PriceHistoryStore.open(priceHistoryFile);
+				comEdFeed.setHistoryStore(priceHistory);
+				logger.debug("Opened price history {} with {} prices", priceHistoryFile, priceHistory.size());
+			} catch (IOException ex) {
+				logger.warn("Could not open price history {}: {}", priceHistoryFile, ExceptionUtils.getExceptionString(ex));
+			}
+		}
 
-		// Flag to set when vehicle reports it is fully charged.
-		boolean wasFullyCharged = false;
+		List<JSONObject> vehicleMatches = new ArrayList<JSONObject>();
+		if (fleetMode) {
+			logger.debug("Requesting all vehicles for fleet mode");
+			vehicleMatches.addAll(getAllVehicles());
+		} else {
+			logger.debug("Requesting vehicle match");
+			JSONObject vehicleMatch = getVehicleMatchForVIN();
+			if (vehicleMatch != null) {
+				vehicleMatches.add(vehicleMatch);
+			}
+		}
 
-		// Flag to set when vehicle goes to sleep at home.
-		boolean asleepAtHome = false;
+		if (vehicleMatches.isEmpty()) {
+			exitWithError("Vehicle not found in API response.");
+		}
 
-		String previousVehicleState = "unknown";
+		List<VehicleContext> vehicles = new ArrayList<VehicleContext>();
+		for(JSONObject vehicleMatch : vehicleMatches) {
+			VehicleContext vehicle = new VehicleContext(vehicleMatch);
+			logger.debug("Checking vehicle charging state for {}", vehicle);
+			vehicle.isCharging = isVehicleCharging(vehicle);
+			vehicles.add(vehicle);
 
-		long comEdLastUTC = 0;
-		int defaultLocationPollingSeconds = (5 * 60);	// Default to checking location every five minutes
+			logger.info("Starting RTP monitoring v{} for Tesla {}.", programVersion, vehicle);
+			logger.info("Vehicle is{} currently charging.", !vehicle.isCharging ? " not" : "");
+		}
+		monitoredVehicles = Collections.unmodifiableList(vehicles);
+		loadTripHistory(vehicles);
+		logger.info("Polling for new price data every {} seconds.", configuration.pollIntervalSeconds);
+		logDepartureSoC(configuration);
+
+		// Each vehicle's iteration runs on a bounded worker pool, so one slow vehicle doesn't hold up the others.
+		int workerThreads = Math.max(1, Math.min(vehicles.size(), fleetWorkerThreads));
+		logger.debug("Starting {} vehicle worker thread(s)", workerThreads);
+		HttpConnectionPool.getDefault().ensureCapacity(workerThreads);
+		ExecutorService workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
 
-		// Next time we are going to check on the car's location. Seconds since January 1, 1970.
-		long nextLocationCheckSeconds = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "vehicle-" + threadCount.incrementAndGet());
+			}
+		});
 
-		log("Starting RTP monitoring v" + programVersion + " for Tesla VIN " + vehicleMatch.getString("vin") + " (" + ((displayName != null && displayName.length() > 0) ? displayName : id) + ").");
-		log("Polling for new price data every " + pollIntervalSeconds + " seconds.");
-		log("Vehicle will" + (!shouldChargeForDepature ? " not" : "") + " be charged to reach minimum departure SoC" + (minimumDepartureSoC > 0 ? " of " + minimumDepartureSoC + "%" : "") + ".");
-		log("Vehicle is" + (!isCharging ? " not" : "") + " currently charging.");
 		logger.debug("Starting main loop");
 
+		// Vehicles are checked every pollIntervalSeconds, and right away when a new price comes in. ComEd is polled
+		// on its own schedule, which backs off between the times new prices usually appear.
+		ComEdPollScheduler comEdScheduler = new ComEdPollScheduler(configuration.pollIntervalSeconds);
+		RTPMetrics.registerComEdScheduler(comEdScheduler);
+		long nextVehicleCheckMillis = 0, lastCheckedPriceUTC = 0;
+
 		// Main loop
 		while(true) {
-			JSONObject currentData = getLatestComEdPrice();
-			if (currentData == null) {
+			long loopStart = System.nanoTime();
+			long now = System.currentTimeMillis();
+			int pollIntervalSeconds = configuration.pollIntervalSeconds;
+			comEdScheduler.setPollIntervalSeconds(pollIntervalSeconds);
+			boolean pollComEd = comEdScheduler.isPollDue(now);
+			boolean checkVehicles = now >= nextVehicleCheckMillis;
+
+			// Request the latest price once for the whole fleet, and each vehicle's state at the same time.
+			CompletableFuture<ComEdPriceFeed.Price> priceRequest = pollComEd ? comEdFeed.pollAsync() : CompletableFuture.completedFuture(comEdFeed.getLatest());
+			if (checkVehicles) {
+				startIterations(vehicles, priceRequest, workers);
+			}
+
+			ComEdPriceFeed.Price currentPrice = priceRequest.join();
+			if (pollComEd && comEdScheduler.recordPoll(now, currentPrice != null ? currentPrice.millisUTC : 0) && comEdScheduler.getNewPrices() % 12 == 0) {
+				logger.info("{}", comEdScheduler);
+			}
+
+			if (currentPrice == null) {
+				RTPMetrics.loopDuration.recordNanos(System.nanoTime() - loopStart);
 				sleep(RETRY_INTERVAL_SECONDS);
 				continue;
 			}
+			RTPMetrics.comEdPrice.set(currentPrice.price);
+			RTPMetrics.comEdPriceTimestamp.set(currentPrice.millisUTC / 1000.0);
+
+			if (checkVehicles) {
+				nextVehicleCheckMillis = now + pollIntervalSeconds * 1000L;
+			} else if (currentPrice.millisUTC != lastCheckedPriceUTC) {
+				logger.debug("New price received between vehicle checks. Checking vehicles now.");
+				startIterations(vehicles, priceRequest, workers);
+				nextVehicleCheckMillis = now + pollIntervalSeconds * 1000L;
+			}
+			lastCheckedPriceUTC = currentPrice.millisUTC;
+
+			logger.debug("HTTP connection pool: {}", HttpConnectionPool.getDefault());
+			logger.debug("Response cache: {}", responseCache);
 
-			String currentVehicleState = getVehicleState(id);
-
-			// Location polling logic:
-			//	1) Always starts from home
-			//	2) Watches for car to move and records those locations
-			//	3) Starts looking at location history on default polling interval
-			//	4) Watches for car to be one position for two default polling intervals
-			//	5) Increases polling interval to the amount of time it took car to leave home and arrive at stop location, or the default polling interval, whichever is greater.
-			//	6) Continues checking vehicle state, hopefully it is asleep.
-			//	7) Car starts moving again or comes back online - restore default polling interval
-			//	8) TODO: Car appears to be moving closer to home - adjust polling interval
-			//	9) Car arrives back at home. Restore default polling interval
-
-			boolean updatedLocation = false;
-			boolean updateLocationIfOnline = false;
-			VehicleLocation currentLocation = null, previousLocation = null;
-			int secondsFromHomeToStop = 0;
-			int locationHistorySize = vehicleLocationHistory.size();
-			if (locationHistorySize > 0) {
-				previousLocation = vehicleLocationHistory.get(locationHistorySize - 1);
+			RTPMetrics.loopDuration.recordNanos(System.nanoTime() - loopStart);
+			long wakeMillis = Math.min(nextVehicleCheckMillis, comEdScheduler.getNextPollMillis());
+			sleepMillis(wakeMillis - System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Start an iteration for every vehicle that isn't still busy with its previous one
+	 * @param vehicles Vehicles to check
+	 * @param priceRequest Price for the iteration, which may still be in flight
+	 * @param workers Vehicle worker pool
+	 */
+	private static void startIterations(List<VehicleContext> vehicles, CompletableFuture<ComEdPriceFeed.Price> priceRequest, ExecutorService workers) {
+		for(VehicleContext vehicle : vehicles) {
+			if (vehicle.isBusy()) {
+				logger.debug("Previous iteration for {} is still running. Skipping this one.", vehicle);
+				RTPMetrics.vehicleIterationsSkipped.increment();
+				continue;
 			}
-			if (locationHistorySize > 1) {
-				// TODO: Need to recognize multiple stops during trip away from home - not just the latest stop - and act accordingly.
-				logger.debug("Multiple entries in location history, Doing some additional checks.");
-				VehicleLocation previousLocationInHistory = null;
-				VehicleLocation stoppedAtLocation = null;
-				for(int i = 0; i < locationHistorySize; i++) {
-					VehicleLocation currentLocationInHistory = vehicleLocationHistory.get(i);
-					logger.debug("Location: {}", currentLocationInHistory.toString());
-					if (previousLocationInHistory != null && currentLocationInHistory.distanceFrom(previousLocationInHistory) == 0) {
-						// Only set stopped location the first time we encounter the match, so we can know the time it took to go from
-						// home to the location.
-						if (stoppedAtLocation == null) {
-							stoppedAtLocation = previousLocationInHistory;
-						}
-					} else {
-						stoppedAtLocation = null;
-					}
-					previousLocationInHistory = currentLocationInHistory;
-				}
 
-				if (stoppedAtLocation != null) {
-					logger.debug("Vehicle seems to have stopped at: {}", stoppedAtLocation.toString());
-				} else {
-					logger.debug("Vehicle is not stopped.");
+			CompletableFuture<String> vehicleStateRequest = getVehicleStateAsync(vehicle.id);
+			vehicle.iteration = priceRequest.thenAcceptBothAsync(vehicleStateRequest, (currentPrice, currentVehicleState) -> {
+				if (currentPrice != null) {
+					runIteration(vehicle, currentPrice, currentVehicleState);
 				}
+			}, workers);
+		}
+	}
 
-				// Vehicle is navigating to home - use that to schedule the next location poll.
-				if (previousLocationInHistory != null && previousLocationInHistory.isGoingHome()) {
-					nextLocationCheckSeconds = (long)Math.floor(previousLocationInHistory.getArrivalTimeSeconds());
-					logger.debug(
-						"Vehicle is navigating to home as of {}, with an expected arrival time of {}. Scheduling next location check for {}.",
-						df.format(new Date((long)previousLocationInHistory.getTimestampMillis())),
-						df.format(new Date(nextLocationCheckSeconds * 1000)),
-						df.format(new Date(nextLocationCheckSeconds * 1000))
-					);
-
-				// Vehicle is navigating away from home - use that to schedule the next location poll.
-				} else if (previousLocationInHistory != null && previousLocationInHistory.isGoingAwayFromHome()) {
-					nextLocationCheckSeconds = (long)Math.floor(previousLocationInHistory.getArrivalTimeSeconds());
-					logger.debug(
-						"Vehicle is navigating away from home as of {}, with an expected arrival time of {}. Scheduling next location check for {}.",
-						df.format(new Date((long)previousLocationInHistory.getTimestampMillis())),
-						df.format(new Date(nextLocationCheckSeconds * 1000)),
-						df.format(new Date(nextLocationCheckSeconds * 1000))
-					);
-
-				// Vehicle is stopped - use travel time from home to this stop to schedule the next location poll.
-				} else if (stoppedAtLocation != null && lastHome != null) {
-					// Next location check will be 75% of the travel time from home to stop, after vehicle was stopped.
-					// Unless it was a short time, in which case we'll keep the default.
-					secondsFromHomeToStop = stoppedAtLocation.getTimestamp() - lastHome.getTimestamp();
-					logger.debug("Vehicle was at home and is now stopped at {}. It took {} seconds to go from home to stop.", stoppedAtLocation, secondsFromHomeToStop);
-					if (((double)secondsFromHomeToStop * .75) < defaultLocationPollingSeconds) {
-						secondsFromHomeToStop = (int)Math.floor((double)defaultLocationPollingSeconds / .75);
-					}
+	/**
+	 * Run one iteration of the charging and location logic for a single vehicle.
+	 * @param vehicle Vehicle to run the iteration for
+	 * @param currentPrice Most recent 5-minute price
+	 * @param currentVehicleState Current vehicle state (online, asleep, offline, waking, unknown)
+	 */
+	private static void runIteration(VehicleContext vehicle, ComEdPriceFeed.Price currentPrice, String currentVehicleState) {
+		Thread worker = Thread.currentThread();
+		String workerName = worker.getName();
+		worker.setName(vehicle.getName());
+		long start = System.nanoTime();
+		try {
+			runIterationForVehicle(vehicle, currentPrice.millisUTC, currentPrice.price, currentVehicleState);
+		} catch (Exception ex) {
+			logger.error("Exception during iteration for {}: {}", vehicle, ExceptionUtils.getExceptionString(ex));
+		} finally {
+			RTPMetrics.vehicleIterationDuration.recordNanos(System.nanoTime() - start);
+			worker.setName(workerName);
+		}
+	}
 
-					long newNextLocationCheckSeconds = (long)Math.floor(stoppedAtLocation.getTimestamp() + ((double)secondsFromHomeToStop * .75));
-					if (newNextLocationCheckSeconds >= nextLocationCheckSeconds) {
-						nextLocationCheckSeconds = newNextLocationCheckSeconds;
-					}
-					logger.debug("Next location check will be at {}, IF VEHICLE IS ONLINE.", df.format(new Date(nextLocationCheckSeconds * 1000)));
-					updateLocationIfOnline = true;
-				}
+	private static void runIterationForVehicle(VehicleContext vehicle, long comEdCurrentUTC, double currentPrice, String currentVehicleState) {
+		Configuration config = configuration;
+		vehicle.wake.sawState(currentVehicleState, System.currentTimeMillis());
+
+		// Location polling logic:
+		//	1) Always starts from home
+		//	2) Watches for car to move and records those locations
+		//	3) Starts looking at location history on default polling interval
+		//	4) Watches for car to be one position for two default polling intervals
+		//	5) Increases polling interval to 75% of how long we expect the car to stay at the stop, or the default polling interval, whichever is greater.
+		//	   See TripModel for the estimate, which looks at every stop of the trip.
+		//	6) Continues checking vehicle state, hopefully it is asleep.
+		//	7) Car starts moving again or comes back online - restore default polling interval
+		//	8) TODO: Car appears to be moving closer to home - adjust polling interval
+		//	9) Car arrives back at home. Restore default polling interval
+
+		boolean updatedLocation = false;
+		boolean updateLocationIfOnline = false;
+		boolean fetchedLocation = false;
+		boolean usePreviousLocation = false;
+		int stopCheckIntervalSeconds = 0;
+		LocationHistory locationHistory = vehicle.locationHistory;
+		boolean hasPreviousLocation = locationHistory.size() > 0;
+		if (locationHistory.size() > 1) {
+			logger.debug("Multiple entries in location history, Doing some additional checks.");
+			boolean stopped = locationHistory.isStopped();
+			long expectedDwellSeconds = stopped ? vehicle.trip.estimateDwellSeconds() : 0;
+
+			if (stopped) {
+				logger.debug("Vehicle seems to have stopped at {}/{} since {}", locationHistory::getStopLatitude, locationHistory::getStopLongitude, () -> formatTime(locationHistory.getStoppedSinceSeconds() * 1000));
+			} else {
+				logger.debug("Vehicle is not stopped.");
 			}
 
-			// Vehicle was most recently seen at home. Only make additional calls if it's online.
-			// This way you can leave the car sitting at home, not plugged in, and we won't drain the battery.
-			if (previousLocation != null && previousLocation.distanceFrom(homeLatitude, homeLongitude) == 0) {
+			// Vehicle is navigating to home - use that to schedule the next location poll.
+			if (locationHistory.isLatestGoingHome()) {
+				vehicle.nextLocationCheckSeconds = locationHistory.getLatestArrivalTimeSeconds();
+				logger.debug(
+					"Vehicle is navigating to home as of {}, with an expected arrival time of {}. Scheduling next location check for {}.",
+					() -> formatTime(locationHistory.getLatestTimestampSeconds() * 1000),
+					() -> formatTime(vehicle.nextLocationCheckSeconds * 1000),
+					() -> formatTime(vehicle.nextLocationCheckSeconds * 1000)
+				);
+
+			// Vehicle is navigating away from home - use that to schedule the next location poll.
+			} else if (locationHistory.isLatestGoingAwayFromHome()) {
+				vehicle.nextLocationCheckSeconds = locationHistory.getLatestArrivalTimeSeconds();
+				logger.debug(
+					"Vehicle is navigating away from home as of {}, with an expected arrival time of {}. Scheduling next location check for {}.",
+					() -> formatTime(locationHistory.getLatestTimestampSeconds() * 1000),
+					() -> formatTime(vehicle.nextLocationCheckSeconds * 1000),
+					() -> formatTime(vehicle.nextLocationCheckSeconds * 1000)
+				);
+
+			// Vehicle is stopped - use how long we expect it to stay to schedule the next location poll.
+			} else if (stopped && expectedDwellSeconds > 0) {
+				// Next location check will be 75% of the expected stay, after vehicle was stopped.
+				// Unless it was a short time, in which case we'll keep the default.
+				long stoppedSinceSeconds = locationHistory.getStoppedSinceSeconds();
+				if (logger.isDebugEnabled()) {
+					logger.debug("Vehicle is stopped at {}/{}, stop {} of this trip. Expecting it to stay about {} seconds.", locationHistory.getStopLatitude(), locationHistory.getStopLongitude(), vehicle.trip.getStops(), expectedDwellSeconds);
+				}
+				stopCheckIntervalSeconds = (int) Math.max(DEFAULT_LOCATION_POLLING_SECONDS, Math.floor((double)expectedDwellSeconds * .75));
+
+				long newNextLocationCheckSeconds = stoppedSinceSeconds + stopCheckIntervalSeconds;
+				if (newNextLocationCheckSeconds >= vehicle.nextLocationCheckSeconds) {
+					vehicle.nextLocationCheckSeconds = newNextLocationCheckSeconds;
+				}
+				logger.debug("Next location check will be at {}, IF VEHICLE IS ONLINE.", () -> formatTime(vehicle.nextLocationCheckSeconds * 1000));
 				updateLocationIfOnline = true;
+			}
+		}
 
-			// Vehicle is away from home - reset charged flag so we can determine it again when we get home.
-			} else {
-				wasFullyCharged = false;
+		// Vehicle is away and not navigating. Going by its earlier trips, don't check on it again before it's likely to be
+		// back home, unless it comes back online first.
+		if (hasPreviousLocation && !locationHistory.isLatestGoingHome() && !locationHistory.isLatestGoingAwayFromHome() && !config.geofences.isAtHome(locationHistory.getLatestLatitude(), locationHistory.getLatestLongitude())) {
+			long predictedReturnSeconds = vehicle.returnHome.predictReturnSeconds(vehicle.trip.getDepartedSeconds(), vehicle.trip.getDestination());
+			if (predictedReturnSeconds > vehicle.nextLocationCheckSeconds) {
+				vehicle.nextLocationCheckSeconds = predictedReturnSeconds;
+				vehicle.trip.setPredictedCheck();
+				logger.debug("Vehicle will probably be home around {}. Scheduling next location check for then.", () -> formatTime(predictedReturnSeconds * 1000));
 			}
+		}
 
-			// Check if vehicle was previously not online, but now it is online.
-			boolean vehicleIsNowOnline = (currentVehicleState.equals("online") && !previousVehicleState.equals("online"));
+		// Vehicle was most recently seen at home. Only make additional calls if it's online.
+		// This way you can leave the car sitting at home, not plugged in, and we won't drain the battery.
+		if (hasPreviousLocation && config.geofences.isAtHome(locationHistory.getLatestLatitude(), locationHistory.getLatestLongitude())) {
+			updateLocationIfOnline = true;
 
-			// Run location poll when necessary. Either the scheduled poll time says we should run it,
-			// or the vehicle has recently come back online.
-			if (nextLocationCheckSeconds <= currentTime() || vehicleIsNowOnline) {
-				if (vehicleIsNowOnline) {
-					updateLocationIfOnline = false;
-					logger.debug("Executing location check because vehicle has recently come back online.");
-				} else {
-					logger.debug("Next location check scheduled for {} should be executed.", df.format(new Date(nextLocationCheckSeconds * 1000)));
-				}
-				if (updateLocationIfOnline) {
-					logger.debug("Will only update location if vehicle is online.");
-					if (currentVehicleState.equals("online")) {
-						logger.debug("Vehicle is online.");
-						currentLocation = updateVehicleLocationDetails(id);
-						updatedLocation = true;
-					} else {
-						log("Vehicle is not online, so we will let it sleep and update location again when the vehicle is online.");
-						currentLocation = previousLocation;
-					}
-				} else {
-					currentLocation = updateVehicleLocationDetails(id);
-					updatedLocation = true;
-				}
+		// Vehicle is away from home - reset charged flag so we can determine it again when we get home.
+		} else {
+			vehicle.wasFullyCharged = false;
+		}
+
+		// Check if vehicle was previously not online, but now it is online.
+		boolean vehicleIsNowOnline = (currentVehicleState.equals("online") && !vehicle.previousVehicleState.equals("online"));
 
-				if (secondsFromHomeToStop > 0) {
-					nextLocationCheckSeconds += Math.floor((double)secondsFromHomeToStop * .75);
+		// Run location poll when necessary. Either the scheduled poll time says we should run it,
+		// or the vehicle has recently come back online.
+		if (vehicle.nextLocationCheckSeconds <= currentTime() || vehicleIsNowOnline) {
+			if (vehicleIsNowOnline) {
+				updateLocationIfOnline = false;
+				logger.debug("Executing location check because vehicle has recently come back online.");
+			} else {
+				logger.debug("Next location check scheduled for {} should be executed.", () -> formatTime(vehicle.nextLocationCheckSeconds * 1000));
+			}
+			if (updateLocationIfOnline) {
+				logger.debug("Will only update location if vehicle is online.");
+				if (currentVehicleState.equals("online")) {
+					logger.debug("Vehicle is online.");
+					fetchedLocation = updateVehicleLocationDetails(vehicle, config);
+					updatedLocation = true;
 				} else {
-					// If vehicle was fully charged and didn't just come back online, schedule next location check
-					// further out so the vehicle can go to sleep. Otherwise use default scheduling.
-					if (wasFullyCharged && !vehicleIsNowOnline) {
-						nextLocationCheckSeconds = (currentTime() + (20 * 60));
-					} else {
-						nextLocationCheckSeconds = (currentTime() + defaultLocationPollingSeconds);
-					}
+					logger.info("Vehicle is not online, so we will let it sleep and update location again when the vehicle is online.");
+					usePreviousLocation = hasPreviousLocation;
 				}
 			} else {
-				currentLocation = previousLocation;
+				fetchedLocation = updateVehicleLocationDetails(vehicle, config);
+				updatedLocation = true;
 			}
 
-			// This shouldn't happen, but in case it does...
-			boolean assumedAtHome = false;
-			if (currentLocation == null) {
-				currentLocation = updateVehicleLocationDetails(id);
-				
-				if (currentLocation == null) {
-					sleep(RETRY_INTERVAL_SECONDS);
-			        currentLocation = updateVehicleLocationDetails(id);
+			if (stopCheckIntervalSeconds > 0) {
+				vehicle.nextLocationCheckSeconds += stopCheckIntervalSeconds;
+			} else {
+				// If vehicle was fully charged and didn't just come back online, schedule next location check
+				// further out so the vehicle can go to sleep. Otherwise use default scheduling.
+				if (vehicle.wasFullyCharged && !vehicleIsNowOnline) {
+					vehicle.nextLocationCheckSeconds = (currentTime() + (20 * 60));
+				} else {
+					vehicle.nextLocationCheckSeconds = (currentTime() + DEFAULT_LOCATION_POLLING_SECONDS);
 				}
 			}
-			if (currentLocation == null) {
-				currentLocation = new VehicleLocation(homeLatitude, homeLongitude);
-				currentLocation.setTimestamp(System.currentTimeMillis());
-				assumedAtHome = true;
-			} 			
-
-			double locationTime = currentLocation.getTimestampMillis();
-			double distanceFromHome = currentLocation.distanceFrom(homeLatitude, homeLongitude);
+		} else {
+			usePreviousLocation = hasPreviousLocation;
+		}
 
-			if (updatedLocation) {
-				log("Vehicle is " + distanceFromHome + " miles from home as of " + df.format(new Date((long)locationTime)));
+		// This shouldn't happen, but in case it does...
+		boolean assumedAtHome = false;
+		if (!fetchedLocation && !usePreviousLocation) {
+			fetchedLocation = updateVehicleLocationDetails(vehicle, config);
+			
+			if (!fetchedLocation) {
+				sleep(RETRY_INTERVAL_SECONDS);
+		        fetchedLocation = updateVehicleLocationDetails(vehicle, config);
 			}
+		}
 
-			logger.debug("Next vehicle location check scheduled for: {}", df.format(new Date(nextLocationCheckSeconds * 1000)));
+		// Where the vehicle is: the location just fetched, the latest one in its history, or home if neither is known
+		double currentLatitude, currentLongitude, locationTime;
+		if (fetchedLocation) {
+			currentLatitude = vehicle.latitude;
+			currentLongitude = vehicle.longitude;
+			locationTime = vehicle.locationSeconds * 1000;
+		} else if (usePreviousLocation) {
+			currentLatitude = locationHistory.getLatestLatitude();
+			currentLongitude = locationHistory.getLatestLongitude();
+			locationTime = locationHistory.getLatestTimestampSeconds() * 1000;
+		} else {
+			currentLatitude = config.homeLatitude;
+			currentLongitude = config.homeLongitude;
+			locationTime = System.currentTimeMillis() / 1000 * 1000;
+			assumedAtHome = true;
+		}
 
-			long comEdCurrentUTC = Long.parseLong(currentData.getString("millisUTC"));
-			double currentPrice = currentData.getDouble("price");
-			boolean newData = false;
+		boolean atHome = config.geofences.isAtHome(currentLatitude, currentLongitude);
 
-			if (comEdCurrentUTC != comEdLastUTC) {
-				Date date = new Date(comEdCurrentUTC);
-				log("5-minute price (" + currentPrice + "\u00A2/kWh) from " + df.format(date) + " is " + (currentPrice <= maxElectricityPrice ? "valid for charging (<=" + maxElectricityPrice : "not valid for charging (>" + maxElectricityPrice) + "\u00A2/kWh)");
-				comEdLastUTC = comEdCurrentUTC;
-				newData = true;
+		if (updatedLocation) {
+			if (atHome) {
+				logger.info("Vehicle is home as of {}", () -> formatTime((long)locationTime));
+			} else {
+				double milesFromHome = VehicleLocation.distance(currentLatitude, currentLongitude, config.homeLatitude, config.homeLongitude);
+				logger.info("Vehicle is {} miles from home as of {}", () -> milesFromHome, () -> formatTime((long)locationTime));
 			}
+		}
 
-			String chargingState = "";			// "Stopped" when not charging but plugged in. "Disconnected" when unplugged. "Charging" when charging.
-			boolean chargePortOpen = false;		// true when door is open. Else false.
-			boolean stopStartCharge = false;	// Set to true when we determine we need to stop and restart charging to get the rate back up.
-			boolean forceCharging = false;		// Set to true when time and departure SoC dictate.
-
-			int minutesToFullCharge = 0;		// Will be set by charge_state response if possible
-			double currentBatteryLevel = 0;		// Will be set by charge_state response if possible
-			double chargeLimit = 90;			// Will be set by charge_state response if possible
-			int minutesToDeparture = 0;			// Will be set by charge_state response if possible
-
-			// In any of these cases we need to make sure the vehicle is awake, and determine charging setup and status.
-			// 1) We have new data AND:
-			//		a) The current ComEd price is <= our max price AND
-			//			i)  The vehicle is not fully charged AND
-			//			ii) The vehicle is not currently charging, OR restart on current drop is enabled
-			//		OR
-			//		b) The current ComEd price is > our max price AND
-			//			i)  The vehicle is charging
-			if (newData && distanceFromHome == 0) {
-				JSONObject chargeStateResponse = null;
-
-				if ((currentPrice <= maxElectricityPrice && (!isCharging || restartOnCurrentDrop)) || (currentPrice > maxElectricityPrice && isCharging)) {
-					log("Current vehicle state: " + currentVehicleState);
-
-					if (wasFullyCharged) {
-						boolean isCurrentlySleeping = currentVehicleState.equals("asleep");
-						logger.debug("Vehicle was fully charged at last check. Trying to let it sleep.");
-						if (asleepAtHome && !isCurrentlySleeping) {
-							logger.debug("Vehicle is awake again. Might need to restart charging.");
-							asleepAtHome = false;
-						} else {
-							asleepAtHome = isCurrentlySleeping;
-							continue;
-						}
-					}
-				}
+		logger.debug("Next vehicle location check scheduled for: {}", () -> formatTime(vehicle.nextLocationCheckSeconds * 1000));
 
-				try {
-					if (!currentVehicleState.equals("online")) {
-						wakeUpVehicle(id);
-					}
+		boolean newData = false;
 
-					int tries = 0;
-					while (chargeStateResponse == null && ++tries < MAX_RETRIES) {
-						chargeStateResponse = getVehicleChargeState(id);
-						if (chargeStateResponse == null) {
-							refreshTokens();
-							sleep(RETRY_INTERVAL_SECONDS);
-						}
-					}
+		if (comEdCurrentUTC != vehicle.comEdLastUTC) {
+			boolean validPrice = currentPrice <= config.maxElectricityPrice;
+			logger.info("5-minute price ({}\u00A2/kWh) from {} is {} charging ({}{}\u00A2/kWh)", () -> currentPrice, () -> formatTime(comEdCurrentUTC), () -> validPrice ? "valid for" : "not valid for", () -> validPrice ? "<=" : ">", () -> config.maxElectricityPrice);
+			vehicle.comEdLastUTC = comEdCurrentUTC;
+			newData = true;
+		}
 
-					if (chargeStateResponse == null) {
-						logger.warn("Did not receive charge state response after multiple attempts.");
-						continue;
-					}
+		// In any of these cases we need to make sure the vehicle is awake, and determine charging setup and status.
+		// 1) We have new data AND:
+		//		a) The current ComEd price is <= our max price AND
+		//			i)  The vehicle is not fully charged AND
+		//			ii) The vehicle is not currently charging, OR restart on current drop is enabled
+		//		OR
+		//		b) The current ComEd price is > our max price AND
+		//			i)  The vehicle is charging
+		if (newData && atHome) {
+			JSONFieldValues chargeStateResponse = null;
+
+			long nowMillis = System.currentTimeMillis();
+			if (!shouldCheckCharging(vehicle, currentVehicleState, currentPrice, config, nowMillis)) {
+				return;
+			}
+			boolean planCharging = isPlanCharging(vehicle, config, nowMillis);
 
-					if (chargeStateResponse.has("charging_state") && chargeStateResponse.has("charge_port_door_open")) {
-						minutesToFullCharge = chargeStateResponse.getInt("minutes_to_full_charge");
-						chargingState = chargeStateResponse.getString("charging_state");
-						chargePortOpen = chargeStateResponse.getBoolean("charge_port_door_open");
-						currentBatteryLevel = chargeStateResponse.getDouble("usable_battery_level");
-						chargeLimit = chargeStateResponse.getDouble("charge_limit_soc");
-
-						// Minutes to full charge is only reported if the vehicle is actually charging.
-						String fullCharge = "";
-						if (minutesToFullCharge > 0) {
-							int hours = minutesToFullCharge / 60;
-							int minutes = minutesToFullCharge % 60;
-							if (hours > 0) {
-								fullCharge = " " + String.format("%dh %02dm", hours, minutes) + " remaining to charge limit.";
-							} else {
-								fullCharge = " " + String.format("%02dm", minutes) + " remaining to charge limit.";
-							}
-						}
+			ChargeState chargeState = new ChargeState();
+			try {
+				if (!currentVehicleState.equals("online")) {
+					wakeUpVehicle(vehicle);
+				}
 
-						int timestamp = (int) Math.floor(chargeStateResponse.getDouble("timestamp") / 1000);
-						int departureTime = chargeStateResponse.getInt("scheduled_departure_time");
-						boolean preconditionBattery = chargeStateResponse.getBoolean("preconditioning_enabled");
-						if (preconditionBattery && departureTime > timestamp) {
-							minutesToDeparture = (int) Math.floor((departureTime - timestamp) / 60);
-						}
+				// getVehicleData already retries, and the location check may have just fetched this.
+				chargeStateResponse = getVehicleChargeState(vehicle);
 
-						log("Charge: " + String.valueOf(currentBatteryLevel) + "%. Charge limit: " + String.valueOf(chargeLimit) + "%." + fullCharge);
-						if (minutesToDeparture > 0 && minimumDepartureSoC > 0 && minimumDepartureSoC > currentBatteryLevel) {
-							log(minutesToDeparture + " minutes to departure at " + minimumDepartureSoC + "% charge.");
-
-							double soCGainPerMinute = (soCGainPerHour / 60);
-							double requiredCharge = minimumDepartureSoC - currentBatteryLevel;
-							int minutesToDepartureSoC = (int) Math.ceil(requiredCharge / soCGainPerMinute);
-							log("At " + String.format("%.3f", soCGainPerMinute) + "% SoC gain per minute, it will take " + minutesToDepartureSoC + " minutes to reach desired departure SoC.");
-							if (minutesToDepartureSoC >= minutesToDeparture) {
-								log("To reach minimum departure SoC of " + minimumDepartureSoC + "%, charging is required.");
-								forceCharging = true;
-							} else {
-								forceCharging = false;
-							}
-						}
-					}
+				if (chargeStateResponse == null) {
+					logger.warn("Did not receive charge state response after multiple attempts.");
+					return;
+				}
 
-					// Charge current we'd like to see
-					double requestedChargeAmps = 12;
-					if (chargeStateResponse.has("charge_current_request") && !chargeStateResponse.isNull("charge_current_request")) {
-						requestedChargeAmps = chargeStateResponse.getDouble("charge_current_request");
-					}
+				chargeState.update(chargeStateResponse);
+			} catch (Exception ex) {
+				logger.error("Failed to parse charge state response: {}", ExceptionUtils.getExceptionString(ex));
+			}
 
-					// Charge current we are currently seeing
-					double chargerActualCurrent = requestedChargeAmps;
-					if (chargeStateResponse.has("charger_actual_current") && !chargeStateResponse.isNull("charger_actual_current")) {
-						chargerActualCurrent = chargeStateResponse.getDouble("charger_actual_current");
-					}
+			if (chargeState.hasChargingState) {
+				updateChargePlan(vehicle, chargeState, config, System.currentTimeMillis(), from -> comEdFeed.forecastHourly(from, ChargePlan.MAX_SLOTS));
+				planCharging = vehicle.chargePlan.shouldCharge(System.currentTimeMillis());
+			}
 
-					if (restartOnCurrentDrop) {
-						if (chargerActualCurrent < requestedChargeAmps) {
-							stopStartCharge = true;
-						}
+			ChargeDecision decision = ChargeDecision.decide(chargeState, currentPrice, config.maxElectricityPrice, config.restartOnCurrentDrop, config.minimumDepartureSoC, config.soCGainPerHour, planCharging);
+			logChargeState(chargeState, decision, config);
+
+			switch (decision.action) {
+				case NOT_PLUGGED_IN:
+					break;
+
+				case FULLY_CHARGED:
+					logger.info("Vehicle is fully charged. No action necessary.");
+					vehicle.wasFullyCharged = true;
+					vehicle.isCharging = false;
+					break;
+
+				case RESTART:
+					vehicle.wasFullyCharged = false;
+					logger.info("Charging current has dropped. Attempting to stop and restart.");
+					try {
+						vehicle.isCharging = stopCharging(vehicle);
+						sleep(15);
+						vehicle.isCharging = startCharging(vehicle);
+					} catch (Exception ex) {
+						logger.warn("Exception while stopping and restarting charging: {}", ExceptionUtils.getExceptionString(ex));
 					}
-				} catch (Exception ex) {
-					logger.error("Failed to parse charge state response: {}", ExceptionUtils.getExceptionString(ex));
-				}
-
-				if (
-					chargePortOpen &&
-					chargingState != null &&
-					chargingState.length() > 0 &&
-					!chargingState.equals("Disconnected")
-				) {
-					wasFullyCharged = false;
-
-					// Checking chargeLimit - 1 because the vehicle will often report that it's done charging at chargeLimit - 1, and
-					// attempting to start charging at this point results in an error. Minutes to full charge is reported at 0 before
-					// charging starts, so we can't reliably use just that. The OR case should still allow us to reach "full" charge on
-					// a car that is actually plugged in and charging.
-					if (currentBatteryLevel < (chargeLimit - 1) || minutesToFullCharge > 0) {
-						isCharging = chargingState.toLowerCase().equals("charging");
-						if (currentPrice <= maxElectricityPrice || forceCharging) {
-							if (isCharging && stopStartCharge) {
-								log("Charging current has dropped. Attempting to stop and restart.");
-								try {
-									isCharging = stopCharging(id);
-									sleep(15);
-									isCharging = startCharging(id);
-								} catch (Exception ex) {
-									logger.warn("Exception while stopping and restarting charging: {}", ExceptionUtils.getExceptionString(ex));
-								}
-								if (isCharging) {
-									log("Vehicle charging restarted.");
-								} else {
-									log("Vehicle charging failed to restart.");
-								}
-							}
-
-							if (!isCharging) {
-								isCharging = startCharging(id);
-							} else {
-								log("Vehicle is currently charging. No action necessary.");
-							}
-						} else {
-							if (isCharging) {
-								isCharging = stopCharging(id);
-							} else {
-								log("Vehicle is not currently charging. No action necessary.");
-							}
-						}
+					if (vehicle.isCharging) {
+						logger.info("Vehicle charging restarted.");
 					} else {
-						log("Vehicle is fully charged. No action necessary.");
-						wasFullyCharged = true;
-						isCharging = false;
+						logger.info("Vehicle charging failed to restart.");
+						vehicle.isCharging = startCharging(vehicle);
 					}
-				}
+					break;
+
+				case START:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = startCharging(vehicle);
+					break;
+
+				case STOP:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = stopCharging(vehicle);
+					break;
+
+				case NONE:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = decision.vehicleCharging;
+					logger.info("Vehicle is{} currently charging. No action necessary.", decision.vehicleCharging ? "" : " not");
+					break;
 			}
-
-			previousVehicleState = currentVehicleState;
-
-			sleep(pollIntervalSeconds);
-
-			loadConfiguration();
 		}
+
+		vehicle.previousVehicleState = currentVehicleState;
 	}
 
 	/**
@@ -510,100 +627,199 @@ public class RTPCharging {
 	}
 
 	/**
-	 * Stop execution and exit when we encounter an error and cannot continue.
-	 * @param msg Error message to write
+	 * Log the charge state details the charging decision was based on
+	 * @param chargeState Charge state reported by the vehicle
+	 * @param decision Decision made from the charge state
+	 * @param config Settings the decision was made with
 	 */
-	private static void exitWithError(String msg) {
-		msg = msg.trim();
-		if (!msg.endsWith(".")) {
-			msg += ".";
+	private static void logChargeState(ChargeState chargeState, ChargeDecision decision, Configuration config) {
+		if (!chargeState.hasChargingState) {
+			return;
 		}
 
-		logger.fatal(msg + " Exiting.");
-		System.exit(0);
+		logger.info("Charge: {}%. Charge limit: {}%.{}", () -> chargeState.batteryLevel, () -> chargeState.chargeLimit, () -> formatTimeToFullCharge(chargeState.minutesToFullCharge));
+		if (decision.minutesToDepartureSoC > 0) {
+			logger.info("{} minutes to departure at {}% charge.", decision.minutesToDeparture, config.minimumDepartureSoC);
+			logger.info("At {}% SoC gain per minute, it will take {} minutes to reach desired departure SoC.", () -> String.format("%.3f", config.soCGainPerHour / 60), () -> decision.minutesToDepartureSoC);
+			if (decision.forceCharging) {
+				logger.info("To reach minimum departure SoC of {}%, charging is required.", config.minimumDepartureSoC);
+			}
+		}
+		if (decision.planCharging) {
+			logger.info("Charging now is part of the charge plan for departure.");
+		}
 	}
 
 	/**
-	 * Get the most recnet 5-minute price from ComEd
-	 * @return JSONObject with most recent 5-minute price data
+	 * Whether a new price is worth waking the vehicle and checking its charge state for. The live loop and the replay
+	 * engine both ask this before each check.
+	 *
+	 * Between the charge plan's transitions, a price too high to charge at changes nothing for a vehicle that is asleep
+	 * and not charging, so it is left asleep. When the price would change whether it charges, a vehicle that was fully
+	 * charged at the last check is left to sleep until it wakes up again by itself.
+	 * @param vehicle Vehicle to check. Its asleepAtHome flag is updated, and its previousVehicleState when it is left
+	 * asleep because nothing calls for charging.
+	 * @param vehicleState Current vehicle state (online, asleep, ...)
+	 * @param price Current 5-minute price in cents per kWh
+	 * @param config Settings for the iteration
+	 * @param nowMillis Current time in milliseconds since January 1, 1970
+	 * @return Whether to go on and check the charge state
 	 */
-	private static JSONObject getLatestComEdPrice() {
-		RESTRequest pricesRequest = null;
-		JSONObject pricesResponse = null;
+	static boolean shouldCheckCharging(VehicleContext vehicle, String vehicleState, double price, Configuration config, long nowMillis) {
+		ChargePlan plan = vehicle.chargePlan;
+		boolean planCurrent = isPlanCurrent(plan, config);
+		boolean planCharging = planCurrent && plan.shouldCharge(nowMillis);
+		boolean planDue = config.shouldChargeForDeparture() && (!planCurrent || nowMillis >= vehicle.nextPlanWakeMillis);
+		if (!vehicleState.equals("online") && !vehicle.isCharging && price > config.maxElectricityPrice && !planCharging && !planDue) {
+			logger.debug("Not waking vehicle. Neither the price nor the charge plan calls for charging.");
+			RTPMetrics.wakeUpsAvoidedByChargePlan.increment();
+			vehicle.previousVehicleState = vehicleState;
+			return false;
+		}
 
-		try {
-			pricesRequest = new RESTRequest("https://hourlypricing.comed.com");
-			pricesResponse = pricesRequest.requestJSON("api?type=5minutefeed");
-		} catch (Exception ex) { }
+		if ((price <= config.maxElectricityPrice && (!vehicle.isCharging || config.restartOnCurrentDrop)) || (price > config.maxElectricityPrice && vehicle.isCharging)) {
+			logger.info("Current vehicle state: {}", vehicleState);
 
-		if (pricesResponse == null || !pricesResponse.has("d")) {
-			return null;
+			if (vehicle.wasFullyCharged) {
+				boolean isCurrentlySleeping = vehicleState.equals("asleep");
+				logger.debug("Vehicle was fully charged at last check. Trying to let it sleep.");
+				if (vehicle.asleepAtHome && !isCurrentlySleeping) {
+					logger.debug("Vehicle is awake again. Might need to restart charging.");
+					vehicle.asleepAtHome = false;
+				} else {
+					vehicle.asleepAtHome = isCurrentlySleeping;
+					return false;
+				}
+			}
 		}
+		return true;
+	}
+
+	/**
+	 * @param vehicle Vehicle
+	 * @param config Settings for the iteration
+	 * @param nowMillis Current time in milliseconds since January 1, 1970
+	 * @return Whether the vehicle's charge plan was made with these settings and charges now
+	 */
+	static boolean isPlanCharging(VehicleContext vehicle, Configuration config, long nowMillis) {
+		ChargePlan plan = vehicle.chargePlan;
+		return isPlanCurrent(plan, config) && plan.shouldCharge(nowMillis);
+	}
 
-		// Sort the values to get the most recent value.
-		// It seems like this is always in position 0 anyway, but we shouldn't trust that.
-		JSONArray values = pricesResponse.getJSONArray("d");
-		List<JSONObject> sortedValues = new ArrayList<JSONObject>();
-		for(int i = 0; i < values.length(); i++) {
-			JSONObject value = values.getJSONObject(i);
-			if (value != null) {
-				sortedValues.add(value);
+	private static boolean isPlanCurrent(ChargePlan plan, Configuration config) {
+		return plan != null && plan.minimumDepartureSoC == config.minimumDepartureSoC && plan.soCGainPerHour == config.soCGainPerHour;
+	}
+
+	/**
+	 * Work out a new charge plan when the current one no longer fits the vehicle's charge state or our settings, and
+	 * note when the vehicle next needs to be woken to follow it
+	 * @param vehicle Vehicle to plan for
+	 * @param chargeState Charge state reported by the vehicle
+	 * @param config Settings to plan with
+	 * @param nowMillis Current time in milliseconds since January 1, 1970
+	 * @param forecaster Hourly price forecast from a time, ChargePlan.MAX_SLOTS hours long
+	 */
+	static void updateChargePlan(VehicleContext vehicle, ChargeState chargeState, Configuration config, long nowMillis, LongFunction<double[]> forecaster) {
+		long departureMillis = chargeState.getDepartureMillis();
+		ChargePlan plan = vehicle.chargePlan;
+		if (plan == null || !plan.isValidFor(nowMillis, chargeState.batteryLevel, chargeState.chargeLimit, departureMillis, config.minimumDepartureSoC, config.soCGainPerHour)) {
+			double[] forecast = forecaster.apply(nowMillis);
+			plan = ChargePlan.compute(nowMillis, chargeState.batteryLevel, chargeState.chargeLimit, departureMillis, config.minimumDepartureSoC, config.soCGainPerHour, forecast);
+			vehicle.chargePlan = plan;
+			if (config.shouldChargeForDeparture() && departureMillis > nowMillis) {
+				ChargePlan newPlan = plan;
+				logger.info("Charge plan for departure at {}: {}", () -> formatTime(departureMillis), () -> newPlan);
+			} else {
+				logger.debug("Charge plan: {}", plan);
 			}
 		}
+		long next = plan.getNextTransitionMillis(nowMillis);
+		vehicle.nextPlanWakeMillis = next != Long.MAX_VALUE ? next : nowMillis + ChargePlan.RECHECK_MILLIS;
+	}
 
-		if (sortedValues.size() == 0) {
-			return null;
+	/**
+	 * Format the time left until the charge limit for logging
+	 * @param minutesToFullCharge Minutes reported by the vehicle, which is only more than 0 while it is charging
+	 * @return Time remaining, with a leading space, or an empty string if the vehicle didn't report any
+	 */
+	private static String formatTimeToFullCharge(int minutesToFullCharge) {
+		if (minutesToFullCharge <= 0) {
+			return "";
 		}
+		int hours = minutesToFullCharge / 60;
+		int minutes = minutesToFullCharge % 60;
+		if (hours > 0) {
+			return " " + String.format("%dh %02dm", hours, minutes) + " remaining to charge limit.";
+		}
+		return " " + String.format("%02dm", minutes) + " remaining to charge limit.";
+	}
 
-		Collections.sort(sortedValues, new Comparator<JSONObject>() {
-			@Override
-	        public int compare(JSONObject a, JSONObject b) {
-	            Long valA = (long) 0;
-	            Long valB = (long) 0;
-
-	            try {
-	                valA = Long.parseLong(a.getString("millisUTC"));
-	                valB = Long.parseLong(b.getString("millisUTC"));
-	            }
-	            catch (JSONException e) { }
-
-	            return valB.compareTo(valA);
-	        }
-		});
+	/**
+	 * Format a timestamp for logging, in ComEd's time zone
+	 * @param millis Milliseconds since January 1, 1970
+	 * @return Formatted date and time
+	 */
+	static String formatTime(long millis) {
+		return timeFormatter.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Stop execution and exit when we encounter an error and cannot continue.
+	 * @param msg Error message to write
+	 */
+	private static void exitWithError(String msg) {
+		msg = msg.trim();
+		if (!msg.endsWith(".")) {
+			msg += ".";
+		}
 
-		return sortedValues.get(0);
+		logger.fatal(msg + " Exiting.");
+		System.exit(0);
 	}
 
 	/**
 	 * Get the charge state of the vehicle
-	 * @param id ID of the vehicle to use when requesting charge state
-	 * @return Charge state response JSON object
+	 * @param vehicle Vehicle to get the charge state for
+	 * @return vehicle_data fields including the charge state, or null if it could not be retrieved
 	 */
-	private static JSONObject getVehicleChargeState(String id) {
-		JSONObject vehicleDataResponse = getVehicleData(id);
-		if (vehicleDataResponse != null && vehicleDataResponse.has("charge_state")) {
-			JSONObject data = vehicleDataResponse.getJSONObject("charge_state");
-			logger.debug("Charge state response: {}",  data.toString(2));
-			return data;
-		}
-		return null;
+	private static JSONFieldValues getVehicleChargeState(VehicleContext vehicle) {
+		return getVehicleSnapshotData(vehicle, VehicleSnapshotCache.Lookup.CHARGE_STATE);
 	}
-	
+
 	/**
-	 * Get the full vehicle data set
-	 * @param id ID of the vehicle to use when requesting vehicle data
-	 * @return Vehicle data response JSON object
-	 */	
-	private static JSONObject getVehicleData(String id) {
-		return getVehicleData(id, null);
+	 * Get part of the vehicle's data from its snapshot when that is still fresh. Otherwise request charge_state and
+	 * location_data together, so the next lookup in this iteration doesn't need its own request.
+	 * @param vehicle Vehicle to get data for
+	 * @param lookup Data to get
+	 * @return The vehicle's snapshot fields, or null if the data could not be retrieved. Refilled by the next fetch.
+	 */
+	private static JSONFieldValues getVehicleSnapshotData(VehicleContext vehicle, VehicleSnapshotCache.Lookup lookup) {
+		JSONFieldValues fields = vehicle.snapshots.get(lookup, System.currentTimeMillis());
+		if (fields != null) {
+			vehicle.snapshots.recordLookup(lookup, VehicleSnapshotCache.Tier.SNAPSHOT);
+			logger.debug("Using {} from vehicle snapshot ({})", lookup, vehicle.snapshots);
+			return fields;
+		}
+
+		fields = vehicle.snapshots.getFields();
+		if (!getVehicleData(vehicle, "endpoints=" + VehicleSnapshotCache.COMBINED_ENDPOINTS, fields)) {
+			vehicle.snapshots.invalidate();
+			return null;
+		}
+		vehicle.snapshots.update(System.currentTimeMillis());
+		vehicle.snapshots.recordLookup(lookup, VehicleSnapshotCache.Tier.FETCH);
+
+		return fields.has(VehicleSnapshotCache.getStateField(lookup)) ? fields : null;
 	}
-	
+
 	/**
-	 * Get the full vehicle data set
-	 * @param id ID of the vehicle to use when requesting vehicle data
-	 * @return Vehicle data response JSON object
+	 * Get vehicle data, reading only the fields in VehicleDataFields straight from the response
+	 * @param vehicle Vehicle to request data for
+	 * @param query Query string, e.g. endpoints to request, or null
+	 * @param fields Holder for the vehicle data fields
+	 * @return Whether a vehicle data response was read into fields
 	 */	
-	private static JSONObject getVehicleData(String id, String query) {
+	private static boolean getVehicleData(VehicleContext vehicle, String query, JSONFieldValues fields) {
 		if (query != null && !query.startsWith("?")) {
 			query = "?" + query; 
 		}
@@ -612,45 +828,64 @@ public class RTPCharging {
 	    }
 		int tries = 0;
 		while(++tries < MAX_RETRIES) {
-			JSONObject vehicleDataResponse = null;
+			int retryDelaySeconds = RETRY_INTERVAL_SECONDS;
+			RTPMetrics.vehicleDataCalls.attempts.increment();
 			try {
-				vehicleDataResponse = teslaAPI.requestJSON("api/1/vehicles/" + id + "/vehicle_data" + query);
-			} catch (Exception ex) {
-				logger.debug("Vehicle data exception: {}", ExceptionUtils.getExceptionString(ex));
-				String errorMessage = ExceptionUtils.getExceptionString(ex);
-				if (errorMessage.indexOf("HTTP response code: 408") >= 0) {
-					wakeUpVehicle(id);
-				} else if (errorMessage.indexOf("HTTP response code: 40") < 0) {
-					logger.error("Failed to get vehicle data: {}", ExceptionUtils.getExceptionString(ex));
-				} else {
+				teslaAPI.requestFields("api/1/vehicles/" + vehicle.id + "/vehicle_data" + query, VehicleDataFields.EXTRACTOR, fields);
+			} catch (HttpStatusException ex) {
+				fields.clear();
+				logger.debug("Vehicle data request returned HTTP {}", ex.getStatusCode());
+				if (ex.getStatusCode() == 408) {
+					vehicle.wake.sawAsleep(System.currentTimeMillis());
+					wakeUpVehicle(vehicle);
+				} else if (ex.isUnauthorized()) {
 					refreshTokens();
+				} else if (ex.getStatusCode() != 429) {
+					logger.error("Failed to get vehicle data: {}", ex.getMessage());
 				}
+				retryDelaySeconds = getRetryDelaySeconds(ex);
+			} catch (Exception ex) {
+				fields.clear();
+				logger.error("Failed to get vehicle data: {}", ExceptionUtils.getExceptionString(ex));
 			}
 
-			if (vehicleDataResponse != null && vehicleDataResponse.has("response")) {
-				JSONObject data = vehicleDataResponse.getJSONObject("response");
-				logger.debug("Vehicle data" + (!query.isEmpty() ? (" (" + query + ")") : "") + " response: {}", data.toString(2));
-				return data;
+			if (fields.has(VehicleDataFields.RESPONSE)) {
+				vehicle.wake.confirmOnline(System.currentTimeMillis());
+				logger.debug("Vehicle data ({}) response: {}", query, fields);
+				return RTPMetrics.vehicleDataCalls.finish(true);
 			}
-			sleep(RETRY_INTERVAL_SECONDS);
+			sleep(retryDelaySeconds);
 		}
 
-		return null;
+		return RTPMetrics.vehicleDataCalls.finish(false);
 	}	
 
 	/**
-	 * Get the drive state of the vehicle
-	 * @param id ID of the vehicle to use when requesting drive state
-	 * @return Drive state response JSON object
+	 * Get the drive state of the vehicle, including its location
+	 * @param vehicle Vehicle to get the drive state for
+	 * @return vehicle_data fields including the drive state, or null if it could not be retrieved
+	 */
+	private static JSONFieldValues getVehicleDriveState(VehicleContext vehicle) {
+		return getVehicleSnapshotData(vehicle, VehicleSnapshotCache.Lookup.DRIVE_STATE);
+	}
+
+	/**
+	 * Get every vehicle on the account, for fleet mode.
+	 * @return List of JSON objects with vehicle details. Empty if the vehicles could not be retrieved.
 	 */
-	private static JSONObject getVehicleDriveState(String id) {
-		JSONObject vehicleDataResponse = getVehicleData(id, "?endpoints=location_data");
-		if (vehicleDataResponse != null && vehicleDataResponse.has("drive_state")) {
-			JSONObject data = vehicleDataResponse.getJSONObject("drive_state");
-			logger.debug("Vehicle data response: {}",  data.toString(2));
-			return data;
+	private static List<JSONObject> getAllVehicles() {
+		List<JSONObject> allVehicles = new ArrayList<JSONObject>();
+		JSONArray vehicles = getVehicles();
+		if (vehicles != null) {
+			for(int i = 0; i < vehicles.length(); i++) {
+				JSONObject vehicle = vehicles.optJSONObject(i);
+				if (vehicle != null && vehicle.has("id_s")) {
+					allVehicles.add(vehicle);
+				}
+			}
 		}
-		return null;
+
+		return allVehicles;
 	}
 
 	/**
@@ -661,315 +896,444 @@ public class RTPCharging {
 	private static JSONObject getVehicleMatchForVIN() {
 		JSONObject vehicleMatch = null;
 
-		int tries = 0;
-		while(vehicleMatch == null && ++tries < MAX_RETRIES) {
+		JSONArray vehicles = getVehicles();
+		if (vehicles != null && vehicles.length() > 0) {
 			try {
-				JSONObject responseJSON = teslaCommands.getJSON(apiBase + "/api/1/vehicles");
-				if (responseJSON != null && responseJSON.has("response")) {
-					JSONArray vehicles = responseJSON.getJSONArray("response");
-					if (vehicles != null && vehicles.length() > 0) {
+				// When we only have one vehicle and no VIN, we use the identifier of the vehicle we've found.
+				if (vehicles.length() == 1 && (vin == null || vin.length() == 0)) {
+					JSONObject vehicle = vehicles.getJSONObject(0);
+					if (vehicle != null && vehicle.has("id_s")) {
+						vehicleMatch = vehicle;
+					}
 
-						// When we only have one vehicle and no VIN, we use the identifier of the vehicle we've found.
-						if (vehicles.length() == 1 && (vin == null || vin.length() == 0)) {
-							JSONObject vehicle = vehicles.getJSONObject(0);
-							if (vehicle != null && vehicle.has("id_s")) {
+				// With multiple vehicles or a defined VIN, make sure we find the correct vehicle.
+				} else {
+					for(int i = 0; i < vehicles.length(); i++) {
+						JSONObject vehicle = vehicles.getJSONObject(i);
+						if (vehicle != null && vehicle.has("id_s") && vehicle.has("vin")) {
+							String thisVIN = vehicle.getString("vin");
+							if (thisVIN.equals(vin)) {
 								vehicleMatch = vehicle;
-							}
-
-						// With multiple vehicles or a defined VIN, make sure we find the correct vehicle.
-						} else {
-							for(int i = 0; i < vehicles.length(); i++) {
-								JSONObject vehicle = vehicles.getJSONObject(i);
-								if (vehicle != null && vehicle.has("id_s") && vehicle.has("vin")) {
-									String thisVIN = vehicle.getString("vin");
-									if (thisVIN.equals(vin)) {
-										vehicleMatch = vehicle;
-										break;
-									}
-								}
+								break;
 							}
 						}
 					}
 				}
 			} catch (JSONException ex) {
 				logger.error("Error while handling vehicles response: {}", ExceptionUtils.getExceptionString(ex));
-			} catch (Exception ex) {
-				String errorMessage = ExceptionUtils.getExceptionString(ex);
-				if (errorMessage.indexOf("HTTP response code: 40") > 0) {
+			}
+		}
+
+		return vehicleMatch;
+	}
+
+	/**
+	 * Get the list of vehicles on the account from /api/1/vehicles
+	 * @return JSONArray of vehicle details, or null if it could not be retrieved
+	 */
+	private static JSONArray getVehicles() {
+		int tries = 0;
+		while(++tries < MAX_RETRIES) {
+			int retryDelaySeconds = RETRY_INTERVAL_SECONDS;
+			try {
+				JSONObject responseJSON = teslaAPI.requestJSON("api/1/vehicles");
+				if (responseJSON != null && responseJSON.has("response")) {
+					return responseJSON.getJSONArray("response");
+				}
+			} catch (JSONException ex) {
+				logger.error("Error while handling vehicles response: {}", ExceptionUtils.getExceptionString(ex));
+			} catch (HttpStatusException ex) {
+				if (ex.isUnauthorized()) {
 					refreshTokens();
 				} else {
-					logger.warn("Error while attempting to retrieve vehicle identifier for API: {}", errorMessage);
+					logger.warn("Error while attempting to retrieve vehicle identifier for API: {}", ex.getMessage());
 				}
+				retryDelaySeconds = getRetryDelaySeconds(ex);
+			} catch (Exception ex) {
+				logger.warn("Error while attempting to retrieve vehicle identifier for API: {}", ExceptionUtils.getExceptionString(ex));
 			}
 
-			sleep(RETRY_INTERVAL_SECONDS);
+			sleep(retryDelaySeconds);
 		}
 
-		return vehicleMatch;
+		return null;
 	}
 
 	/**
-	 * Get the current state of the vehicle with the provided ID.
+	 * Get the current state of the vehicle with the provided ID without blocking the calling thread.
+	 * Failed attempts are retried after RETRY_INTERVAL_SECONDS, without sleeping a thread in between.
 	 * NOTE! This call won't wake a sleeping Tesla!
 	 * @param id ID of the vehicle to use when requesting the current state
-	 * @return String representing vehicle state (online, asleep, offline, waking, unknown)
+	 * @return Future completed with the vehicle state (online, asleep, offline, waking, unknown)
 	 */
-	private static String getVehicleState(String id) {
-		int tries = 0;
-		while(++tries < MAX_RETRIES) {
+	private static CompletableFuture<String> getVehicleStateAsync(final String id) {
+		// teslaAPI is read on each attempt, so a retry after a token refresh uses the new bearer.
+		return teslaAPI.retryAsync(() -> {
 			JSONObject vehicleResponse = null;
 			try {
 				vehicleResponse = teslaAPI.requestJSON("api/1/vehicles/" + id);
-			} catch (Exception ex) {
-				String errorMessage = ExceptionUtils.getExceptionString(ex);
-				if (errorMessage.indexOf("HTTP response code: 40") > 0) {
+			} catch (HttpStatusException ex) {
+				if (ex.isUnauthorized()) {
 					refreshTokens();
 				} else {
-					logger.warn("Failed to get vehicle: {}", errorMessage);
+					logger.warn("Failed to get vehicle: {}", ex.getMessage());
 				}
+			} catch (Exception ex) {
+				logger.warn("Failed to get vehicle: {}", ExceptionUtils.getExceptionString(ex));
 			}
 
 			if (vehicleResponse != null) {
 				JSONObject data = vehicleResponse.getJSONObject("response");
-				logger.debug("Vehicle state response: {}", data.toString(2));
+				logger.debug("Vehicle state response: {}", () -> data.toString(2));
 				if (data.has("state")) {
 					return data.getString("state");
 				}
 			}
-
-			sleep(RETRY_INTERVAL_SECONDS);
-		}
-
-		return "unknown";
+			return null;
+		}, MAX_RETRIES - 1, RETRY_INTERVAL_SECONDS).thenApply(state -> state != null ? state : "unknown");
 	}
 
 	/**
 	 * Determine whether vehicle is currently charging.
-	 * @param id ID of the vehicle to use when requesting the charge state
+	 * @param vehicle Vehicle to request the charge state for
 	 * @return Boolean for whether the vehicle is currently charging.
 	 */
-	private static boolean isVehicleCharging(String id) {
-		JSONObject chargeState = getVehicleChargeState(id);
-		if (chargeState != null) {
-			try {
-				if (chargeState.has("charging_state") && chargeState.has("charge_port_door_open")) {
-					String chargingState = chargeState.getString("charging_state");
-					return chargingState.toLowerCase().equals("charging");
-				}
-			} catch (Exception ex) { }
+	private static boolean isVehicleCharging(VehicleContext vehicle) {
+		JSONFieldValues chargeState = getVehicleChargeState(vehicle);
+		if (chargeState != null && chargeState.has(VehicleDataFields.CHARGING_STATE) && chargeState.has(VehicleDataFields.CHARGE_PORT_DOOR_OPEN)) {
+			return chargeState.getString(VehicleDataFields.CHARGING_STATE, "").toLowerCase().equals("charging");
 		}
 
 		return false;
 	}
 
 	/**
-	 * Load configuration into the variables we use. Also handles reloading configuration when the properties file is changed.
+	 * Load configuration into the variables we use. Settings that can change while running are reloaded by
+	 * reloadConfiguration when the properties file changes.
 	 */
 	private static void loadConfiguration() {
-		File config = new File(propertiesFile);
-
-		boolean configurationUpdated = false;
-		if (lastConfigurationModification > 0 && config.lastModified() > lastConfigurationModification) {
-			configurationUpdated = true;
-			log("Configuration has changed");
-		} else if (lastConfigurationModification > 0) {
-			return;
-		}
-		lastConfigurationModification = config.lastModified();
-
-		Properties prop = new Properties();
-		try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-		    prop.load(fis);
+		Properties prop = null;
+		try {
+			prop = readProperties();
 		} catch (FileNotFoundException ex) {
 			exitWithError(propertiesFile + " not found in current directory.");
 		} catch (IOException ex) {
 			exitWithError(propertiesFile + " could not be read.");
 		}
 
-		// Only read tokens and VIN on initial load, in case a different change has triggered a
-		// refresh and somehow the tokens in the file are not the most current. If the VIN changes,
-		// you're dealing with a whole new car so you should restart anyway.
-		if (!configurationUpdated) {
-			try {
-				accessToken = prop.getProperty(ACCESS_TOKEN);
-				refreshToken = prop.getProperty(REFRESH_TOKEN);
-			} catch (Exception ex) { }
-
-			if (accessToken == null || accessToken.length() == 0 || refreshToken == null || refreshToken.length() == 0) {
-				exitWithError("Tesla API access token and/or refresh token missing.");
-			}
+		// Tokens and VIN are only read here. Tokens are kept up to date in memory and saved to the file when they
+		// change, and if the VIN changes you're dealing with a whole new car so you should restart anyway.
+		try {
+			accessToken = prop.getProperty(ACCESS_TOKEN);
+			refreshToken = prop.getProperty(REFRESH_TOKEN);
+		} catch (Exception ex) { }
 
-			vin = prop.getProperty(VIN);
+		if (accessToken == null || accessToken.length() == 0 || refreshToken == null || refreshToken.length() == 0) {
+			exitWithError("Tesla API access token and/or refresh token missing.");
 		}
 
-		// Home lat/long
+		// Tokens refreshed by an earlier run are newer than the ones in the properties file
+		tokenFile = prop.getProperty(TOKEN_FILE, "tokens.properties").trim();
+		if (tokenFile.isEmpty()) {
+			tokenFile = "tokens.properties";
+		}
+		tokenStore = new TokenStore(Paths.get(tokenFile), refreshToken);
 		try {
-			double newHomeLatitude = Double.parseDouble(prop.getProperty(HOME_LATITUDE));
-			double newHomeLongitude = Double.parseDouble(prop.getProperty(HOME_LONGITUDE));
-			if (configurationUpdated && (newHomeLatitude != homeLatitude || newHomeLongitude != homeLongitude)) {
-				log("New home lat/long: " + newHomeLatitude + "/" + newHomeLongitude);
+			TokenStore.Tokens savedTokens = tokenStore.load();
+			if (savedTokens != null) {
+				logger.debug("Using tokens saved in {}", tokenFile);
+				accessToken = savedTokens.accessToken;
+				refreshToken = savedTokens.refreshToken;
 			}
-			homeLatitude = newHomeLatitude;
-			homeLongitude = newHomeLongitude;
-		} catch (Exception ex) {
-			exitWithError("Exception while setting Home latitude/longitude: " + ExceptionUtils.getExceptionString(ex));
+		} catch (IOException ex) {
+			logger.warn("Could not read saved tokens from {}. Using the ones in {}: {}", tokenFile, propertiesFile, ExceptionUtils.getExceptionString(ex));
 		}
 
-		// Max electricity price
+		vin = prop.getProperty(VIN);
+
+		String fleetModeSetting = prop.getProperty(FLEET_MODE);
+		fleetMode = (fleetModeSetting != null && fleetModeSetting.toLowerCase().equals("y"));
+
 		try {
-			double newMaxElectricityPrice = Double.parseDouble(prop.getProperty(MAX_ELECTRICITY_PRICE));
-			if (configurationUpdated && newMaxElectricityPrice != maxElectricityPrice) {
-				log("New max electricity price: " + newMaxElectricityPrice + "\u00A2 / kWh");
-			}
-			maxElectricityPrice = newMaxElectricityPrice;
+			fleetWorkerThreads = Integer.parseInt(prop.getProperty(FLEET_WORKER_THREADS));
 		} catch (Exception ex) {
-			maxElectricityPrice = 6;
+			fleetWorkerThreads = 4;
 		}
 
-		// Polling interval
+		priceHistoryFile = prop.getProperty(PRICE_HISTORY_FILE, "price_history.dat").trim();
+		tripHistoryFile = prop.getProperty(TRIP_HISTORY_FILE, "trip_history.csv").trim();
+
 		try {
-			int newPollIntervalSeconds = Integer.parseInt(prop.getProperty(POLL_INTERVAL_SECONDS));
-			if (configurationUpdated && newPollIntervalSeconds != pollIntervalSeconds) {
-				log("New polling interval: " + newPollIntervalSeconds + " seconds");
-			}
-			pollIntervalSeconds = newPollIntervalSeconds;
-		} catch (Exception ex) {
-			pollIntervalSeconds = 30;
+			metricsPort = Integer.parseInt(prop.getProperty(METRICS_PORT, "0").trim());
+		} catch (NumberFormatException ex) {
+			metricsPort = 0;
 		}
 
-		// Departure charge settings
-		boolean departureChargeUpdated = false;
 		try {
-			int newMinimumDepartureSoC = Integer.parseInt(prop.getProperty(MINIMUM_DEPARTURE_SOC));
-			if (configurationUpdated && newMinimumDepartureSoC != minimumDepartureSoC) {
-				log("New minimum departure SoC: " + newMinimumDepartureSoC + "%");
-				departureChargeUpdated = true;
-			}
-			minimumDepartureSoC = newMinimumDepartureSoC;
-		} catch (Exception ex) {
-			minimumDepartureSoC = 0;
+			adminPort = Integer.parseInt(prop.getProperty(ADMIN_PORT, "0").trim());
+		} catch (NumberFormatException ex) {
+			adminPort = 0;
+		}
+		adminToken = prop.getProperty(ADMIN_TOKEN, "").trim();
+
+		// API URLs
+		apiBase = getURLProperty(prop, TESLA_API_BASE, DEFAULT_API_BASE);
+		authURL = getURLProperty(prop, TESLA_AUTH_URL, DEFAULT_AUTH_URL);
+		comEdAPI.setBaseUrl(getURLProperty(prop, COMED_API_BASE, DEFAULT_COMED_API_BASE));
+		if (!apiBase.equals(DEFAULT_API_BASE) || !authURL.equals(DEFAULT_AUTH_URL)) {
+			logger.info("Using Tesla API at {} and token refresh at {}", apiBase, authURL);
+		}
+
+		try {
+			fileConfiguration = Configuration.fromProperties(prop);
+		} catch (IllegalArgumentException ex) {
+			exitWithError("Exception while reading home and zone settings: " + (ex.getCause() != null ? ExceptionUtils.getExceptionString(ex.getCause()) : ex.getMessage()));
 		}
+		configuration = fileConfiguration;
+	}
 
+	/**
+	 * Reload the settings that can change while running, after the properties file has changed. Runs on the file
+	 * watcher's thread, and publishes the new settings all at once. An invalid file is logged and ignored.
+	 */
+	private static void reloadConfiguration() {
+		Configuration newFileConfiguration;
 		try {
-			double newSoCGainPerHour = Double.parseDouble(prop.getProperty(SOC_GAIN_PER_HOUR));
-			if (configurationUpdated && newSoCGainPerHour != soCGainPerHour) {
-				log("New SoC gain per hour: " + newSoCGainPerHour + "%");
-				departureChargeUpdated = true;
+			newFileConfiguration = Configuration.fromProperties(readProperties());
+		} catch (IOException | IllegalArgumentException ex) {
+			logger.error("Ignoring changes to {}: {}", propertiesFile, ex.getMessage());
+			return;
+		}
+
+		synchronized (RTPCharging.class) {
+			// Saving tokens rewrites the file without changing any settings
+			if (newFileConfiguration.equals(fileConfiguration)) {
+				logger.debug("{} changed, but none of the settings did", propertiesFile);
+				return;
 			}
-			soCGainPerHour = newSoCGainPerHour;
-		} catch (Exception ex) {
-			soCGainPerHour = 0;
-			minimumDepartureSoC = 0;
+			fileConfiguration = newFileConfiguration;
+
+			logger.info("Configuration has changed");
+			publishConfiguration(newFileConfiguration, "");
 		}
+	}
 
-		shouldChargeForDepature = (minimumDepartureSoC > 0 && soCGainPerHour > 0);
-		if (configurationUpdated && departureChargeUpdated) {
-			log("Vehicle will" + (!shouldChargeForDepature ? " not" : "") + " be charged to reach minimum departure SoC" + (minimumDepartureSoC > 0 ? " of " + minimumDepartureSoC + "%" : "") + ".");
+	/**
+	 * Teach each vehicle's return home predictor the trips saved from earlier runs
+	 * @param vehicles Vehicles being monitored
+	 */
+	private static void loadTripHistory(List<VehicleContext> vehicles) {
+		if (tripHistoryFile.length() == 0) {
+			return;
 		}
+		tripHistory = new TripHistoryStore(Paths.get(tripHistoryFile));
+		try {
+			Map<String, List<TripModel.Trip>> trips = tripHistory.load();
+			for(VehicleContext vehicle : vehicles) {
+				for(TripModel.Trip trip : trips.getOrDefault(vehicle.id, Collections.emptyList())) {
+					vehicle.returnHome.learn(trip);
+				}
+				logger.debug("Learned from {} earlier trips of {}", vehicle.returnHome.getTrips(), vehicle);
+			}
+		} catch (IOException ex) {
+			logger.warn("Could not read trip history {}: {}", tripHistoryFile, ExceptionUtils.getExceptionString(ex));
+		}
+	}
 
-		// Restart on current drop setting
-		boolean newRestartOnCurrentDrop = false;
-		String restartOnCurrentDropSetting = prop.getProperty(RESTART_ON_CURRENT_DROP);
-		if (restartOnCurrentDropSetting != null && restartOnCurrentDropSetting.toLowerCase().equals("y")) {
-			newRestartOnCurrentDrop = true;
+	/**
+	 * @return Properties read from the properties file
+	 * @throws IOException When the file can't be read
+	 */
+	private static Properties readProperties() throws IOException {
+		Properties prop = new Properties();
+		try (FileInputStream fis = new FileInputStream(propertiesFile)) {
+			prop.load(fis);
 		}
+		return prop;
+	}
 
-		if (configurationUpdated && newRestartOnCurrentDrop != restartOnCurrentDrop) {
-			log("New restart on current drop flag: " + (newRestartOnCurrentDrop ? "Y" : "N"));
+	/**
+	 * Replace the current settings, logging what changed
+	 * @param newConfiguration New settings
+	 * @param source Where the change came from, appended to the log messages
+	 */
+	private static synchronized void publishConfiguration(Configuration newConfiguration, String source) {
+		Configuration previous = configuration;
+		configuration = newConfiguration;
+
+		if (newConfiguration.homeLatitude != previous.homeLatitude || newConfiguration.homeLongitude != previous.homeLongitude) {
+			logger.info("New home lat/long{}: {}/{}", source, newConfiguration.homeLatitude, newConfiguration.homeLongitude);
+		}
+		if (newConfiguration.homeRadiusMeters != previous.homeRadiusMeters) {
+			logger.info("New home radius{}: {} meters", source, newConfiguration.homeRadiusMeters);
+		}
+		if (!newConfiguration.geofenceSpec.equals(previous.geofenceSpec)) {
+			logger.info("New zones{}: {}", source, newConfiguration.geofences.getZones());
+		}
+		if (newConfiguration.maxElectricityPrice != previous.maxElectricityPrice) {
+			logger.info("New max electricity price{}: {}\u00A2 / kWh", source, newConfiguration.maxElectricityPrice);
+		}
+		if (newConfiguration.pollIntervalSeconds != previous.pollIntervalSeconds) {
+			logger.info("New polling interval{}: {} seconds", source, newConfiguration.pollIntervalSeconds);
+		}
+		if (newConfiguration.minimumDepartureSoC != previous.minimumDepartureSoC) {
+			logger.info("New minimum departure SoC{}: {}%", source, newConfiguration.minimumDepartureSoC);
+		}
+		if (newConfiguration.soCGainPerHour != previous.soCGainPerHour) {
+			logger.info("New SoC gain per hour{}: {}%", source, newConfiguration.soCGainPerHour);
+		}
+		if (newConfiguration.minimumDepartureSoC != previous.minimumDepartureSoC || newConfiguration.soCGainPerHour != previous.soCGainPerHour) {
+			logDepartureSoC(newConfiguration);
+		}
+		if (newConfiguration.restartOnCurrentDrop != previous.restartOnCurrentDrop) {
+			logger.info("New restart on current drop flag{}: {}", source, newConfiguration.restartOnCurrentDrop ? "Y" : "N");
 		}
-		restartOnCurrentDrop = newRestartOnCurrentDrop;
 	}
 
 	/**
-	 * Log an informational message
-	 * @param msg String message to log
+	 * Apply settings posted to the admin endpoint. Every value is checked before any of them is applied, and the new
+	 * settings are published together, so a request changes everything it names or nothing. Changes are only kept in
+	 * memory, until the properties file's settings change or the program restarts.
+	 * @param changes Property keys (e.g. MAX_ELECTRICITY_PRICE) and their new values
+	 * @return Settings after the change
+	 * @throws IllegalArgumentException When a key can't be changed at runtime or a value is invalid
 	 */
-	private static void log(String msg) {
-		logger.info(msg);
+	static synchronized JSONObject applyConfigChanges(JSONObject changes) {
+		publishConfiguration(configuration.withChanges(changes), " from admin endpoint");
+		return getSettings();
 	}
 
 	/**
-	 * Refresh the access and refresh tokens for Tesla API access
+	 * @return Settings that can be changed while running
 	 */
-	private static void refreshTokens() {
-		JSONObject body = new JSONObject()
-			.put("grant_type", "refresh_token")
-			.put("client_id", "ownerapi")
-			.put("refresh_token", refreshToken)
-			.put("scope", "openid email offline_access")
-		;
-
-		WebRequest tokenRequest = new WebRequest();
-		try {
-			String response = tokenRequest.post("https://auth.tesla.com/oauth2/v3/token", body.toString());
-			JSONObject responseJSON = new JSONObject(response);
-			logger.debug("Refresh tokens response: {}",  responseJSON.toString(2));
-			String newAccessToken = null, newRefreshToken = null;
-			if (responseJSON.has("refresh_token") && responseJSON.has("access_token")) {
-				newAccessToken = responseJSON.getString("access_token");
-				newRefreshToken = responseJSON.getString("refresh_token");
-			}
+	static JSONObject getSettings() {
+		return configuration.toJSON();
+	}
 
-			if (newAccessToken != null) {
-				HashMap<String, Object> newTokens = new HashMap<String, Object>();
-				newTokens.put(ACCESS_TOKEN, newAccessToken);
-				newTokens.put(REFRESH_TOKEN, newRefreshToken);
+	/**
+	 * @return Latest price, settings and what we believe about each vehicle, for the admin status endpoint
+	 */
+	static JSONObject getStatus() {
+		ComEdPriceFeed.Price price = comEdFeed.getLatest();
+		JSONArray vehicleStatus = new JSONArray();
+		for(VehicleContext vehicle : monitoredVehicles) {
+			vehicleStatus.put(vehicle.getStatus());
+		}
 
-				accessToken = newAccessToken;
-				refreshToken = newRefreshToken;
+		return new JSONObject()
+			.put("version", programVersion)
+			.put("price", price != null ? new JSONObject().put("cents", price.price).put("millisUTC", price.millisUTC) : JSONObject.NULL)
+			.put("settings", getSettings())
+			.put("vehicles", vehicleStatus);
+	}
 
-				updateConfiguration(newTokens);
-			} else {
-				logger.error("Exception while handling new access token for Tesla Owner API: Null new access token");
-			}
-		} catch (Exception ex) {
-			logger.error("Exception while getting refresh token for Tesla API: {}", ExceptionUtils.getExceptionString(ex));
+	/**
+	 * How long to wait before retrying a request that failed with an error status. Honors Retry-After (e.g. on a 429),
+	 * within reason.
+	 * @param ex Error response
+	 * @return Seconds to wait
+	 */
+	private static int getRetryDelaySeconds(HttpStatusException ex) {
+		long retryAfterSeconds = ex.getRetryAfterSeconds();
+		if (retryAfterSeconds < 0) {
+			return RETRY_INTERVAL_SECONDS;
 		}
+		return (int) Math.min(MAX_RETRY_AFTER_SECONDS, Math.max(RETRY_INTERVAL_SECONDS, retryAfterSeconds));
+	}
 
-		setupAPIObjects();
+	/**
+	 * Get a URL from the properties file, without a trailing slash
+	 * @param prop Loaded properties
+	 * @param key Property key
+	 * @param defaultURL URL to use when the property is missing or blank
+	 * @return URL
+	 */
+	private static String getURLProperty(Properties prop, String key, String defaultURL) {
+		String url = prop.getProperty(key, "").trim();
+		if (url.length() == 0) {
+			return defaultURL;
+		}
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		return url;
+	}
+
+	/**
+	 * Log whether we'll charge to reach the minimum departure SoC
+	 */
+	private static void logDepartureSoC(Configuration config) {
+		if (config.shouldChargeForDeparture()) {
+			logger.info("Vehicle will be charged to reach minimum departure SoC of {}%.", config.minimumDepartureSoC);
+		} else {
+			logger.info("Vehicle will not be charged to reach minimum departure SoC.");
+		}
+	}
+
+	/**
+	 * Refresh the access and refresh tokens for Tesla API access after a request was rejected. Concurrent and repeated
+	 * calls share a single refresh.
+	 */
+	private static void refreshTokens() {
+		RTPMetrics.tokenRefreshRequests.increment();
+		tokenManager.refresh();
 	}
 
 	/**
 	 * Send a charge command to the vehicle
-	 * @param id ID of the vehicle to use in the charge command request
+	 * @param vehicle Vehicle to send the charge command to
 	 * @param chargeCommand Command to send (start/stop)
 	 * @return Boolean for whether the command was successful
 	 */
-	private static boolean sendChargeCommand(String id, String chargeCommand) {
+	private static boolean sendChargeCommand(VehicleContext vehicle, String chargeCommand) {
 		int tries = 0;
-		String apiEndpoint = apiBase + "/api/1/vehicles/" + id + "/command/charge_" + chargeCommand;
+		String apiEndpoint = apiBase + "/api/1/vehicles/" + vehicle.id + "/command/charge_" + chargeCommand;
+		RTPMetrics.CallMetrics metrics = RTPMetrics.forChargeCommand(chargeCommand);
 		while(++tries < MAX_RETRIES) {
+			int retryDelaySeconds = RETRY_INTERVAL_SECONDS;
+			metrics.attempts.increment();
 			try {
 				String chargeResponse = teslaCommands.post(apiEndpoint);
 				JSONObject responseJSON = new JSONObject(chargeResponse);
 				if (responseJSON != null && responseJSON.has("response") && responseJSON.getJSONObject("response").has("result") &&
 					responseJSON.getJSONObject("response").getBoolean("result") == true) {
-					return true;
+					vehicle.wake.confirmOnline(System.currentTimeMillis());
+					return metrics.finish(true);
 				}
-			} catch (Exception ex) {
-				String errorMessage = ExceptionUtils.getExceptionString(ex);
-				if (errorMessage.indexOf("HTTP response code: 40") < 0) {
-					logger.error("Exception while calling charging request to {}: {}", apiEndpoint, ExceptionUtils.getExceptionString(ex));
-				} else {
+			} catch (HttpStatusException ex) {
+				if (ex.getStatusCode() == 408) {
+					vehicle.wake.sawAsleep(System.currentTimeMillis());
+					wakeUpVehicle(vehicle);
+				} else if (ex.isUnauthorized()) {
 					refreshTokens();
+				} else if (ex.getStatusCode() != 429) {
+					logger.error("Charging request to {} failed: {}", apiEndpoint, ex.getMessage());
 				}
+				retryDelaySeconds = getRetryDelaySeconds(ex);
+			} catch (Exception ex) {
+				logger.error("Exception while calling charging request to {}: {}", apiEndpoint, ExceptionUtils.getExceptionString(ex));
 			}
 
-			sleep(RETRY_INTERVAL_SECONDS);
+			sleep(retryDelaySeconds);
 		}
 
-		return false;
+		return metrics.finish(false);
 	}
 
 	/**
 	 * Create the objects we use to access the Tesla API.
 	 */
 	private static void setupAPIObjects() {
-		teslaAPI = new RESTRequest().setBaseUrl(apiBase);
-		teslaAPI.setBearer(accessToken);
-
-		teslaCommands = new WebRequest();
-		teslaCommands.setBearer(accessToken);
+		tokenManager = new TokenManager(authURL, accessToken, refreshToken, tokenStore);
+		Runtime.getRuntime().addShutdownHook(new Thread(tokenStore::close, "token-store-flush"));
+		teslaAPI = tokenManager.register(new RESTRequest().setBaseUrl(apiBase).setCache(responseCache));
+		teslaCommands = tokenManager.register(new WebRequest());
+		teslaAPI.setMetrics(RTPMetrics.teslaRequests);
+		teslaCommands.setMetrics(RTPMetrics.teslaRequests);
+		comEdAPI.setMetrics(RTPMetrics.comEdRequests);
+		comEdAPI.setCache(responseCache);
+		RTPMetrics.registerTokenManager(tokenManager);
+		RTPMetrics.registerResponseCache(responseCache);
 	}
 
 	/**
@@ -977,159 +1341,159 @@ public class RTPCharging {
 	 * @param seconds Number of seconds to pause execution
 	 */
 	private static void sleep(int seconds) {
+		sleepMillis(seconds * 1000L);
+	}
+
+	/**
+	 * Pause execution for a provided number of milliseconds.
+	 * @param millis Number of milliseconds to pause execution. Nothing happens if this isn't positive.
+	 */
+	private static void sleepMillis(long millis) {
+		if (millis <= 0) {
+			return;
+		}
 		try {
-			Thread.sleep(seconds * 1000);
+			Thread.sleep(millis);
 		} catch (Exception e) { }
 	}
 
 	/**
 	 * Start charging the vehicle
-	 * @param id ID of the vehicle to use in the request to start charging
+	 * @param vehicle Vehicle to start charging
 	 * @return Boolean for resulting charge state (true = charging, false = not charging)
 	 */
-	private static boolean startCharging(String id) {
-		boolean result = sendChargeCommand(id, "start");
-		log("Vehicle charge start " + (result ? "successful" : "failed") + ".");
+	private static boolean startCharging(VehicleContext vehicle) {
+		boolean result = sendChargeCommand(vehicle, "start");
+		vehicle.snapshots.invalidate();
+		logger.info("Vehicle charge start {}.", result ? "successful" : "failed");
 		return result;
 	}
 
 	/**
 	 * Stop charging the vehicle
-	 * @param id ID of the vehicle to use in the request to stop charging
+	 * @param vehicle Vehicle to stop charging
 	 * @return Boolean for resulting charge state (true = charging, false = not charging)
 	 */
-	private static boolean stopCharging(String id) {
-		boolean result = sendChargeCommand(id, "stop");
-		log("Vehicle charge stop " + (result ? "successful" : "failed") + ".");
+	private static boolean stopCharging(VehicleContext vehicle) {
+		boolean result = sendChargeCommand(vehicle, "stop");
+		vehicle.snapshots.invalidate();
+		logger.info("Vehicle charge stop {}.", result ? "successful" : "failed");
 		return !result;
 	}
 
 	/**
-	 * Store any updated configuration values in the properties file
-	 * @param configChanges HashMap of configuration keys and values to update
-	 */
-	private static void updateConfiguration(HashMap<String, Object> configChanges) {
-		logger.debug("Update configuration with {}", new JSONObject(configChanges).toString());		
-		ArrayList<String> newLines = new ArrayList<String>();
-		Scanner scanner;
-		try {
-			scanner = new Scanner(new File(propertiesFile));
-			while(scanner.hasNextLine()) {
-				String line = scanner.nextLine().trim();
-				if (line.indexOf("=") > 0) {
-					String[] parts = line.split("=", 2);
-					String key = parts[0];
-					String value = parts[1];
-					if (configChanges.containsKey(key)) {
-						value = configChanges.get(key).toString();
-					}
-					line = key + "=" + value;
-				}
-				newLines.add(line);
-			}
-			scanner.close();
-		} catch (Exception ex) {
-			logger.error("Configuration read/update exception: {}", ExceptionUtils.getExceptionString(ex));
-		}
-
-		if (newLines.size() > 0) {
-			BufferedWriter writer;
-			try {
-				writer = new BufferedWriter(new FileWriter(propertiesFile));
-				for(String line : newLines) {
-					writer.write(line + "\n");
-				}
-				writer.close();
-
-				sleep(1);
-				File config = new File(propertiesFile);
-				lastConfigurationModification = config.lastModified();
-			} catch (Exception ex) {
-				logger.error("Configuration write exception: {}", ExceptionUtils.getExceptionString(ex));
-			}
-		}
-	}
-
-	/**
-	 * Request current location details from vehicle and store them in our queue, returning the current location details.
-	 * @param id ID of the vehicle to use in the drive state request
-	 * @return VehicleLocation object with location details returned from the Tesla API
+	 * Request current location details from vehicle and store them in our queue and the vehicle's latitude, longitude
+	 * and locationSeconds.
+	 * @param vehicle Vehicle to request location details for
+	 * @param config Settings for the iteration
+	 * @return Whether the Tesla API returned a location
 	 */
-	private static VehicleLocation updateVehicleLocationDetails(String id) {
-		wakeUpVehicle(id);
+	private static boolean updateVehicleLocationDetails(VehicleContext vehicle, Configuration config) {
+		wakeUpVehicle(vehicle);
 
-		JSONObject driveStateResponse = getVehicleDriveState(id);
-		VehicleLocation v = null;
+		JSONFieldValues driveStateResponse = getVehicleDriveState(vehicle);
 		if (driveStateResponse != null) {
 			try {
-				if (driveStateResponse.has("latitude") && driveStateResponse.has("longitude")) {
+				if (driveStateResponse.getType(VehicleDataFields.LATITUDE) == JSONFieldValues.NUMBER && driveStateResponse.getType(VehicleDataFields.LONGITUDE) == JSONFieldValues.NUMBER) {
 
-					double currentLatitude = driveStateResponse.getDouble("latitude");
-					double currentLongitude = driveStateResponse.getDouble("longitude");
-					double speed = driveStateResponse.isNull("speed") ? 0 : driveStateResponse.getDouble("speed");
-					double heading = driveStateResponse.getDouble("heading");
-					double timestamp = driveStateResponse.getDouble("timestamp");
+					double currentLatitude = driveStateResponse.getDouble(VehicleDataFields.LATITUDE, 0);
+					double currentLongitude = driveStateResponse.getDouble(VehicleDataFields.LONGITUDE, 0);
+					double speed = driveStateResponse.getDouble(VehicleDataFields.SPEED, 0);
+					double heading = driveStateResponse.getDouble(VehicleDataFields.HEADING, 0);
 
-					v = new VehicleLocation(currentLatitude, currentLongitude, speed, heading, timestamp);
+					// Tesla sends milliseconds. We keep seconds.
+					long seconds = (long) Math.floor(driveStateResponse.getDouble(VehicleDataFields.DRIVE_TIMESTAMP, 0) / 1000);
 
 					// Vehicle is currently navigating. We can use that to schedule the next location poll!
-					if (driveStateResponse.has("active_route_latitude") && driveStateResponse.has("active_route_longitude")) {
-						double destinationLatitude = driveStateResponse.getDouble("active_route_latitude");
-						double destinationLongitude = driveStateResponse.getDouble("active_route_longitude");
-
-						VehicleLocation destination = new VehicleLocation(destinationLatitude, destinationLongitude);
-						if (driveStateResponse.has("active_route_minutes_to_arrival")) {
-							double destinationMinutesToArrival = driveStateResponse.getDouble("active_route_minutes_to_arrival");
-							if (destination.distanceFrom(homeLatitude, homeLongitude) == 0) {
-								v.setGoingHome(true);
-							} else {
-								v.setGoingAwayFromHome(true);
-							}
-							v.setMinutesToArrival(destinationMinutesToArrival);
+					boolean goingHome = false, goingAwayFromHome = false;
+					double minutesToArrival = 0;
+					if (driveStateResponse.getType(VehicleDataFields.ACTIVE_ROUTE_LATITUDE) == JSONFieldValues.NUMBER && driveStateResponse.getType(VehicleDataFields.ACTIVE_ROUTE_LONGITUDE) == JSONFieldValues.NUMBER) {
+						double destinationLatitude = driveStateResponse.getDouble(VehicleDataFields.ACTIVE_ROUTE_LATITUDE, 0);
+						double destinationLongitude = driveStateResponse.getDouble(VehicleDataFields.ACTIVE_ROUTE_LONGITUDE, 0);
+
+						if (driveStateResponse.getType(VehicleDataFields.ACTIVE_ROUTE_MINUTES_TO_ARRIVAL) == JSONFieldValues.NUMBER) {
+							minutesToArrival = driveStateResponse.getDouble(VehicleDataFields.ACTIVE_ROUTE_MINUTES_TO_ARRIVAL, 0);
+							goingHome = config.geofences.isAtHome(destinationLatitude, destinationLongitude);
+							goingAwayFromHome = !goingHome;
 						}
 					}
 
-					logger.debug("Most recent vehicle location: {}", v.toString());
+					if (logger.isDebugEnabled()) {
+						logger.debug("Most recent vehicle location: Lat: {}, Long: {}, Heading: {}, Speed: {}, Timestamp: {}", currentLatitude, currentLongitude, heading, speed, seconds);
+					}
 
 					// When we see vehicle is at home, clear location history so when we start looking at history to
 					// determine next polling times we don't have to worry about home -> destination -> home.
-					double distanceFromHome = v.distanceFrom(homeLatitude, homeLongitude);
-					if (distanceFromHome == 0) {
-						vehicleLocationHistory.clear();
-						lastHome = v;
+					String zone = config.geofences.findName(currentLatitude, currentLongitude);
+					if (config.geofences.isAtHome(currentLatitude, currentLongitude)) {
+						vehicle.locationHistory.clear();
+						TripModel.Trip finishedTrip = vehicle.trip.arrivedHome(currentLatitude, currentLongitude, seconds);
+						if (finishedTrip != null) {
+							logger.info("{}: {}", vehicle, finishedTrip);
+							if (vehicle.returnHome.learn(finishedTrip) && tripHistory != null) {
+								try {
+									tripHistory.append(vehicle.id, finishedTrip);
+								} catch (IOException ex) {
+									logger.warn("Could not save trip to {}: {}", tripHistoryFile, ExceptionUtils.getExceptionString(ex));
+								}
+							}
+						}
+					} else {
+						vehicle.trip.add(currentLatitude, currentLongitude, seconds, zone);
 					}
 
-					// Only add this new location to the queue if it significantly different from the two entries that came
-					// before it. We only need two entries in a row to decide the vehicle has stopped, no point in continuing
-					// to fill the queue with stopped entries.
-					int locationHistorySize = vehicleLocationHistory.size();
-					if (locationHistorySize >= 2) {
-						VehicleLocation mostRecentLocation = vehicleLocationHistory.get(locationHistorySize - 1);
-						VehicleLocation previousLocation = vehicleLocationHistory.get(locationHistorySize - 2);
-						if (!(mostRecentLocation.distanceFrom(previousLocation) == 0 && mostRecentLocation.distanceFrom(v) == 0)) {
-							vehicleLocationHistory.add(v);
+					if (!Objects.equals(zone, vehicle.zone)) {
+						if (zone != null) {
+							logger.info("{} arrived at {}", vehicle, zone);
+						} else {
+							logger.info("{} left {}", vehicle, vehicle.zone);
 						}
-					} else {
-						vehicleLocationHistory.add(v);
+						vehicle.zone = zone;
+					}
+
+					// Only add this new location to the history if it significantly different from the two entries that came
+					// before it. We only need two entries in a row to decide the vehicle has stopped, no point in continuing
+					// to fill the history with stopped entries.
+					if (!vehicle.locationHistory.isRepeatOfStop(currentLatitude, currentLongitude)) {
+						vehicle.locationHistory.add(currentLatitude, currentLongitude, speed, heading, seconds, minutesToArrival, goingHome, goingAwayFromHome);
 					}
+
+					vehicle.latitude = currentLatitude;
+					vehicle.longitude = currentLongitude;
+					vehicle.locationSeconds = seconds;
+					return true;
 				}
 			} catch (Exception ex) {
 				logger.error("Failed to parse drive state response: {}", ExceptionUtils.getExceptionString(ex));
 			}
 		}
 
-		return v;
+		return false;
+	}
+
+	/**
+	 * Wake up the vehicle so we know future commands will work. Nothing is sent when the vehicle was just confirmed
+	 * online, and a wake already running for the vehicle is waited for instead of starting another (see WakeTracker).
+	 * @param vehicle Vehicle to wake up
+	 */
+	private static void wakeUpVehicle(VehicleContext vehicle) {
+		RTPMetrics.wakeUpsRequested.increment();
+		if (!vehicle.wake.wake(() -> sendWakeUp(vehicle.id))) {
+			logger.debug("Vehicle did not wake up.");
+		}
 	}
 
 	/**
-	 * Wake up the vehicle so we know future commands will work.
+	 * Send wake_up until the vehicle reports that it is online, or we run out of tries
 	 * @param id ID of the vehicle to use in the wake_up request
+	 * @return Whether the vehicle is online
 	 */
-	private static void wakeUpVehicle(String id) {
+	private static boolean sendWakeUp(String id) {
 		logger.debug("Wake up, Tesla {}!", id);
 		boolean isAwake = false;
 		int tries = 0;
 		while(!isAwake && ++tries < MAX_RETRIES) {
+			RTPMetrics.wakeUpCalls.attempts.increment();
 			try {
 				String wakeResponse = teslaCommands.post(apiBase + "/api/1/vehicles/" + id + "/wake_up");
 				if (wakeResponse != null && wakeResponse.startsWith("{")) {
@@ -1139,19 +1503,24 @@ public class RTPCharging {
 						if (response.has("state") && response.getString("state").equals("online")) {
 							isAwake = true;
 						}
-					} else {
-						refreshTokens();
 					}
 				} else {
+					logger.debug("Unexpected wake up response: {}", wakeResponse);
+				}
+			} catch (HttpStatusException ex) {
+				if (ex.isUnauthorized()) {
 					refreshTokens();
+				} else {
+					logger.debug("Wake up request returned HTTP {}", ex.getStatusCode());
 				}
 			} catch (Exception ex) {
-				refreshTokens();
+				logger.warn("Wake up request failed: {}", ExceptionUtils.getExceptionString(ex));
 			}
 
 			if (!isAwake) {
 				sleep(RETRY_INTERVAL_SECONDS);
 			}
 		}
+		return RTPMetrics.wakeUpCalls.finish(isAwake);
 	}
 }
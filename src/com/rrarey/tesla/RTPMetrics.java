@@ -0,0 +1,133 @@
+package com.rrarey.tesla;
+
+import com.rrarey.metrics.Counter;
+import com.rrarey.metrics.Gauge;
+import com.rrarey.metrics.Histogram;
+import com.rrarey.metrics.MetricsRegistry;
+import com.rrarey.web.RequestMetrics;
+import com.rrarey.web.ResponseCache;
+
+/**
+ * Everything RTPCharging measures. Kept in the default MetricsRegistry, and served for Prometheus on METRICS_PORT.
+ */
+final class RTPMetrics {
+	/**
+	 * Attempts and outcomes of one kind of Tesla API call that we retry
+	 */
+	static final class CallMetrics {
+		final Counter
+			attempts,
+			succeeded,
+			failed
+		;
+
+		CallMetrics(String call) {
+			attempts = registry.counter("tesla_call_attempts_total", "Requests made for retried Tesla API calls, including retries", "call", call);
+			succeeded = registry.counter("tesla_calls_total", "Retried Tesla API calls by final result", "call", call, "result", "success");
+			failed = registry.counter("tesla_calls_total", "Retried Tesla API calls by final result", "call", call, "result", "failure");
+		}
+
+		/**
+		 * @param success Whether the call eventually succeeded
+		 * @return success
+		 */
+		boolean finish(boolean success) {
+			(success ? succeeded : failed).increment();
+			return success;
+		}
+	}
+
+	static final MetricsRegistry registry = MetricsRegistry.getDefault();
+
+	// HTTP requests, by API
+	static final RequestMetrics
+		teslaRequests = new RequestMetrics(registry, "tesla"),
+		teslaAuthRequests = new RequestMetrics(registry, "tesla_auth"),
+		comEdRequests = new RequestMetrics(registry, "comed")
+	;
+
+	// Retried Tesla API calls
+	static final CallMetrics
+		vehicleDataCalls = new CallMetrics("vehicle_data"),
+		wakeUpCalls = new CallMetrics("wake_up"),
+		chargeStartCalls = new CallMetrics("charge_start"),
+		chargeStopCalls = new CallMetrics("charge_stop")
+	;
+
+	// Tokens
+	static final Counter
+		tokenRefreshRequests = registry.counter("tesla_token_refresh_requests_total", "Token refreshes asked for after a request was rejected, including ones answered by a refresh already running"),
+		tokenRefreshesSucceeded = registry.counter("tesla_token_refreshes_total", "Token refresh requests sent, by result", "result", "success"),
+		tokenRefreshesFailed = registry.counter("tesla_token_refreshes_total", "Token refresh requests sent, by result", "result", "failure")
+	;
+
+	// Main loop and vehicle iterations
+	static final Histogram
+		loopDuration = registry.histogram("rtp_loop_duration_seconds", "Time spent in each pass of the main loop, not counting the sleep after it"),
+		vehicleIterationDuration = registry.histogram("rtp_vehicle_iteration_duration_seconds", "Time taken by each vehicle iteration")
+	;
+	static final Counter vehicleIterationsSkipped = registry.counter("rtp_vehicle_iterations_skipped_total", "Vehicle iterations skipped because the previous one was still running");
+
+	// Location checks, each waking the vehicle, avoided on trips compared to checking at the default interval
+	static final Counter
+		locationChecksAvoidedByTripModel = registry.counter("rtp_location_checks_avoided_total", "Location checks, each waking the vehicle, avoided on trips compared to checking at the default interval, by what scheduled the check", "scheduler", "trip_model"),
+		locationChecksAvoidedByPrediction = registry.counter("rtp_location_checks_avoided_total", "Location checks, each waking the vehicle, avoided on trips compared to checking at the default interval, by what scheduled the check", "scheduler", "return_prediction")
+	;
+
+	// Wakes skipped on a new price because the charge plan didn't need the vehicle
+	static final Counter wakeUpsAvoidedByChargePlan = registry.counter("rtp_charge_plan_wake_ups_avoided_total", "New prices the vehicle wasn't woken for because neither the price nor the charge plan called for charging");
+
+	// Wake-ups asked for, each of which used to send at least one wake_up, and the ones that didn't need to. The
+	// wake_up requests actually sent are tesla_call_attempts_total{call="wake_up"}.
+	static final Counter
+		wakeUpsRequested = registry.counter("rtp_wake_ups_requested_total", "Times a vehicle needed to be awake"),
+		wakeUpsSkippedOnline = registry.counter("rtp_wake_ups_skipped_total", "Wake-ups not sent, by reason", "reason", "recently_online"),
+		wakeUpsSkippedCoalesced = registry.counter("rtp_wake_ups_skipped_total", "Wake-ups not sent, by reason", "reason", "already_waking")
+	;
+
+	// Latest ComEd price
+	static final Gauge
+		comEdPrice = registry.gauge("comed_price_cents_per_kwh", "Latest 5-minute price"),
+		comEdPriceTimestamp = registry.gauge("comed_price_timestamp_seconds", "Time of the latest 5-minute price")
+	;
+
+	private RTPMetrics() { }
+
+	/**
+	 * @param command Charge command (start/stop)
+	 * @return Metrics for the command
+	 */
+	static CallMetrics forChargeCommand(String command) {
+		return command.equals("start") ? chargeStartCalls : chargeStopCalls;
+	}
+
+	/**
+	 * Expose stats the response cache keeps itself
+	 * @param cache Response cache
+	 */
+	static void registerResponseCache(ResponseCache cache) {
+		String help = "Cached responses looked up, by outcome";
+		registry.counter("response_cache_lookups_total", help, cache::getHits, "result", "hit");
+		registry.counter("response_cache_lookups_total", help, cache::getNotModified, "result", "not_modified");
+		registry.counter("response_cache_lookups_total", help, cache::getMisses, "result", "miss");
+		registry.gauge("response_cache_size_bytes", "Estimated size of the cached responses", cache::getSizeBytes);
+	}
+
+	/**
+	 * Expose stats the ComEd poll scheduler keeps itself
+	 * @param scheduler ComEd poll scheduler
+	 */
+	static void registerComEdScheduler(ComEdPollScheduler scheduler) {
+		registry.counter("comed_polls_total", "Polls of the ComEd 5-minute feed", scheduler::getPolls);
+		registry.counter("comed_polls_saved_total", "Polls saved compared to polling at a fixed interval", scheduler::getPollsSaved);
+		registry.counter("comed_new_prices_total", "New 5-minute prices seen", scheduler::getNewPrices);
+	}
+
+	/**
+	 * Expose the access token's expiry
+	 * @param tokenManager Token manager
+	 */
+	static void registerTokenManager(TokenManager tokenManager) {
+		registry.gauge("tesla_token_expiry_timestamp_seconds", "When the current access token expires, or 0 if unknown", () -> tokenManager.getExpiresAtMillis() / 1000.0);
+	}
+}
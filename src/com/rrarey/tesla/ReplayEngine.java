@@ -0,0 +1,367 @@
+package com.rrarey.tesla;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.LongFunction;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Replays a recorded ComEd price series and a recorded vehicle trace through the same charging decision code the
+ * live loop uses, on a virtual clock, and reports the charge commands it would have sent.
+ *
+ * Usage: ReplayEngine prices vehicle_trace [properties]
+ *	prices			ComEd 5-minute feed JSON (an array of {millisUTC, price}), or a PRICE_HISTORY_FILE
+ *	vehicle_trace	One vehicle_data snapshot per line: {"charge_state": {...}, "drive_state": {...}}
+ *	properties		Properties file with the charging settings to test. Defaults to app.properties.
+ *
+ * Between snapshots, the simulated vehicle gains SOC_GAIN_PER_HOUR while the replay has it charging. Snapshots
+ * still decide whether it is plugged in, its charge limit and its departure settings, and a snapshot taken while
+ * unplugged resets its battery level. While the recorded vehicle was charging, its charger_actual_current is the
+ * simulated vehicle's too, so restartOnCurrentDrop can be replayed.
+ *
+ * Each new price goes through the live loop's checks (RTPCharging.shouldCheckCharging) before the charge state is
+ * looked at, so a vehicle that nothing calls for charging is left asleep as it would be. The simulated vehicle is
+ * awake while it charges, and for WakeTracker.DEFAULT_FALL_ASLEEP_MILLIS after a snapshot or a check. Checking it
+ * while it is asleep counts as a wake.
+ *
+ * Like the live loop, the replay keeps a ChargePlan for the departure and charges in its planned hours. Plans are
+ * forecast only from the prices replayed before them.
+ */
+public class ReplayEngine {
+	/**
+	 * A charge command the replay would have sent
+	 */
+	static final class Command {
+		final long millisUTC;
+		final ChargeDecision.Action action;
+		final double
+			price,
+			batteryLevel
+		;
+		final boolean
+			forced,
+			planned
+		;
+
+		Command(long millisUTC, ChargeDecision.Action action, double price, double batteryLevel, boolean forced, boolean planned) {
+			this.millisUTC = millisUTC;
+			this.action = action;
+			this.price = price;
+			this.batteryLevel = batteryLevel;
+			this.forced = forced;
+			this.planned = planned;
+		}
+
+		public String toString() {
+			return RTPCharging.timeFormatter.format(Instant.ofEpochMilli(millisUTC)) + " " + action +
+				" at " + price + "\u00A2/kWh, SoC " + String.format("%.1f", batteryLevel) + "%" + (forced ? " (departure SoC)" : planned ? " (planned)" : "");
+		}
+	}
+
+	// Charging settings being tested
+	Configuration config = null;
+
+	// Results
+	final List<Command> commands = new ArrayList<Command>();
+	long
+		decisions = 0,
+		wakes = 0,
+		plans = 0,
+		decisionNanos = 0,
+		maxDecisionNanos = 0,
+		chargingMillis = 0,
+		simulatedMillis = 0
+	;
+	double chargingPriceMillis = 0;	// Price weighted by time spent charging
+
+	/**
+	 * Read charging settings from a properties file, the same way RTPCharging does
+	 * @param propertiesFile Properties file name
+	 * @throws IOException When the file can't be read
+	 * @throws IllegalArgumentException When the settings aren't valid
+	 */
+	void loadSettings(String propertiesFile) throws IOException {
+		Properties prop = new Properties();
+		try (FileInputStream fis = new FileInputStream(propertiesFile)) {
+			prop.load(fis);
+		}
+		config = Configuration.fromProperties(prop);
+	}
+
+	/**
+	 * Replay a price series against a vehicle trace
+	 * @param prices Price series, oldest first
+	 * @param trace vehicle_data snapshots, oldest first
+	 */
+	void run(PriceSeries prices, List<JSONObject> trace) {
+		ChargeState recorded = new ChargeState();
+		ChargeState simulated = new ChargeState();
+		boolean simulatedCharging = false, atHome = true, pluggedIn = false;
+		int nextSnapshot = 0;
+		long previousMillis = 0, awakeMillis = 0;
+		double previousPrice = 0;
+		VehicleContext vehicle = new VehicleContext(new JSONObject().put("id_s", "replay"));
+		LongFunction<double[]> forecaster = from -> ComEdPriceFeed.forecastHourly(prices, from, ChargePlan.MAX_SLOTS);
+
+		for(int i = 0; i < prices.size(); i++) {
+			long now = prices.getMillisUTC(i);
+			double price = prices.getPrice(i);
+
+			// Advance the simulated battery to now.
+			if (previousMillis > 0) {
+				long elapsed = now - previousMillis;
+				simulatedMillis += elapsed;
+				if (simulatedCharging) {
+					chargingMillis += elapsed;
+					chargingPriceMillis += previousPrice * elapsed;
+					simulated.batteryLevel = Math.min(simulated.chargeLimit, simulated.batteryLevel + config.soCGainPerHour * elapsed / 3600000.0);
+				}
+			}
+			previousMillis = now;
+			previousPrice = price;
+
+			// Apply every snapshot recorded up to now.
+			while (nextSnapshot < trace.size() && getSnapshotMillis(trace.get(nextSnapshot)) <= now) {
+				JSONObject snapshot = trace.get(nextSnapshot++);
+				awakeMillis = Math.max(awakeMillis, getSnapshotMillis(snapshot));
+				if (snapshot.has("charge_state")) {
+					recorded.update(snapshot.getJSONObject("charge_state"));
+					boolean nowPluggedIn = recorded.isPluggedIn();
+					if (!nowPluggedIn || !pluggedIn) {
+						// Unplugged, or just plugged in: the recorded battery level is the truth.
+						simulated.batteryLevel = recorded.batteryLevel;
+						simulatedCharging = false;
+					}
+					pluggedIn = nowPluggedIn;
+					simulated.hasChargingState = recorded.hasChargingState;
+					simulated.chargePortOpen = recorded.chargePortOpen;
+					simulated.chargeLimit = recorded.chargeLimit;
+					simulated.scheduledDepartureTime = recorded.scheduledDepartureTime;
+					simulated.preconditioningEnabled = recorded.preconditioningEnabled;
+					simulated.chargeCurrentRequest = recorded.chargeCurrentRequest;
+				}
+				if (snapshot.has("drive_state")) {
+					JSONObject driveState = snapshot.getJSONObject("drive_state");
+					if (driveState.has("latitude") && driveState.has("longitude")) {
+						atHome = config.geofences.isAtHome(driveState.getDouble("latitude"), driveState.getDouble("longitude"));
+					}
+				}
+			}
+
+			if (nextSnapshot == 0 || !atHome) {
+				continue;
+			}
+
+			// Describe the simulated vehicle the way the API would.
+			if (!pluggedIn) {
+				simulated.chargingState = "Disconnected";
+			} else if (simulatedCharging && simulated.batteryLevel < simulated.chargeLimit) {
+				simulated.chargingState = "Charging";
+			} else {
+				simulated.chargingState = (simulated.batteryLevel >= simulated.chargeLimit) ? "Complete" : "Stopped";
+				simulatedCharging = false;
+			}
+			simulated.minutesToFullCharge = (simulatedCharging && config.soCGainPerHour > 0) ? (int) Math.ceil((simulated.chargeLimit - simulated.batteryLevel) / config.soCGainPerHour * 60) : 0;
+			// The current the recorded vehicle drew while it was charging, so current drops replay. Otherwise the full
+			// requested current.
+			simulated.chargerActualCurrent = recorded.isCharging() ? recorded.chargerActualCurrent : simulated.chargeCurrentRequest;
+			simulated.timestampMillis = now;
+
+			String vehicleState = (simulatedCharging || now - awakeMillis < WakeTracker.DEFAULT_FALL_ASLEEP_MILLIS) ? "online" : "asleep";
+			if (!RTPCharging.shouldCheckCharging(vehicle, vehicleState, price, config, now)) {
+				continue;
+			}
+			if (!vehicleState.equals("online")) {
+				wakes++;
+			}
+			awakeMillis = now;
+
+			boolean planCharging = RTPCharging.isPlanCharging(vehicle, config, now);
+			if (simulated.hasChargingState) {
+				ChargePlan previousPlan = vehicle.chargePlan;
+				RTPCharging.updateChargePlan(vehicle, simulated, config, now, forecaster);
+				if (vehicle.chargePlan != previousPlan) {
+					plans++;
+				}
+				planCharging = vehicle.chargePlan.shouldCharge(now);
+			}
+
+			long start = System.nanoTime();
+			ChargeDecision decision = ChargeDecision.decide(simulated, price, config.maxElectricityPrice, config.restartOnCurrentDrop, config.minimumDepartureSoC, config.soCGainPerHour, planCharging);
+			long elapsedNanos = System.nanoTime() - start;
+			decisions++;
+			decisionNanos += elapsedNanos;
+			maxDecisionNanos = Math.max(maxDecisionNanos, elapsedNanos);
+
+			// What the live loop would send, and what it would then believe about the vehicle
+			switch (decision.action) {
+				case NOT_PLUGGED_IN:
+					break;
+				case FULLY_CHARGED:
+					vehicle.wasFullyCharged = true;
+					vehicle.isCharging = false;
+					break;
+				case START:
+				case RESTART:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = true;
+					simulatedCharging = true;
+					commands.add(new Command(now, decision.action, price, simulated.batteryLevel, decision.forceCharging, decision.planCharging));
+					break;
+				case STOP:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = false;
+					simulatedCharging = false;
+					commands.add(new Command(now, decision.action, price, simulated.batteryLevel, decision.forceCharging, decision.planCharging));
+					break;
+				case NONE:
+					vehicle.wasFullyCharged = false;
+					vehicle.isCharging = decision.vehicleCharging;
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Print the commands and timing statistics
+	 * @param wallNanos Wall-clock time the replay took
+	 */
+	void printReport(long wallNanos) {
+		for(Command command : commands) {
+			System.out.println(command);
+		}
+
+		int starts = 0, stops = 0, restarts = 0;
+		for(Command command : commands) {
+			switch (command.action) {
+				case START: starts++; break;
+				case STOP: stops++; break;
+				case RESTART: restarts++; break;
+				default: break;
+			}
+		}
+
+		System.out.println();
+		System.out.println("Commands: " + commands.size() + " (" + starts + " start, " + stops + " stop, " + restarts + " restart)");
+		System.out.println("Simulated time: " + String.format("%.1f", simulatedMillis / 3600000.0) + " hours, charging " + String.format("%.1f", chargingMillis / 3600000.0) + " hours");
+		if (chargingMillis > 0) {
+			System.out.println("Average price while charging: " + String.format("%.3f", chargingPriceMillis / chargingMillis) + "\u00A2/kWh");
+		}
+		if (decisions > 0) {
+			System.out.println("Decisions: " + decisions + ", mean " + (decisionNanos / decisions) + " ns, max " + maxDecisionNanos + " ns");
+			System.out.println("Wakes: " + wakes);
+			System.out.println("Charge plans worked out: " + plans);
+		}
+		if (wallNanos > 0) {
+			System.out.println("Replay took " + String.format("%.1f", wallNanos / 1000000.0) + " ms, " + String.format("%.0f", simulatedMillis * 1000000.0 / wallNanos) + "x faster than real time");
+		}
+	}
+
+	/**
+	 * Read a price series from a ComEd feed JSON file or a price history file
+	 * @param fileName File name
+	 * @return Price series, oldest first
+	 * @throws IOException When the file can't be read
+	 */
+	static PriceSeries readPrices(String fileName) throws IOException {
+		String text = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8).trim();
+		if (text.startsWith("[")) {
+			JSONArray values = new JSONArray(text);
+			long[] millis = new long[values.length()];
+			double[] prices = new double[values.length()];
+			Integer[] order = new Integer[values.length()];
+			for(int i = 0; i < values.length(); i++) {
+				JSONObject value = values.getJSONObject(i);
+				millis[i] = Long.parseLong(value.get("millisUTC").toString());
+				prices[i] = value.getDouble("price");
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(millis[a], millis[b]));
+
+			PriceSeries series = new PriceSeries(Math.max(1, values.length()));
+			for(Integer i : order) {
+				series.add(millis[i], prices[i]);
+			}
+			return series;
+		}
+
+		try (PriceHistoryStore store = PriceHistoryStore.openReadOnly(fileName)) {
+			PriceSeries series = new PriceSeries(Math.max(1, store.size()));
+			for(int i = 0; i < store.size(); i++) {
+				series.add(store.getMillisUTC(i), store.getPrice(i));
+			}
+			return series;
+		}
+	}
+
+	/**
+	 * Read a vehicle trace with one vehicle_data snapshot per line
+	 * @param fileName File name
+	 * @return Snapshots sorted by time
+	 * @throws IOException When the file can't be read
+	 */
+	static List<JSONObject> readTrace(String fileName) throws IOException {
+		List<JSONObject> trace = new ArrayList<JSONObject>();
+		for(String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.startsWith("{")) {
+				JSONObject snapshot = new JSONObject(line);
+				if (snapshot.has("response")) {
+					snapshot = snapshot.getJSONObject("response");
+				}
+				trace.add(snapshot);
+			}
+		}
+		trace.sort((a, b) -> Long.compare(getSnapshotMillis(a), getSnapshotMillis(b)));
+		return trace;
+	}
+
+	/**
+	 * @param snapshot vehicle_data snapshot
+	 * @return Time the snapshot was taken, from its charge_state or drive_state
+	 */
+	static long getSnapshotMillis(JSONObject snapshot) {
+		if (snapshot.has("timestamp")) {
+			return snapshot.getLong("timestamp");
+		}
+		if (snapshot.has("charge_state") && snapshot.getJSONObject("charge_state").has("timestamp")) {
+			return snapshot.getJSONObject("charge_state").getLong("timestamp");
+		}
+		if (snapshot.has("drive_state") && snapshot.getJSONObject("drive_state").has("timestamp")) {
+			return snapshot.getJSONObject("drive_state").getLong("timestamp");
+		}
+		return 0;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplayEngine prices vehicle_trace [properties]");
+			System.exit(1);
+		}
+
+		try {
+			ReplayEngine replay = new ReplayEngine();
+			replay.loadSettings(args.length > 2 ? args[2] : RTPCharging.propertiesFile);
+
+			PriceSeries prices = readPrices(args[0]);
+			List<JSONObject> trace = readTrace(args[1]);
+
+			long start = System.nanoTime();
+			replay.run(prices, trace);
+			replay.printReport(System.nanoTime() - start);
+		} catch (Exception ex) {
+			System.err.println("Replay failed: " + ex.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.rrarey.tesla;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Learns how long one vehicle's trips away from home usually last, to predict when it will be back.
+ *
+ * Trips are bucketed by the weekday and time of day they left, and by their destination (the cluster of the first
+ * stop, see TripModel). A prediction uses the most specific bucket with at least MIN_TRIPS trips:
+ *	1) Same weekday, time of day and destination
+ *	2) Weekday or weekend, time of day and destination
+ *	3) Destination alone
+ *	4) Same weekday and time of day, for when the vehicle hasn't stopped yet
+ *	5) Weekday or weekend and time of day
+ *
+ * It predicts the QUANTILE of the away times in the bucket rather than the average, so the vehicle is usually still
+ * away at the predicted time and we don't check too late. Each bucket keeps its latest MAX_TRIPS_PER_BUCKET trips,
+ * so it follows changes in routine.
+ *
+ * Changed by the vehicle's own iteration and read by the admin status endpoint, so every method is synchronized.
+ */
+class ReturnHomePredictor {
+	static final int
+		MIN_TRIPS = 3,
+		MAX_TRIPS_PER_BUCKET = 20,
+		HOURS_PER_BUCKET = 3
+	;
+
+	static final double QUANTILE = 0.25;
+
+	// Trips shorter or longer than this aren't typical enough to learn from
+	static final long
+		MIN_AWAY_SECONDS = 10 * 60,
+		MAX_AWAY_SECONDS = 24 * 60 * 60
+	;
+
+	static final ZoneId zone = RTPCharging.timeFormatter.getZone();
+
+	/**
+	 * Latest away times of one bucket, in a ring
+	 */
+	private static final class Bucket {
+		final long[] awaySeconds = new long[MAX_TRIPS_PER_BUCKET];
+		int count = 0;
+
+		void add(long seconds) {
+			awaySeconds[count++ % MAX_TRIPS_PER_BUCKET] = seconds;
+		}
+
+		int size() {
+			return Math.min(count, MAX_TRIPS_PER_BUCKET);
+		}
+
+		long quantile(double q) {
+			long[] sorted = Arrays.copyOf(awaySeconds, size());
+			Arrays.sort(sorted);
+			return sorted[(int) Math.floor(q * (sorted.length - 1))];
+		}
+	}
+
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+	private int trips = 0;
+
+	/**
+	 * Learn from a trip that ended
+	 * @param trip Trip
+	 * @return Whether the trip was typical enough to learn from
+	 */
+	synchronized boolean learn(TripModel.Trip trip) {
+		long awaySeconds = trip.returnedSeconds - trip.departedSeconds;
+		if (trip.departedSeconds <= 0 || awaySeconds < MIN_AWAY_SECONDS || awaySeconds > MAX_AWAY_SECONDS) {
+			return false;
+		}
+		for(String key : getKeys(trip.departedSeconds, trip.destination)) {
+			buckets.computeIfAbsent(key, k -> new Bucket()).add(awaySeconds);
+		}
+		trips++;
+		return true;
+	}
+
+	/**
+	 * @param departedSeconds When the vehicle left home, in seconds since January 1, 1970, or 0 if not known
+	 * @param destination Cluster of the trip's first stop, or null if it hasn't stopped yet
+	 * @return When the vehicle will probably be back home, in seconds since January 1, 1970, or 0 if there aren't
+	 * enough similar trips to tell
+	 */
+	synchronized long predictReturnSeconds(long departedSeconds, String destination) {
+		if (departedSeconds <= 0) {
+			return 0;
+		}
+		for(String key : getKeys(departedSeconds, destination)) {
+			Bucket bucket = buckets.get(key);
+			if (bucket != null && bucket.size() >= MIN_TRIPS) {
+				return departedSeconds + bucket.quantile(QUANTILE);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Trips learned from
+	 */
+	synchronized int getTrips() {
+		return trips;
+	}
+
+	/**
+	 * @return Trips learned and the number of buckets, for the admin status endpoint
+	 */
+	synchronized JSONObject toJSON() {
+		return new JSONObject()
+			.put("trips", trips)
+			.put("buckets", buckets.size());
+	}
+
+	/**
+	 * @return Bucket keys for a trip, most specific first. Without a destination, only the ones that don't need it.
+	 */
+	private static String[] getKeys(long departedSeconds, String destination) {
+		ZonedDateTime departed = Instant.ofEpochSecond(departedSeconds).atZone(zone);
+		int day = departed.getDayOfWeek().getValue();
+		String dayType = day >= 6 ? "weekend" : "weekday";
+		String time = "/" + departed.getHour() / HOURS_PER_BUCKET;
+		if (destination == null) {
+			return new String[] { day + time, dayType + time };
+		}
+		return new String[] { day + time + "/" + destination, dayType + time + "/" + destination, "*/" + destination, day + time, dayType + time };
+	}
+}
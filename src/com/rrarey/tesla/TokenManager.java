@@ -0,0 +1,268 @@
+package com.rrarey.tesla;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import com.rrarey.utils.ExceptionUtils;
+import com.rrarey.web.WebRequest;
+
+/**
+ * Owns the Tesla API access and refresh tokens.
+ *
+ * Only one refresh is ever in flight. Callers that ask for a refresh while one is running wait for that one, and
+ * requests right after a successful refresh are ignored, so a burst of 401s from several vehicles costs a single
+ * token request. The access token's expiry is read from its JWT exp claim (or expires_in), and the token is
+ * refreshed in the background ahead of it. New bearers are handed to the registered request objects in place.
+ */
+class TokenManager {
+	/**
+	 * Notified after each successful refresh, on the thread that did the refresh
+	 */
+	interface TokenListener {
+		void tokensRefreshed(String accessToken, String refreshToken);
+	}
+
+	// Refresh this long before the access token expires
+	static final long REFRESH_AHEAD_MILLIS = 60 * 60 * 1000;
+
+	// Refresh requests within this long of a successful refresh are assumed to be from calls made with the old token.
+	static final long MIN_REFRESH_INTERVAL_MILLIS = 30 * 1000;
+
+	// Wait this long before trying a failed background refresh again
+	static final long RETRY_FAILED_REFRESH_MILLIS = 5 * 60 * 1000;
+
+	private static final Logger logger = LogManager.getLogger(TokenManager.class);
+
+	private final String authURL;
+
+	// Refreshes run on their own thread, so callers on the I/O threads can wait for one without starving it.
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "token-refresh");
+		t.setDaemon(true);
+		return t;
+	});
+	private final TokenListener listener;
+	private final List<WebRequest> requests = new CopyOnWriteArrayList<WebRequest>();
+
+	private volatile String
+		accessToken,
+		refreshToken
+	;
+
+	// Guarded by this
+	private CompletableFuture<Boolean> inFlight = null;
+	private long
+		lastRefreshMillis = 0,
+		lastAttemptMillis = 0,
+		expiresAtMillis = 0
+	;
+	private ScheduledFuture<?> scheduledRefresh = null;
+	private int refreshCount = 0;
+
+	/**
+	 * @param authURL Token endpoint
+	 * @param accessToken Current access token
+	 * @param refreshToken Current refresh token
+	 * @param listener Notified of new tokens, e.g. to save them. May be null.
+	 */
+	TokenManager(String authURL, String accessToken, String refreshToken, TokenListener listener) {
+		this.authURL = authURL;
+		this.accessToken = accessToken;
+		this.refreshToken = refreshToken;
+		this.listener = listener;
+
+		synchronized (this) {
+			expiresAtMillis = getJWTExpiryMillis(accessToken);
+			scheduleRefresh();
+		}
+	}
+
+	/**
+	 * Have a request object use the current access token, and every token after it
+	 * @param request Request object
+	 * @return The request object
+	 */
+	<T extends WebRequest> T register(T request) {
+		request.setBearer(accessToken);
+		requests.add(request);
+		return request;
+	}
+
+	String getAccessToken() {
+		return accessToken;
+	}
+
+	String getRefreshToken() {
+		return refreshToken;
+	}
+
+	/**
+	 * @return Expiry of the access token in milliseconds since January 1, 1970, or 0 if unknown
+	 */
+	synchronized long getExpiresAtMillis() {
+		return expiresAtMillis;
+	}
+
+	/**
+	 * @return Number of successful refreshes
+	 */
+	synchronized int getRefreshCount() {
+		return refreshCount;
+	}
+
+	/**
+	 * Refresh the tokens because a request was rejected, waiting for the refresh to finish. If a refresh is already
+	 * running this waits for it instead of starting another, and if one just finished this returns right away.
+	 * @return Whether valid tokens should now be in place
+	 */
+	boolean refresh() {
+		return refreshAsync(false).join();
+	}
+
+	/**
+	 * Start a refresh unless one is already running or just finished
+	 * @param force Refresh even if the last refresh was very recent
+	 * @return Future completed with whether the refresh succeeded
+	 */
+	synchronized CompletableFuture<Boolean> refreshAsync(boolean force) {
+		if (inFlight != null) {
+			return inFlight;
+		}
+		if (!force && lastRefreshMillis > 0 && System.currentTimeMillis() - lastRefreshMillis < MIN_REFRESH_INTERVAL_MILLIS) {
+			logger.debug("Tokens were just refreshed. Not refreshing again.");
+			return CompletableFuture.completedFuture(true);
+		}
+
+		final CompletableFuture<Boolean> refresh = new CompletableFuture<Boolean>();
+		inFlight = refresh;
+		executor.execute(() -> {
+			boolean result = false;
+			try {
+				result = requestNewTokens();
+				(result ? RTPMetrics.tokenRefreshesSucceeded : RTPMetrics.tokenRefreshesFailed).increment();
+			} finally {
+				synchronized (TokenManager.this) {
+					inFlight = null;
+					lastAttemptMillis = System.currentTimeMillis();
+					if (result) {
+						lastRefreshMillis = System.currentTimeMillis();
+						refreshCount++;
+					}
+					scheduleRefresh();
+				}
+				refresh.complete(result);
+			}
+		});
+		return refresh;
+	}
+
+	/**
+	 * Request new tokens, and hand them out when we get them
+	 * @return Whether new tokens were received
+	 */
+	private boolean requestNewTokens() {
+		JSONObject body = new JSONObject()
+			.put("grant_type", "refresh_token")
+			.put("client_id", "ownerapi")
+			.put("refresh_token", refreshToken)
+			.put("scope", "openid email offline_access")
+		;
+
+		WebRequest tokenRequest = new WebRequest();
+		tokenRequest.setMetrics(RTPMetrics.teslaAuthRequests);
+		try {
+			String response = tokenRequest.post(authURL, body.toString());
+			JSONObject responseJSON = new JSONObject(response);
+			logger.debug("Refresh tokens response received with fields {}", responseJSON.keySet());
+			if (!responseJSON.has("refresh_token") || !responseJSON.has("access_token")) {
+				logger.error("Exception while handling new access token for Tesla Owner API: Null new access token");
+				return false;
+			}
+
+			String newAccessToken = responseJSON.getString("access_token");
+			String newRefreshToken = responseJSON.getString("refresh_token");
+			long expiresAt = getJWTExpiryMillis(newAccessToken);
+			if (expiresAt == 0 && responseJSON.has("expires_in")) {
+				expiresAt = System.currentTimeMillis() + responseJSON.getLong("expires_in") * 1000;
+			}
+
+			accessToken = newAccessToken;
+			refreshToken = newRefreshToken;
+			synchronized (this) {
+				expiresAtMillis = expiresAt;
+			}
+			for(WebRequest request : requests) {
+				request.setBearer(newAccessToken);
+			}
+			if (expiresAt > 0) {
+				long validUntil = expiresAt;
+				logger.info("Tesla API tokens refreshed, valid until {}", () -> RTPCharging.formatTime(validUntil));
+			} else {
+				logger.info("Tesla API tokens refreshed");
+			}
+
+			if (listener != null) {
+				listener.tokensRefreshed(newAccessToken, newRefreshToken);
+			}
+			return true;
+		} catch (Exception ex) {
+			logger.error("Exception while getting refresh token for Tesla API: {}", ExceptionUtils.getExceptionString(ex));
+			return false;
+		}
+	}
+
+	/**
+	 * Schedule the next background refresh ahead of the access token's expiry. Must hold this lock.
+	 */
+	private void scheduleRefresh() {
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false);
+			scheduledRefresh = null;
+		}
+		if (expiresAtMillis == 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		long delay = expiresAtMillis - REFRESH_AHEAD_MILLIS - now;
+		if (delay <= 0) {
+			// Already inside the refresh window, because the last refresh failed or tokens are short-lived. Try now,
+			// but no more often than RETRY_FAILED_REFRESH_MILLIS.
+			delay = lastAttemptMillis > 0 ? Math.max(0, lastAttemptMillis + RETRY_FAILED_REFRESH_MILLIS - now) : 0;
+		}
+		logger.debug("Next token refresh scheduled for {}", RTPCharging.formatTime(now + delay));
+		scheduledRefresh = executor.schedule(() -> refreshAsync(true), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Read the exp claim from a JWT without verifying it
+	 * @param token Access token
+	 * @return Expiry in milliseconds since January 1, 1970, or 0 if the token isn't a JWT with an exp claim
+	 */
+	static long getJWTExpiryMillis(String token) {
+		if (token == null) {
+			return 0;
+		}
+		String[] parts = token.split("\\.");
+		if (parts.length < 2) {
+			return 0;
+		}
+		try {
+			String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+			return new JSONObject(payload).optLong("exp", 0) * 1000;
+		} catch (Exception ex) {
+			return 0;
+		}
+	}
+}
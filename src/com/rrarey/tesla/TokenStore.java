@@ -0,0 +1,213 @@
+package com.rrarey.tesla;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rrarey.utils.ExceptionUtils;
+
+/**
+ * Keeps refreshed Tesla API tokens in a small file of their own, so app.properties is never rewritten.
+ *
+ * Saves are handed to a background thread and coalesced: if several refreshes happen before a write starts, only
+ * the newest tokens are written. Each write goes to a temp file in the same directory, which is forced to disk and
+ * then atomically renamed over the old file. A crash at any point leaves either the old tokens or the new ones,
+ * never a partial file.
+ *
+ * The file also records a hash of the refresh token from app.properties that its tokens were refreshed from. When
+ * someone pastes new tokens into app.properties, the hash no longer matches and the saved tokens are ignored.
+ */
+class TokenStore implements TokenManager.TokenListener, Closeable {
+	static final String
+		CONFIGURED_TOKEN_SHA256 = "CONFIGURED_REFRESH_TOKEN_SHA256"
+	;
+
+	// Wait this long before trying a failed write again
+	static final long RETRY_FAILED_WRITE_MILLIS = 30 * 1000;
+
+	// Longest close waits for a pending write
+	static final long CLOSE_TIMEOUT_MILLIS = 5 * 1000;
+
+	private static final Logger logger = LogManager.getLogger(TokenStore.class);
+
+	/**
+	 * Access and refresh token pair
+	 */
+	static final class Tokens {
+		final String
+			accessToken,
+			refreshToken
+		;
+
+		Tokens(String accessToken, String refreshToken) {
+			this.accessToken = accessToken;
+			this.refreshToken = refreshToken;
+		}
+	}
+
+	private final Path file;
+	private final String configuredTokenHash;
+	private final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "token-store");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// Newest tokens not written yet. A write is queued whenever this goes from null to non-null.
+	private final AtomicReference<Tokens> pending = new AtomicReference<Tokens>();
+
+	/**
+	 * @param file Token file
+	 * @param configuredRefreshToken Refresh token from app.properties
+	 */
+	TokenStore(Path file, String configuredRefreshToken) {
+		this.file = file.toAbsolutePath();
+		configuredTokenHash = sha256(configuredRefreshToken);
+		writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * @return Tokens saved from an earlier run, or null if there are none or they were refreshed from different
+	 * tokens than the ones in app.properties now
+	 * @throws IOException When the file exists but can't be read
+	 */
+	Tokens load() throws IOException {
+		Properties prop = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			prop.load(in);
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+
+		String accessToken = prop.getProperty(RTPCharging.ACCESS_TOKEN, "");
+		String refreshToken = prop.getProperty(RTPCharging.REFRESH_TOKEN, "");
+		if (accessToken.isEmpty() || refreshToken.isEmpty()) {
+			return null;
+		}
+		if (!configuredTokenHash.equals(prop.getProperty(CONFIGURED_TOKEN_SHA256))) {
+			logger.info("Tokens in {} are newer than the ones saved in {}. Using those.", RTPCharging.propertiesFile, file.getFileName());
+			return null;
+		}
+		return new Tokens(accessToken, refreshToken);
+	}
+
+	@Override
+	public void tokensRefreshed(String accessToken, String refreshToken) {
+		save(new Tokens(accessToken, refreshToken));
+	}
+
+	/**
+	 * Queue tokens to be written. Returns right away.
+	 * @param tokens Tokens to save
+	 */
+	void save(Tokens tokens) {
+		if (pending.getAndSet(tokens) == null) {
+			writer.execute(this::writePending);
+		}
+	}
+
+	private void writePending() {
+		Tokens tokens = pending.getAndSet(null);
+		if (tokens == null) {
+			return;
+		}
+
+		try {
+			write(tokens);
+			logger.debug("Saved tokens to {}", file);
+		} catch (IOException ex) {
+			logger.error("Could not save tokens to {}: {}", file, ExceptionUtils.getExceptionString(ex));
+
+			// Try again later, unless newer tokens have come in since. Those have their own write queued.
+			if (pending.compareAndSet(null, tokens)) {
+				writer.schedule(this::writePending, RETRY_FAILED_WRITE_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Write tokens to a temp file, force it to disk, and rename it over the token file
+	 * @param tokens Tokens to write
+	 * @throws IOException When the tokens can't be written
+	 */
+	private void write(Tokens tokens) throws IOException {
+		Properties prop = new Properties();
+		prop.setProperty(RTPCharging.ACCESS_TOKEN, tokens.accessToken);
+		prop.setProperty(RTPCharging.REFRESH_TOKEN, tokens.refreshToken);
+		prop.setProperty(CONFIGURED_TOKEN_SHA256, configuredTokenHash);
+		ByteArrayOutputStream content = new ByteArrayOutputStream(1024);
+		prop.store(content, "Tesla API tokens, kept up to date by RTPCharging. Put new tokens in " + RTPCharging.propertiesFile + " instead of editing this file.");
+
+		Path directory = file.getParent();
+		// Created readable by the owner only, where the file system supports it
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+
+		// Make the rename itself durable. Not every platform can open a directory, and the rename is still atomic
+		// without this.
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ex) { }
+	}
+
+	/**
+	 * Write any pending tokens, waiting up to CLOSE_TIMEOUT_MILLIS
+	 */
+	@Override
+	public void close() {
+		if (writer.isShutdown()) {
+			return;
+		}
+		writer.execute(this::writePending);
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				logger.warn("Timed out saving tokens to {}", file);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String sha256(String s) {
+		try {
+			StringBuilder sb = new StringBuilder(64);
+			for(byte b : MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(ex);
+		}
+	}
+}
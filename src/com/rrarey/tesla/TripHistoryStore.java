@@ -0,0 +1,66 @@
+package com.rrarey.tesla;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trips that ended back at home, appended to a text file so ReturnHomePredictor doesn't start over on every restart.
+ *
+ * One trip per line: vehicle ID, departure and return in seconds since January 1, 1970, and destination, separated
+ * by commas. The destination is last since it can contain commas itself. Lines that can't be read are skipped.
+ */
+class TripHistoryStore {
+	private final Path file;
+
+	/**
+	 * @param file Trip history file
+	 */
+	TripHistoryStore(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return Trips by vehicle ID, oldest first. Empty if the file doesn't exist yet.
+	 * @throws IOException When the file exists but can't be read
+	 */
+	Map<String, List<TripModel.Trip>> load() throws IOException {
+		Map<String, List<TripModel.Trip>> trips = new HashMap<String, List<TripModel.Trip>>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(",", 4);
+				if (fields.length < 3) {
+					continue;
+				}
+				try {
+					String destination = fields.length == 4 && !fields[3].isEmpty() ? fields[3] : null;
+					TripModel.Trip trip = new TripModel.Trip(Long.parseLong(fields[1]), Long.parseLong(fields[2]), destination, 0, 0, 0);
+					trips.computeIfAbsent(fields[0], id -> new ArrayList<TripModel.Trip>()).add(trip);
+				} catch (NumberFormatException ex) { }
+			}
+		} catch (NoSuchFileException ex) { }
+		return trips;
+	}
+
+	/**
+	 * @param vehicleId Vehicle the trip was made by
+	 * @param trip Trip to add
+	 * @throws IOException When the trip can't be written
+	 */
+	synchronized void append(String vehicleId, TripModel.Trip trip) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			writer.write(vehicleId + "," + trip.departedSeconds + "," + trip.returnedSeconds + "," + (trip.destination != null ? trip.destination : ""));
+			writer.newLine();
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package com.rrarey.tesla;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * One vehicle's trip away from home, split into drive and stop segments, for scheduling location checks.
+ *
+ * Every location sample extends the current segment or starts a new one. Two samples in a row at the same place
+ * (distance 0, see VehicleLocation.distance) mean the vehicle stopped there, and the next sample somewhere else ends
+ * the stop. From the segments we estimate how long the vehicle will stay at its current stop:
+ *	1) At a named zone it has stopped at before, the dwell time learned from those visits.
+ *	2) Otherwise the time it took to drive there from the previous stop (or home), averaged with how long it stayed
+ *	   at the earlier stops of this trip.
+ *
+ * Also counts how many location checks, each of which wakes the vehicle, the trip got by without compared to
+ * checking every DEFAULT_LOCATION_POLLING_SECONDS, and how many of those were thanks to a return home prediction
+ * (see ReturnHomePredictor).
+ *
+ * Changed by the vehicle's own iteration and read by the admin status endpoint, so every method is synchronized.
+ */
+class TripModel {
+	// Oldest segments are dropped past this, on a very long trip
+	static final int MAX_SEGMENTS = 100;
+
+	// Longest dwell time we will estimate
+	static final long MAX_DWELL_ESTIMATE_SECONDS = 12 * 60 * 60;
+
+	// Weight of the newest visit in a zone's learned dwell time
+	static final double ZONE_DWELL_WEIGHT = 0.3;
+
+	/**
+	 * Time spent driving, or stopped in one place
+	 */
+	static final class Segment {
+		final boolean stop;
+		final long startSeconds;
+		long endSeconds;
+		final double
+			latitude,
+			longitude
+		;
+		final String zone;	// Zone of a stop, or null
+
+		Segment(boolean stop, long startSeconds, double latitude, double longitude, String zone) {
+			this.stop = stop;
+			this.startSeconds = startSeconds;
+			this.endSeconds = startSeconds;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.zone = zone;
+		}
+
+		long getDurationSeconds() {
+			return endSeconds - startSeconds;
+		}
+
+		JSONObject toJSON() {
+			return new JSONObject()
+				.put("type", stop ? "stop" : "drive")
+				.put("start", startSeconds)
+				.put("end", endSeconds)
+				.put("latitude", latitude)
+				.put("longitude", longitude)
+				.put("zone", zone != null ? zone : JSONObject.NULL);
+		}
+	}
+
+	/**
+	 * Trip that ended back at home
+	 */
+	static final class Trip {
+		final long
+			departedSeconds,	// First seen away from home, or 0 if not known
+			returnedSeconds		// First seen back at home
+		;
+		final String destination;	// Cluster of the first stop, or null
+		final int
+			stops,
+			wakeUpsAvoided,
+			predictedWakeUpsAvoided
+		;
+
+		Trip(long departedSeconds, long returnedSeconds, String destination, int stops, int wakeUpsAvoided, int predictedWakeUpsAvoided) {
+			this.departedSeconds = departedSeconds;
+			this.returnedSeconds = returnedSeconds;
+			this.destination = destination;
+			this.stops = stops;
+			this.wakeUpsAvoided = wakeUpsAvoided;
+			this.predictedWakeUpsAvoided = predictedWakeUpsAvoided;
+		}
+
+		public String toString() {
+			// Each location check is a wake_up call and a vehicle_data call, at least
+			return "Trip " + (departedSeconds > 0 ? "of " + (returnedSeconds - departedSeconds) / 60 + " minutes " : "") +
+				(destination != null ? "to " + destination + " " : "") +
+				"with " + stops + (stops == 1 ? " stop" : " stops") + " ended. Avoided " + wakeUpsAvoided + " location checks (" +
+				wakeUpsAvoided + " wakes, " + 2 * wakeUpsAvoided + "+ API calls), " + predictedWakeUpsAvoided + " of them by predicting the return home.";
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	// When the vehicle was last seen at home, or 0 if it hasn't been since we started
+	private long tripStartSeconds = 0;
+
+	// When the vehicle was first seen away from home, or 0 if not known
+	private long departedSeconds = 0;
+
+	// Cluster of the trip's first stop: its zone, or a rounded location
+	private String destination = null;
+
+	private int stops = 0;
+	private int
+		wakeUpsAvoided = 0,
+		predictedWakeUpsAvoided = 0
+	;
+
+	// Whether the next location check was scheduled from a return home prediction
+	private boolean predictedCheck = false;
+
+	// Latest sample
+	private boolean hasLast = false;
+	private double
+		lastLatitude,
+		lastLongitude
+	;
+	private long lastSeconds;
+
+	// Learned dwell time by zone name, across trips
+	private final Map<String, Double> zoneDwellSeconds = new HashMap<String, Double>();
+
+	/**
+	 * The vehicle was seen at home. Ends the trip, if it had left home, and starts a new one.
+	 * @param latitude Latitude at home
+	 * @param longitude Longitude at home
+	 * @param seconds When the vehicle was seen at home, in seconds since January 1, 1970
+	 * @return Trip that ended, or null if the vehicle hadn't left home
+	 */
+	synchronized Trip arrivedHome(double latitude, double longitude, long seconds) {
+		Trip finished = null;
+		if (!segments.isEmpty()) {
+			countWakeUpsAvoided(seconds);
+			Segment current = segments.get(segments.size() - 1);
+			if (current.stop) {
+				learnDwell(current);
+			}
+			finished = new Trip(departedSeconds, seconds, destination, stops, wakeUpsAvoided, predictedWakeUpsAvoided);
+		}
+
+		segments.clear();
+		stops = 0;
+		wakeUpsAvoided = 0;
+		predictedWakeUpsAvoided = 0;
+		predictedCheck = false;
+		destination = null;
+		departedSeconds = 0;
+		tripStartSeconds = seconds;
+		setLast(latitude, longitude, seconds);
+		return finished;
+	}
+
+	/**
+	 * Add a location away from home
+	 * @param latitude Latitude
+	 * @param longitude Longitude
+	 * @param seconds When the location was seen, in seconds since January 1, 1970
+	 * @param zone Zone the location is in, or null
+	 */
+	synchronized void add(double latitude, double longitude, long seconds, String zone) {
+		if (!hasLast) {
+			setLast(latitude, longitude, seconds);
+			return;
+		}
+		if (seconds <= lastSeconds) {
+			return;
+		}
+
+		Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (current == null) {
+			// Just left home. The time before that was spent at home, where we don't check on a schedule.
+			if (tripStartSeconds > 0) {
+				departedSeconds = seconds;
+			}
+			predictedCheck = false;
+		} else {
+			countWakeUpsAvoided(seconds);
+		}
+		boolean samePlace = VehicleLocation.distance(lastLatitude, lastLongitude, latitude, longitude) == 0;
+		if (samePlace) {
+			// Stopped since the previous sample
+			if (current == null || !current.stop) {
+				current = append(new Segment(true, lastSeconds, lastLatitude, lastLongitude, zone));
+				if (stops++ == 0) {
+					destination = zone != null ? zone : Math.round(lastLatitude * 100) / 100.0 + "," + Math.round(lastLongitude * 100) / 100.0;
+				}
+			}
+		} else {
+			// Moving. A stop ended when it was last seen there.
+			if (current != null && current.stop) {
+				learnDwell(current);
+			}
+			if (current == null && departedSeconds > 0) {
+				// The vehicle came online and was checked as it left, so it has been driving since about now, not
+				// since it was last seen at home
+				current = append(new Segment(false, seconds, latitude, longitude, null));
+			} else if (current == null || current.stop) {
+				current = append(new Segment(false, lastSeconds, lastLatitude, lastLongitude, null));
+			}
+		}
+		current.endSeconds = seconds;
+		setLast(latitude, longitude, seconds);
+	}
+
+	/**
+	 * @return How long we expect the vehicle to stay at its current stop, from when it arrived, in seconds. 0 when it
+	 * isn't stopped or there is nothing to base an estimate on.
+	 */
+	synchronized long estimateDwellSeconds() {
+		if (segments.isEmpty() || !segments.get(segments.size() - 1).stop) {
+			return 0;
+		}
+		int last = segments.size() - 1;
+		Segment stop = segments.get(last);
+
+		Double learned = stop.zone != null ? zoneDwellSeconds.get(stop.zone) : null;
+		if (learned != null) {
+			return (long) Math.min(MAX_DWELL_ESTIMATE_SECONDS, learned);
+		}
+
+		// Drive to this stop, then the earlier stops of this trip
+		double estimate = last > 0 ? segments.get(last - 1).getDurationSeconds() : 0;
+		long earlierStopSeconds = 0;
+		int earlierStops = 0;
+		for(int i = 0; i < last; i++) {
+			if (segments.get(i).stop) {
+				earlierStopSeconds += segments.get(i).getDurationSeconds();
+				earlierStops++;
+			}
+		}
+		if (earlierStops > 0) {
+			estimate = (estimate + (double) earlierStopSeconds / earlierStops) / 2;
+		}
+		return (long) Math.min(MAX_DWELL_ESTIMATE_SECONDS, estimate);
+	}
+
+	/**
+	 * @return When the vehicle was first seen away from home on this trip, or 0 if not known
+	 */
+	synchronized long getDepartedSeconds() {
+		return departedSeconds;
+	}
+
+	/**
+	 * @return Cluster of the trip's first stop, or null if it hasn't stopped yet
+	 */
+	synchronized String getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Note that the next location check was scheduled from a return home prediction, so the checks it avoids are
+	 * credited to the prediction
+	 */
+	synchronized void setPredictedCheck() {
+		predictedCheck = true;
+	}
+
+	/**
+	 * @return Stops made on this trip
+	 */
+	synchronized int getStops() {
+		return stops;
+	}
+
+	/**
+	 * @return Location checks avoided on this trip
+	 */
+	synchronized int getWakeUpsAvoided() {
+		return wakeUpsAvoided;
+	}
+
+	/**
+	 * @return Trip segments and learned dwell times, for the admin status endpoint
+	 */
+	synchronized JSONObject toJSON() {
+		JSONArray json = new JSONArray();
+		for(Segment segment : segments) {
+			json.put(segment.toJSON());
+		}
+		return new JSONObject()
+			.put("start", tripStartSeconds > 0 ? tripStartSeconds : JSONObject.NULL)
+			.put("departed", departedSeconds > 0 ? departedSeconds : JSONObject.NULL)
+			.put("destination", destination != null ? destination : JSONObject.NULL)
+			.put("stops", stops)
+			.put("wakeUpsAvoided", wakeUpsAvoided)
+			.put("predictedWakeUpsAvoided", predictedWakeUpsAvoided)
+			.put("estimatedDwellSeconds", estimateDwellSeconds())
+			.put("segments", json)
+			.put("zoneDwellSeconds", new JSONObject(zoneDwellSeconds));
+	}
+
+	private Segment append(Segment segment) {
+		if (segments.size() >= MAX_SEGMENTS) {
+			segments.remove(0);
+		}
+		segments.add(segment);
+		return segment;
+	}
+
+	private void setLast(double latitude, double longitude, long seconds) {
+		hasLast = true;
+		lastLatitude = latitude;
+		lastLongitude = longitude;
+		lastSeconds = seconds;
+	}
+
+	/**
+	 * Checking every DEFAULT_LOCATION_POLLING_SECONDS would have woken the vehicle this many more times since the
+	 * previous check
+	 */
+	private void countWakeUpsAvoided(long seconds) {
+		long avoided = (seconds - lastSeconds) / RTPCharging.DEFAULT_LOCATION_POLLING_SECONDS - 1;
+		if (avoided > 0) {
+			wakeUpsAvoided += avoided;
+			if (predictedCheck) {
+				predictedWakeUpsAvoided += avoided;
+				RTPMetrics.locationChecksAvoidedByPrediction.add(avoided);
+			} else {
+				RTPMetrics.locationChecksAvoidedByTripModel.add(avoided);
+			}
+		}
+		predictedCheck = false;
+	}
+
+	private void learnDwell(Segment stop) {
+		if (stop.zone == null) {
+			return;
+		}
+		Double previous = zoneDwellSeconds.get(stop.zone);
+		double dwell = stop.getDurationSeconds();
+		zoneDwellSeconds.put(stop.zone, previous == null ? dwell : previous + ZONE_DWELL_WEIGHT * (dwell - previous));
+	}
+}
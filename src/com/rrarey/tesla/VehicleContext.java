@@ -0,0 +1,124 @@
+package com.rrarey.tesla;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONObject;
+
+/**
+ * Everything we track for a single vehicle between iterations of the main loop.
+ * In fleet mode there is one of these per vehicle on the account.
+ *
+ * Only the vehicle's own iteration changes this, but the admin status endpoint reads it from another thread. The
+ * state below is volatile for that, the location history, trip model,
+ * return home predictor and wake tracker are synchronized, and the charge plan is immutable.
+ */
+class VehicleContext {
+	final String
+		id,
+		vin,
+		displayName
+	;
+
+	// Vehicle location history since it was last seen at home
+	final LocationHistory locationHistory = new LocationHistory();
+
+	// Drive and stop segments of the current trip away from home
+	final TripModel trip = new TripModel();
+
+	// When the vehicle usually gets back home, learned from its trips
+	final ReturnHomePredictor returnHome = new ReturnHomePredictor();
+
+	// Whether the vehicle is awake, so it isn't woken when it doesn't need to be
+	final WakeTracker wake = new WakeTracker();
+
+	// Latest vehicle_data, shared by the lookups of one iteration
+	final VehicleSnapshotCache snapshots = new VehicleSnapshotCache();
+
+	volatile boolean
+		isCharging = false,
+		wasFullyCharged = false,	// Flag to set when vehicle reports it is fully charged.
+		asleepAtHome = false		// Flag to set when vehicle goes to sleep at home.
+	;
+
+	volatile String previousVehicleState = "unknown";
+
+	// Zone the vehicle was last seen in, or null if it wasn't in one
+	volatile String zone = null;
+
+	// Location from the latest drive state. Seconds since January 1, 1970 for the time, or 0 if never seen.
+	volatile double
+		latitude = 0,
+		longitude = 0
+	;
+	volatile long locationSeconds = 0;
+
+	volatile long comEdLastUTC = 0;
+
+	// Next time we are going to check on the car's location. Seconds since January 1, 1970.
+	volatile long nextLocationCheckSeconds = 0;
+
+	// Cheapest hours to charge in before the scheduled departure, or null until the charge state is first seen
+	volatile ChargePlan chargePlan = null;
+
+	// When the vehicle needs to be woken to follow the charge plan. Milliseconds since January 1, 1970.
+	volatile long nextPlanWakeMillis = 0;
+
+	// Iteration currently running on the worker pool, if any.
+	volatile CompletableFuture<Void> iteration = null;
+
+	VehicleContext(JSONObject vehicle) {
+		id = vehicle.getString("id_s");
+		vin = vehicle.optString("vin", "");
+		displayName = vehicle.optString("display_name", "");
+	}
+
+	/**
+	 * @return Display name of the vehicle, or its ID if it doesn't have one
+	 */
+	String getName() {
+		return displayName.length() > 0 ? displayName : id;
+	}
+
+	/**
+	 * @return Whether the previous iteration for this vehicle is still running
+	 */
+	boolean isBusy() {
+		return iteration != null && !iteration.isDone();
+	}
+
+	/**
+	 * @return What we currently believe about the vehicle, for the admin status endpoint
+	 */
+	JSONObject getStatus() {
+		return new JSONObject()
+			.put("id", id)
+			.put("vin", vin)
+			.put("name", getName())
+			.put("state", previousVehicleState)
+			.put("zone", zone != null ? zone : JSONObject.NULL)
+			.put("isCharging", isCharging)
+			.put("wasFullyCharged", wasFullyCharged)
+			.put("asleepAtHome", asleepAtHome)
+			.put("comEdLastUTC", comEdLastUTC)
+			.put("nextLocationCheckSeconds", nextLocationCheckSeconds)
+			.put("chargePlan", chargePlan != null ? chargePlan.toJSON() : JSONObject.NULL)
+			.put("nextPlanWakeMillis", nextPlanWakeMillis)
+			.put("iterationRunning", isBusy())
+			.put("locationHistory", locationHistory.toJSON())
+			.put("trip", trip.toJSON())
+			.put("wake", wake.toJSON())
+			.put("returnHome", returnHome.toJSON().put("predictedReturn", getPredictedReturn()));
+	}
+
+	/**
+	 * @return When the vehicle will probably be back home from its current trip, or JSONObject.NULL if unknown
+	 */
+	private Object getPredictedReturn() {
+		long seconds = returnHome.predictReturnSeconds(trip.getDepartedSeconds(), trip.getDestination());
+		return seconds > 0 ? seconds : JSONObject.NULL;
+	}
+
+	public String toString() {
+		return "VIN " + vin + " (" + getName() + ")";
+	}
+}
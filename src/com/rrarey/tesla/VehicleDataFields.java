@@ -0,0 +1,63 @@
+package com.rrarey.tesla;
+
+import com.rrarey.web.JSONFieldExtractor;
+
+/**
+ * The vehicle_data fields we read. Responses are streamed through EXTRACTOR into a JSONFieldValues, and the field
+ * indexes below are used to read it.
+ */
+final class VehicleDataFields {
+	static final JSONFieldExtractor EXTRACTOR = new JSONFieldExtractor(
+		"response",
+
+		"response.charge_state",
+		"response.charge_state.charging_state",
+		"response.charge_state.charge_port_door_open",
+		"response.charge_state.minutes_to_full_charge",
+		"response.charge_state.usable_battery_level",
+		"response.charge_state.charge_limit_soc",
+		"response.charge_state.timestamp",
+		"response.charge_state.scheduled_departure_time",
+		"response.charge_state.preconditioning_enabled",
+		"response.charge_state.charge_current_request",
+		"response.charge_state.charger_actual_current",
+
+		"response.drive_state",
+		"response.drive_state.latitude",
+		"response.drive_state.longitude",
+		"response.drive_state.speed",
+		"response.drive_state.heading",
+		"response.drive_state.timestamp",
+		"response.drive_state.active_route_latitude",
+		"response.drive_state.active_route_longitude",
+		"response.drive_state.active_route_minutes_to_arrival"
+	);
+
+	static final int
+		RESPONSE = EXTRACTOR.getField("response"),
+
+		CHARGE_STATE = EXTRACTOR.getField("response.charge_state"),
+		CHARGING_STATE = EXTRACTOR.getField("response.charge_state.charging_state"),
+		CHARGE_PORT_DOOR_OPEN = EXTRACTOR.getField("response.charge_state.charge_port_door_open"),
+		MINUTES_TO_FULL_CHARGE = EXTRACTOR.getField("response.charge_state.minutes_to_full_charge"),
+		USABLE_BATTERY_LEVEL = EXTRACTOR.getField("response.charge_state.usable_battery_level"),
+		CHARGE_LIMIT_SOC = EXTRACTOR.getField("response.charge_state.charge_limit_soc"),
+		CHARGE_TIMESTAMP = EXTRACTOR.getField("response.charge_state.timestamp"),
+		SCHEDULED_DEPARTURE_TIME = EXTRACTOR.getField("response.charge_state.scheduled_departure_time"),
+		PRECONDITIONING_ENABLED = EXTRACTOR.getField("response.charge_state.preconditioning_enabled"),
+		CHARGE_CURRENT_REQUEST = EXTRACTOR.getField("response.charge_state.charge_current_request"),
+		CHARGER_ACTUAL_CURRENT = EXTRACTOR.getField("response.charge_state.charger_actual_current"),
+
+		DRIVE_STATE = EXTRACTOR.getField("response.drive_state"),
+		LATITUDE = EXTRACTOR.getField("response.drive_state.latitude"),
+		LONGITUDE = EXTRACTOR.getField("response.drive_state.longitude"),
+		SPEED = EXTRACTOR.getField("response.drive_state.speed"),
+		HEADING = EXTRACTOR.getField("response.drive_state.heading"),
+		DRIVE_TIMESTAMP = EXTRACTOR.getField("response.drive_state.timestamp"),
+		ACTIVE_ROUTE_LATITUDE = EXTRACTOR.getField("response.drive_state.active_route_latitude"),
+		ACTIVE_ROUTE_LONGITUDE = EXTRACTOR.getField("response.drive_state.active_route_longitude"),
+		ACTIVE_ROUTE_MINUTES_TO_ARRIVAL = EXTRACTOR.getField("response.drive_state.active_route_minutes_to_arrival")
+	;
+
+	private VehicleDataFields() { }
+}
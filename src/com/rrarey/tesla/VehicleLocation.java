@@ -38,11 +38,12 @@ public class VehicleLocation {
 		return distanceFrom(location2.getLatitude(), location2.getLongitude());
 	}
 	
-	// Determine the approximate distance (in miles) between two points on a sphere (the Earth)	
 	public double distanceFrom(double lat2, double lon2) {
-		double lat1 = this.latitude;
-		double lon1 = this.longitude;
-		
+		return distance(this.latitude, this.longitude, lat2, lon2);
+	}
+
+	// Determine the approximate distance (in miles) between two points on a sphere (the Earth)	
+	public static double distance(double lat1, double lon1, double lat2, double lon2) {
 		// Allow from some variance in GPS readings here, so that we can move a certain distance but
 		// still be 0 miles apart. If my math is right this means a single coordinate covers an area
 		// about 291' long x 231' feet wide.
@@ -0,0 +1,114 @@
+package com.rrarey.tesla;
+
+import com.rrarey.web.JSONFieldValues;
+
+/**
+ * Most recent vehicle_data snapshot for one vehicle.
+ *
+ * Snapshots are fetched with both charge_state and location_data, so a single request answers both the charge and
+ * the drive state lookups of an iteration. A snapshot is only used while it is younger than MAX_AGE_MILLIS, which is
+ * short enough that it never carries over into the next iteration, and it is dropped after anything that changes
+ * the vehicle's state (e.g. a charge command). Each lookup records whether the snapshot or a new fetch answered it.
+ *
+ * The snapshot is a JSONFieldValues that every fetch refills in place, so read what you need from it before the next
+ * lookup.
+ */
+class VehicleSnapshotCache {
+	static final String COMBINED_ENDPOINTS = "charge_state;location_data";
+
+	// Snapshots older than this are fetched again
+	static final long MAX_AGE_MILLIS = 10 * 1000;
+
+	/**
+	 * Data an iteration looks up
+	 */
+	enum Lookup {
+		CHARGE_STATE,
+		DRIVE_STATE
+	}
+
+	/**
+	 * What answered a lookup
+	 */
+	enum Tier {
+		SNAPSHOT,	// Fresh snapshot from an earlier lookup
+		FETCH		// New vehicle_data request
+	}
+
+	private final JSONFieldValues fields = new JSONFieldValues(VehicleDataFields.EXTRACTOR);
+	private long snapshotMillis = 0;
+
+	// Lookups answered, by Lookup and Tier
+	private final long[][] lookups = new long[Lookup.values().length][Tier.values().length];
+
+	/**
+	 * @param lookup Data to look up
+	 * @param now Current time in milliseconds since January 1, 1970
+	 * @return The snapshot if it is fresh and has the data, or null if it needs to be fetched
+	 */
+	synchronized JSONFieldValues get(Lookup lookup, long now) {
+		if (snapshotMillis == 0 || now - snapshotMillis >= MAX_AGE_MILLIS || now < snapshotMillis) {
+			return null;
+		}
+		return fields.has(getStateField(lookup)) ? fields : null;
+	}
+
+	/**
+	 * @return Holder to stream the next vehicle_data response into. Call update or invalidate once it is filled.
+	 */
+	synchronized JSONFieldValues getFields() {
+		snapshotMillis = 0;
+		return fields;
+	}
+
+	/**
+	 * Mark the holder as a new snapshot, after a vehicle_data response fetched with COMBINED_ENDPOINTS was read into it
+	 * @param now Time of the fetch in milliseconds since January 1, 1970
+	 */
+	synchronized void update(long now) {
+		snapshotMillis = now;
+	}
+
+	/**
+	 * @param lookup Data to look up
+	 * @return vehicle_data field of the state object holding the data
+	 */
+	static int getStateField(Lookup lookup) {
+		return lookup == Lookup.CHARGE_STATE ? VehicleDataFields.CHARGE_STATE : VehicleDataFields.DRIVE_STATE;
+	}
+
+	/**
+	 * Drop the snapshot, e.g. after a command changed the vehicle's state
+	 */
+	synchronized void invalidate() {
+		snapshotMillis = 0;
+	}
+
+	synchronized void recordLookup(Lookup lookup, Tier tier) {
+		lookups[lookup.ordinal()][tier.ordinal()]++;
+	}
+
+	/**
+	 * @return Number of lookups of a kind answered by a tier
+	 */
+	synchronized long getLookups(Lookup lookup, Tier tier) {
+		return lookups[lookup.ordinal()][tier.ordinal()];
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Lookup lookup : Lookup.values()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(lookup.name().toLowerCase()).append(": ");
+			for(Tier tier : Tier.values()) {
+				sb.append(lookups[lookup.ordinal()][tier.ordinal()]).append(' ').append(tier.name().toLowerCase());
+				if (tier.ordinal() < Tier.values().length - 1) {
+					sb.append('/');
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
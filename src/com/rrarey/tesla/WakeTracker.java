@@ -0,0 +1,152 @@
+package com.rrarey.tesla;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONObject;
+
+/**
+ * What we know about whether one vehicle is awake, so wake_up is only sent when it is needed.
+ *
+ * The vehicle is confirmed online when the vehicle list says so, a wake_up says so, or a vehicle_data request or
+ * command succeeds. It is seen asleep when the vehicle list says asleep or offline, or a request times out with 408.
+ * The time between the last confirmation and the first time it is seen asleep after it is how long the vehicle stays
+ * awake without anything keeping it up, which we learn as we go.
+ *
+ * A wake is skipped while the vehicle was confirmed online after it was last seen asleep, and less than
+ * AWAKE_TRUST_FRACTION of that learned time ago. If we're wrong anyway, the next request gets a 408, which marks the
+ * vehicle asleep so the wake that follows is sent.
+ *
+ * Only one wake is in flight at a time. Callers that ask for a wake while one is running wait for that one.
+ */
+class WakeTracker {
+	// How long a vehicle stays awake before we have seen it fall asleep
+	static final long DEFAULT_FALL_ASLEEP_MILLIS = 15 * 60 * 1000;
+
+	// Learned times outside this range come from gaps in what we saw rather than the vehicle
+	static final long
+		MIN_FALL_ASLEEP_MILLIS = 60 * 1000,
+		MAX_FALL_ASLEEP_MILLIS = 60 * 60 * 1000
+	;
+
+	// Weight of the newest observation in the learned time
+	static final double FALL_ASLEEP_WEIGHT = 0.3;
+
+	// Fraction of the learned time after a confirmation that we trust the vehicle to still be awake
+	static final double AWAKE_TRUST_FRACTION = 0.5;
+
+	private long
+		lastOnlineMillis = 0,
+		lastAsleepMillis = 0
+	;
+	private double fallAsleepMillis = DEFAULT_FALL_ASLEEP_MILLIS;
+	private int
+		requested = 0,
+		sent = 0,
+		skipped = 0,
+		coalesced = 0
+	;
+	private CompletableFuture<Boolean> inFlight = null;
+
+	/**
+	 * @param state State from the vehicle list (online, asleep, offline, waking, unknown)
+	 * @param nowMillis When the state was seen
+	 */
+	synchronized void sawState(String state, long nowMillis) {
+		if (state.equals("online")) {
+			confirmOnline(nowMillis);
+		} else if (state.equals("asleep") || state.equals("offline")) {
+			sawAsleep(nowMillis);
+		}
+	}
+
+	/**
+	 * The vehicle answered a request, so it is awake
+	 * @param nowMillis Current time
+	 */
+	synchronized void confirmOnline(long nowMillis) {
+		lastOnlineMillis = Math.max(lastOnlineMillis, nowMillis);
+	}
+
+	/**
+	 * The vehicle was seen asleep or offline, or didn't answer a request
+	 * @param nowMillis Current time
+	 */
+	synchronized void sawAsleep(long nowMillis) {
+		if (lastOnlineMillis > lastAsleepMillis) {
+			// First time asleep since it was last online
+			long awakeMillis = nowMillis - lastOnlineMillis;
+			if (awakeMillis >= MIN_FALL_ASLEEP_MILLIS && awakeMillis <= MAX_FALL_ASLEEP_MILLIS) {
+				fallAsleepMillis += FALL_ASLEEP_WEIGHT * (awakeMillis - fallAsleepMillis);
+			}
+		}
+		lastAsleepMillis = Math.max(lastAsleepMillis, nowMillis);
+	}
+
+	/**
+	 * @param nowMillis Current time
+	 * @return Whether the vehicle is surely still awake
+	 */
+	synchronized boolean isAwake(long nowMillis) {
+		return lastOnlineMillis > lastAsleepMillis && nowMillis - lastOnlineMillis < AWAKE_TRUST_FRACTION * fallAsleepMillis;
+	}
+
+	/**
+	 * Wake the vehicle unless it is surely still awake. If a wake is already running, wait for it instead.
+	 * @param sendWakeUp Sends wake_up until the vehicle is online or we give up, returning whether it is online
+	 * @return Whether the vehicle is awake
+	 */
+	boolean wake(BooleanSupplier sendWakeUp) {
+		CompletableFuture<Boolean> running;
+		synchronized (this) {
+			requested++;
+			if (isAwake(System.currentTimeMillis())) {
+				skipped++;
+				RTPMetrics.wakeUpsSkippedOnline.increment();
+				return true;
+			}
+			running = inFlight;
+			if (running != null) {
+				coalesced++;
+				RTPMetrics.wakeUpsSkippedCoalesced.increment();
+			} else {
+				sent++;
+				inFlight = new CompletableFuture<Boolean>();
+			}
+		}
+		if (running != null) {
+			return running.join();
+		}
+
+		boolean awake = false;
+		try {
+			awake = sendWakeUp.getAsBoolean();
+		} finally {
+			CompletableFuture<Boolean> wake;
+			synchronized (this) {
+				wake = inFlight;
+				inFlight = null;
+				if (awake) {
+					confirmOnline(System.currentTimeMillis());
+				}
+			}
+			wake.complete(awake);
+		}
+		return awake;
+	}
+
+	/**
+	 * @return Wake counts and what we know about the vehicle being awake, for the admin status endpoint
+	 */
+	synchronized JSONObject toJSON() {
+		return new JSONObject()
+			.put("lastOnlineMillis", lastOnlineMillis)
+			.put("lastAsleepMillis", lastAsleepMillis)
+			.put("fallAsleepSeconds", Math.round(fallAsleepMillis / 1000))
+			.put("awake", isAwake(System.currentTimeMillis()))
+			.put("requested", requested)
+			.put("sent", sent)
+			.put("skipped", skipped)
+			.put("coalesced", coalesced);
+	}
+}
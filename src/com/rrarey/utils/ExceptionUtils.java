@@ -12,9 +12,7 @@ public class ExceptionUtils {
 
 		if (e != null) {
 			message = e.getMessage() != null ? e.getMessage() : "";
-			stackTrace =
-				org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace(e) != null ?
-				org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace(e) : "";
+			stackTrace = org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace(e);
 		}
 
 		String s = "";
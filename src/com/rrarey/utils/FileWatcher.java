@@ -0,0 +1,112 @@
+package com.rrarey.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Calls back when a file changes, using a WatchService on its directory instead of checking its modification time.
+ *
+ * Editors and atomic replaces often change a file in several steps (truncate, write, rename), so events are
+ * debounced: the callback runs once the file has been quiet for the debounce time. The callback runs on the
+ * watcher's own daemon thread.
+ */
+public class FileWatcher implements Closeable {
+	private static final Logger logger = LogManager.getLogger(FileWatcher.class);
+
+	private final Path file;
+	private final long debounceMillis;
+	private final Runnable onChange;
+	private final WatchService watchService;
+	private final Thread thread;
+
+	/**
+	 * @param file File to watch
+	 * @param debounceMillis How long the file must go without changes before onChange is called
+	 * @param onChange Called after the file changes
+	 * @throws IOException When the file's directory can't be watched
+	 */
+	public FileWatcher(Path file, long debounceMillis, Runnable onChange) throws IOException {
+		this.file = file.toAbsolutePath();
+		this.debounceMillis = debounceMillis;
+		this.onChange = onChange;
+
+		watchService = FileSystems.getDefault().newWatchService();
+		try {
+			this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException ex) {
+			watchService.close();
+			throw ex;
+		}
+
+		thread = new Thread(this::run, "file-watch");
+		thread.setDaemon(true);
+	}
+
+	public FileWatcher start() {
+		thread.start();
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				if (!isFileChanged(watchService.take())) {
+					continue;
+				}
+
+				// Wait for the file to settle. Changes to other files in the directory, like a log being written, don't
+				// hold it up.
+				long quietUntil = System.currentTimeMillis() + debounceMillis;
+				long remaining;
+				while ((remaining = quietUntil - System.currentTimeMillis()) > 0) {
+					WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+					if (key == null) {
+						break;
+					}
+					if (isFileChanged(key)) {
+						quietUntil = System.currentTimeMillis() + debounceMillis;
+					}
+				}
+
+				try {
+					onChange.run();
+				} catch (RuntimeException ex) {
+					logger.error("Exception while handling change to {}: {}", file, ExceptionUtils.getExceptionString(ex));
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ex) {
+			logger.debug("Stopped watching {}", file);
+		}
+	}
+
+	/**
+	 * @param key Key with events for the directory
+	 * @return Whether any of the events are for our file. Lost events (overflow) count, since they might have been.
+	 */
+	private boolean isFileChanged(WatchKey key) {
+		boolean changed = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+}
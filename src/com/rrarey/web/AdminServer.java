@@ -0,0 +1,384 @@
+package com.rrarey.web;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.rrarey.utils.ExceptionUtils;
+
+/**
+ * Small JSON-over-HTTP server for local administration. Only listens on the loopback address.
+ *
+ * Every connection is handled on one thread with a non-blocking NIO selector, so a slow or idle client never ties up
+ * more than a buffer, and nothing here runs on the threads doing the real work. Each connection carries one request
+ * and is closed after the response. Handlers run on the selector thread, so they should be quick.
+ *
+ * GET routes are open to anything that can reach the port. POST routes change things, so they need an
+ * "Authorization: Bearer <token>" header matching the token the server was created with, and are turned off when
+ * there is no token.
+ */
+public class AdminServer {
+	static final int
+		MAX_REQUEST_BYTES = 64 * 1024,
+		IDLE_TIMEOUT_MILLIS = 10 * 1000,
+		SELECT_TIMEOUT_MILLIS = 1000
+	;
+
+	private static final Logger logger = LogManager.getLogger(AdminServer.class);
+
+	/**
+	 * Bytes read and waiting to be written for one connection
+	 */
+	private static final class Connection {
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		ByteBuffer out = null;
+		long lastActivityMillis;
+
+		Connection(long now) {
+			lastActivityMillis = now;
+		}
+	}
+
+	/**
+	 * Error to send back to the client
+	 */
+	private static final class HttpError extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int statusCode;
+
+		HttpError(int statusCode, String message) {
+			super(message);
+			this.statusCode = statusCode;
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final byte[] token;
+	private final Map<String, Supplier<JSONObject>> getRoutes = new ConcurrentHashMap<String, Supplier<JSONObject>>();
+	private final Map<String, Function<JSONObject, JSONObject>> postRoutes = new ConcurrentHashMap<String, Function<JSONObject, JSONObject>>();
+	private final Thread thread = new Thread(this::run, "admin-http");
+	private volatile boolean running = false;
+
+	/**
+	 * @param port Local port to listen on. 0 picks a free port.
+	 * @param token Token POST requests must present, or null/empty to turn POST routes off
+	 * @throws IOException When the port can't be bound
+	 */
+	public AdminServer(int port, String token) throws IOException {
+		this.token = (token != null ? token : "").getBytes(StandardCharsets.UTF_8);
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException ex) {
+			serverChannel.close();
+			selector.close();
+			throw ex;
+		}
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * @param path Path, e.g. /status
+	 * @param handler Builds the response body
+	 * @return This server
+	 */
+	public AdminServer get(String path, Supplier<JSONObject> handler) {
+		getRoutes.put(path, handler);
+		return this;
+	}
+
+	/**
+	 * @param path Path, e.g. /config
+	 * @param handler Takes the JSON request body and returns the response body. Throw IllegalArgumentException to
+	 * reject the request with a 400.
+	 * @return This server
+	 */
+	public AdminServer post(String path, Function<JSONObject, JSONObject> handler) {
+		postRoutes.put(path, handler);
+		return this;
+	}
+
+	public void start() {
+		running = true;
+		thread.start();
+		logger.debug("Admin server listening on {}", () -> serverChannel.socket().getLocalSocketAddress());
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select(SELECT_TIMEOUT_MILLIS);
+				long now = System.currentTimeMillis();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(now);
+						} else if (key.isReadable()) {
+							read(key, now);
+						} else if (key.isWritable()) {
+							write(key, now);
+						}
+					} catch (IOException ex) {
+						logger.debug("Admin connection failed: {}", ex.getMessage());
+						close(key);
+					}
+				}
+
+				closeIdle(now);
+			}
+		} catch (IOException ex) {
+			logger.error("Admin server stopped: {}", ExceptionUtils.getExceptionString(ex));
+		} finally {
+			for(SelectionKey key : selector.keys()) {
+				close(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) { }
+		}
+	}
+
+	private void accept(long now) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(now));
+	}
+
+	private void read(SelectionKey key, long now) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+		if (channel.read(connection.in) < 0) {
+			close(key);
+			return;
+		}
+		connection.lastActivityMillis = now;
+
+		int status = 200;
+		JSONObject body;
+		boolean challenge = false;
+		try {
+			body = handle(connection);
+			if (body == null) {
+				// Request isn't complete yet
+				if (!connection.in.hasRemaining()) {
+					if (connection.in.capacity() >= MAX_REQUEST_BYTES) {
+						throw new HttpError(413, "Request is too large");
+					}
+					ByteBuffer larger = ByteBuffer.allocate(Math.min(connection.in.capacity() * 2, MAX_REQUEST_BYTES));
+					connection.in.flip();
+					connection.in = larger.put(connection.in);
+				}
+				return;
+			}
+		} catch (HttpError ex) {
+			status = ex.statusCode;
+			body = new JSONObject().put("error", ex.getMessage());
+			challenge = status == 401;
+		} catch (RuntimeException ex) {
+			logger.error("Admin request failed: {}", ExceptionUtils.getExceptionString(ex));
+			status = 500;
+			body = new JSONObject().put("error", "Internal error");
+		}
+
+		respond(key, connection, status, body, challenge, now);
+	}
+
+	/**
+	 * @param connection Connection with the bytes read so far
+	 * @return Response body, or null if the whole request hasn't arrived yet
+	 * @throws HttpError When the request should get an error response
+	 */
+	private JSONObject handle(Connection connection) throws HttpError {
+		byte[] bytes = connection.in.array();
+		int length = connection.in.position();
+
+		int headerEnd = -1;
+		for(int i = 3; i < length; i++) {
+			if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+				headerEnd = i + 1;
+				break;
+			}
+		}
+		if (headerEnd < 0) {
+			return null;
+		}
+
+		String[] lines = new String(bytes, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3) {
+			throw new HttpError(400, "Malformed request line");
+		}
+		String method = requestLine[0];
+		String path = requestLine[1];
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			path = path.substring(0, query);
+		}
+
+		int contentLength = 0;
+		String authorization = null;
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			String name = lines[i].substring(0, colon).trim();
+			String value = lines[i].substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					contentLength = Integer.parseInt(value);
+				} catch (NumberFormatException ex) {
+					throw new HttpError(400, "Invalid Content-Length");
+				}
+			} else if (name.equalsIgnoreCase("Authorization")) {
+				authorization = value;
+			}
+		}
+		if (contentLength < 0 || headerEnd + contentLength > MAX_REQUEST_BYTES) {
+			throw new HttpError(413, "Request is too large");
+		}
+		if (length < headerEnd + contentLength) {
+			return null;
+		}
+
+		if (method.equals("GET")) {
+			Supplier<JSONObject> handler = getRoutes.get(path);
+			if (handler == null) {
+				throw new HttpError(404, "Not found");
+			}
+			return handler.get();
+		} else if (method.equals("POST")) {
+			Function<JSONObject, JSONObject> handler = postRoutes.get(path);
+			if (handler == null) {
+				throw new HttpError(404, "Not found");
+			}
+			if (token.length == 0) {
+				throw new HttpError(403, "Updates are turned off because no admin token is set");
+			}
+			if (!isAuthorized(authorization)) {
+				throw new HttpError(401, "Missing or incorrect bearer token");
+			}
+
+			try {
+				JSONObject request = new JSONObject(new String(bytes, headerEnd, contentLength, StandardCharsets.UTF_8));
+				return handler.apply(request);
+			} catch (JSONException | IllegalArgumentException ex) {
+				throw new HttpError(400, ex.getMessage());
+			}
+		}
+		throw new HttpError(405, "Method not allowed");
+	}
+
+	/**
+	 * Compare in constant time, so response timing doesn't give the token away
+	 * @param authorization Authorization header, or null
+	 * @return Whether it holds our bearer token
+	 */
+	private boolean isAuthorized(String authorization) {
+		if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+			return false;
+		}
+		byte[] presented = authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8);
+		return MessageDigest.isEqual(presented, token);
+	}
+
+	private void respond(SelectionKey key, Connection connection, int status, JSONObject body, boolean challenge, long now) throws IOException {
+		byte[] content = (body.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+		StringBuilder head = new StringBuilder(256)
+			.append("HTTP/1.1 ").append(status).append(' ').append(getReasonPhrase(status)).append("\r\n")
+			.append("Content-Type: application/json; charset=utf-8\r\n")
+			.append("Content-Length: ").append(content.length).append("\r\n")
+			.append("Cache-Control: no-store\r\n")
+			.append("Connection: close\r\n");
+		if (challenge) {
+			head.append("WWW-Authenticate: Bearer\r\n");
+		}
+		head.append("\r\n");
+
+		byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+		connection.out = ByteBuffer.allocate(headBytes.length + content.length).put(headBytes).put(content);
+		connection.out.flip();
+		connection.in = null;
+		key.interestOps(SelectionKey.OP_WRITE);
+		write(key, now);
+	}
+
+	private void write(SelectionKey key, long now) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		((SocketChannel) key.channel()).write(connection.out);
+		connection.lastActivityMillis = now;
+		if (!connection.out.hasRemaining()) {
+			close(key);
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection && now - ((Connection) attachment).lastActivityMillis > IDLE_TIMEOUT_MILLIS) {
+				close(key);
+			}
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ex) { }
+	}
+
+	private static String getReasonPhrase(int status) {
+		switch (status) {
+			case 200: return "OK";
+			case 400: return "Bad Request";
+			case 401: return "Unauthorized";
+			case 403: return "Forbidden";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 413: return "Payload Too Large";
+			default: return "Internal Server Error";
+		}
+	}
+}
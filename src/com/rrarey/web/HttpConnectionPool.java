@@ -0,0 +1,253 @@
+package com.rrarey.web;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * Shared, pooled HTTP client used by WebRequest and RESTRequest.
+ * Connections are kept alive per host and handed back to the pool after each request, and all TLS connections
+ * come from one SSLContext so its session cache can resume sessions instead of doing full handshakes.
+ */
+public class HttpConnectionPool {
+	// Pool defaults. We only talk to a handful of hosts (Tesla owner API, Tesla auth, ComEd), so these are small. In
+	// fleet mode they are raised to the number of vehicle workers with ensureCapacity.
+	public static final int
+		DEFAULT_MAX_TOTAL = 20,
+		DEFAULT_MAX_PER_HOST = 4,
+		DEFAULT_IDLE_TIMEOUT_SECONDS = 120,
+		DEFAULT_KEEP_ALIVE_SECONDS = 120,
+		DEFAULT_IO_THREADS = 4,
+		CONNECT_TIMEOUT_MILLIS = 15000,
+		READ_TIMEOUT_MILLIS = 30000,
+		VALIDATE_AFTER_INACTIVITY_MILLIS = 2000
+	;
+
+	private static HttpConnectionPool defaultPool = null;
+
+	private final PoolingHttpClientConnectionManager manager;
+	private final CloseableHttpClient client;
+	private ScheduledThreadPoolExecutor executor = null;
+	private int ioThreads = DEFAULT_IO_THREADS;
+
+	private final AtomicLong
+		requests = new AtomicLong(),
+		connectionsOpened = new AtomicLong(),
+		tlsHandshakes = new AtomicLong(),
+		tlsSessionsResumed = new AtomicLong()
+	;
+
+	public HttpConnectionPool() {
+		this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT_SECONDS, DEFAULT_KEEP_ALIVE_SECONDS);
+	}
+
+	/**
+	 * Create a new connection pool
+	 * @param maxTotal Maximum number of connections across all hosts
+	 * @param maxPerHost Maximum number of connections to a single host
+	 * @param idleTimeoutSeconds Connections idle for longer than this are closed by a background evictor
+	 * @param keepAliveSeconds How long to keep a connection when the server doesn't send a Keep-Alive timeout
+	 */
+	public HttpConnectionPool(int maxTotal, int maxPerHost, int idleTimeoutSeconds, final int keepAliveSeconds) {
+		SSLContext sslContext = SSLContexts.createSystemDefault();
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+			.register("http", new CountingPlainSocketFactory())
+			.register("https", new CountingSSLSocketFactory(sslContext))
+			.build();
+
+		manager = new PoolingHttpClientConnectionManager(socketFactories);
+		manager.setMaxTotal(maxTotal);
+		manager.setDefaultMaxPerRoute(maxPerHost);
+		manager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+		// Honor the server's Keep-Alive timeout when it sends one, otherwise use our own.
+		ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(org.apache.http.HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				return duration > 0 ? duration : keepAliveSeconds * 1000L;
+			}
+		};
+
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+			.setSocketTimeout(READ_TIMEOUT_MILLIS)
+			.setRedirectsEnabled(false)
+			.build();
+
+		client = HttpClients.custom()
+			.setConnectionManager(manager)
+			.setKeepAliveStrategy(keepAliveStrategy)
+			.setDefaultRequestConfig(requestConfig)
+			.disableRedirectHandling()
+			.evictExpiredConnections()
+			.evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+			.build();
+	}
+
+	/**
+	 * Get the pool shared by all WebRequest objects that weren't given their own pool
+	 * @return Shared HttpConnectionPool
+	 */
+	public static synchronized HttpConnectionPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new HttpConnectionPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Get the small I/O executor used by the asynchronous request methods. It is also used to schedule retries, so
+	 * no thread is blocked while waiting for the next attempt.
+	 * @return ScheduledExecutorService with daemon threads
+	 */
+	public synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			executor = new ScheduledThreadPoolExecutor(ioThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "http-io-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Make room for this many requests to one host at once, e.g. one per worker thread, so the workers don't queue for
+	 * a connection or an I/O thread. Limits are only ever raised, never below the defaults.
+	 * @param concurrentRequests Requests that may be sent to one host at the same time
+	 */
+	public synchronized void ensureCapacity(int concurrentRequests) {
+		int maxPerHost = Math.max(manager.getDefaultMaxPerRoute(), concurrentRequests);
+		manager.setDefaultMaxPerRoute(maxPerHost);
+		manager.setMaxTotal(Math.max(manager.getMaxTotal(), DEFAULT_MAX_TOTAL - DEFAULT_MAX_PER_HOST + maxPerHost));
+
+		ioThreads = Math.max(ioThreads, concurrentRequests);
+		if (executor != null && executor.getCorePoolSize() < ioThreads) {
+			executor.setCorePoolSize(ioThreads);
+		}
+	}
+
+	CloseableHttpClient getClient() {
+		requests.incrementAndGet();
+		return client;
+	}
+
+	/**
+	 * @return Number of requests sent through this pool
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of new TCP connections opened
+	 */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+
+	/**
+	 * @return Number of requests that were sent over an already open connection
+	 */
+	public long getConnectionsReused() {
+		return Math.max(0, requests.get() - connectionsOpened.get());
+	}
+
+	/**
+	 * @return Number of full TLS handshakes
+	 */
+	public long getTLSHandshakes() {
+		return tlsHandshakes.get();
+	}
+
+	/**
+	 * @return Number of TLS handshakes that resumed a cached session
+	 */
+	public long getTLSSessionsResumed() {
+		return tlsSessionsResumed.get();
+	}
+
+	/**
+	 * @return Connection pool totals (leased, available, pending, max)
+	 */
+	public PoolStats getPoolStats() {
+		return manager.getTotalStats();
+	}
+
+	public String toString() {
+		PoolStats stats = getPoolStats();
+		return "Requests: " + getRequestCount() + ", Connections opened: " + getConnectionsOpened() + ", Reused: " + getConnectionsReused() +
+			", TLS handshakes: " + getTLSHandshakes() + ", TLS resumed: " + getTLSSessionsResumed() +
+			", Leased: " + stats.getLeased() + ", Available: " + stats.getAvailable() + ", Max: " + stats.getMax();
+	}
+
+	private class CountingPlainSocketFactory extends PlainConnectionSocketFactory {
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+			Socket s = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+			connectionsOpened.incrementAndGet();
+			return s;
+		}
+	}
+
+	private class CountingSSLSocketFactory extends SSLConnectionSocketFactory {
+		CountingSSLSocketFactory(SSLContext sslContext) {
+			super(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+		}
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+			Socket s = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+			connectionsOpened.incrementAndGet();
+			return s;
+		}
+
+		@Override
+		protected void prepareSocket(SSLSocket socket) throws IOException {
+			final long socketCreated = System.currentTimeMillis();
+			socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					// A resumed session was created before this socket existed.
+					if (event.getSession().getCreationTime() < socketCreated) {
+						tlsSessionsResumed.incrementAndGet();
+					} else {
+						tlsHandshakes.incrementAndGet();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.rrarey.web;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Thrown when a server responds with an error status. Carries the status code, the Retry-After header and the
+ * response body, so callers can decide how to retry without looking at the message.
+ *
+ * No stack trace is captured: the status is what matters, and these are thrown on every failed attempt.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	// Longest response body we keep
+	static final int MAX_BODY_LENGTH = 4096;
+
+	private final int statusCode;
+	private final long retryAfterSeconds;
+	private final String
+		url,
+		body
+	;
+
+	/**
+	 * @param statusCode HTTP status code of the response
+	 * @param url URL of the request
+	 * @param retryAfter Value of the Retry-After header, or null
+	 * @param body Response body, or null
+	 */
+	public HttpStatusException(int statusCode, String url, String retryAfter, String body) {
+		super("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+		this.statusCode = statusCode;
+		this.url = url;
+		this.retryAfterSeconds = parseRetryAfter(retryAfter);
+		this.body = body != null && body.length() > MAX_BODY_LENGTH ? body.substring(0, MAX_BODY_LENGTH) : body;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return Seconds the server asked us to wait before retrying, or -1 if it didn't say
+	 */
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public String getURL() {
+		return url;
+	}
+
+	/**
+	 * @return Response body, truncated to MAX_BODY_LENGTH characters. May be null.
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * @return Whether the server rejected our credentials (401 or 403)
+	 */
+	public boolean isUnauthorized() {
+		return statusCode == 401 || statusCode == 403;
+	}
+
+	/**
+	 * Find the HTTP status of a failure, looking through wrapping exceptions like CompletionException
+	 * @param t Throwable to check
+	 * @return HTTP status code, or 0 if the failure wasn't an error response
+	 */
+	public static int getStatusCode(Throwable t) {
+		HttpStatusException ex = find(t);
+		return ex != null ? ex.statusCode : 0;
+	}
+
+	/**
+	 * Find an HttpStatusException in a throwable or its causes
+	 * @param t Throwable to check
+	 * @return HttpStatusException, or null if there isn't one
+	 */
+	public static HttpStatusException find(Throwable t) {
+		for(int depth = 0; t != null && depth < 8; depth++, t = t.getCause()) {
+			if (t instanceof HttpStatusException) {
+				return (HttpStatusException) t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parse a Retry-After header, which is either a number of seconds or an HTTP date
+	 * @param retryAfter Header value, or null
+	 * @return Seconds to wait, or -1 if there is no usable value
+	 */
+	static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null || retryAfter.trim().isEmpty()) {
+			return -1;
+		}
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter));
+		} catch (NumberFormatException ex) { }
+
+		Date date = DateUtils.parseDate(retryAfter);
+		if (date != null) {
+			return Math.max(0, (date.getTime() - System.currentTimeMillis() + 999) / 1000);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,396 @@
+package com.rrarey.web;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+
+/**
+ * Reads a fixed set of fields out of a JSON document as it streams in, without building the document.
+ *
+ * Fields are declared up front as dot-separated paths of object keys, e.g. "response.charge_state.charging_state".
+ * Each path gets a field index, and extract() stores the value found at each path in a reusable JSONFieldValues.
+ * Everything else is skipped without allocating: only the values of declared string and number fields are copied.
+ * A path can name an object as well as fields inside it, which records whether the object was present.
+ *
+ * An extractor is immutable once constructed and can be shared between threads. JSONFieldValues can't.
+ */
+public class JSONFieldExtractor {
+	// Powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// Largest mantissa a double holds exactly
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	/**
+	 * Object key along a declared path
+	 */
+	private static final class Node {
+		final String key;
+		int field = -1;
+		Node[] children = new Node[0];
+
+		Node(String key) {
+			this.key = key;
+		}
+
+		Node child(CharSequence name) {
+			for(Node child : children) {
+				if (child.key.contentEquals(name)) {
+					return child;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Node root = new Node(null);
+	private final String[] paths;
+
+	/**
+	 * @param paths Dot-separated paths of the fields to extract. Field indexes follow the order given.
+	 */
+	public JSONFieldExtractor(String... paths) {
+		this.paths = paths.clone();
+		for(int field = 0; field < paths.length; field++) {
+			Node node = root;
+			for(String key : paths[field].split("\\.")) {
+				Node child = node.child(key);
+				if (child == null) {
+					child = new Node(key);
+					List<Node> children = new ArrayList<Node>(Arrays.asList(node.children));
+					children.add(child);
+					node.children = children.toArray(new Node[children.size()]);
+				}
+				node = child;
+			}
+			if (node.field >= 0) {
+				throw new IllegalArgumentException("Duplicate field path: " + paths[field]);
+			}
+			node.field = field;
+		}
+	}
+
+	/**
+	 * @param path Path the extractor was constructed with
+	 * @return Index of the field
+	 */
+	public int getField(String path) {
+		for(int field = 0; field < paths.length; field++) {
+			if (paths[field].equals(path)) {
+				return field;
+			}
+		}
+		throw new IllegalArgumentException("Unknown field path: " + path);
+	}
+
+	/**
+	 * @return Number of fields declared
+	 */
+	public int getFieldCount() {
+		return paths.length;
+	}
+
+	/**
+	 * @param field Field index
+	 * @return Path of the field
+	 */
+	public String getPath(int field) {
+		return paths[field];
+	}
+
+	/**
+	 * Read a JSON document to the end, storing the declared fields. Fields not in the document are left missing.
+	 * @param reader Document to read. Not closed.
+	 * @param values Holder created for this extractor. Cleared first.
+	 * @throws JSONException When the document isn't valid JSON
+	 * @throws IOException When reading fails
+	 */
+	public void extract(Reader reader, JSONFieldValues values) throws IOException {
+		if (values.getExtractor() != this) {
+			throw new IllegalArgumentException("JSONFieldValues belongs to a different extractor");
+		}
+		values.clear();
+		values.reader = reader;
+		values.position = 0;
+		values.limit = 0;
+		try {
+			int c = nextClean(values);
+			if (c < 0) {
+				throw syntaxError("Empty document");
+			}
+			readValue(values, c, root);
+			if (nextClean(values) >= 0) {
+				throw syntaxError("Unexpected content after the document");
+			}
+		} finally {
+			values.reader = null;
+		}
+	}
+
+	/**
+	 * Read a value, storing it if the node is a declared field
+	 * @param values Holder and read state
+	 * @param c First character of the value
+	 * @param node Node the value belongs to, or null to skip it
+	 */
+	private void readValue(JSONFieldValues values, int c, Node node) throws IOException {
+		int field = node != null ? node.field : -1;
+		switch (c) {
+		case '{':
+			if (field >= 0) {
+				values.types[field] = JSONFieldValues.OBJECT;
+			}
+			readObject(values, node != null && node.children.length > 0 ? node : null);
+			break;
+		case '[':
+			if (field >= 0) {
+				values.types[field] = JSONFieldValues.ARRAY;
+			}
+			skipArray(values);
+			break;
+		case '"':
+			if (field >= 0) {
+				StringBuilder text = values.text;
+				text.setLength(0);
+				readString(values, text);
+				values.strings[field] = text.toString();
+				values.types[field] = JSONFieldValues.STRING;
+			} else {
+				readString(values, null);
+			}
+			break;
+		case 't':
+			expectLiteral(values, "rue");
+			setBoolean(values, field, true);
+			break;
+		case 'f':
+			expectLiteral(values, "alse");
+			setBoolean(values, field, false);
+			break;
+		case 'n':
+			expectLiteral(values, "ull");
+			if (field >= 0) {
+				values.types[field] = JSONFieldValues.NULL;
+			}
+			break;
+		default:
+			if (c != '-' && (c < '0' || c > '9')) {
+				throw syntaxError("Unexpected character '" + (char) c + "'");
+			}
+			StringBuilder text = values.text;
+			text.setLength(0);
+			text.append((char) c);
+			int p;
+			while ((p = peek(values)) >= 0 && isNumberChar(p)) {
+				text.append((char) p);
+				values.position++;
+			}
+			if (field >= 0) {
+				values.numbers[field] = parseNumber(text);
+				values.types[field] = JSONFieldValues.NUMBER;
+			}
+		}
+	}
+
+	private void readObject(JSONFieldValues values, Node node) throws IOException {
+		StringBuilder key = values.key;
+		int c = nextClean(values);
+		if (c == '}') {
+			return;
+		}
+		while (true) {
+			if (c != '"') {
+				throw syntaxError("Expected an object key");
+			}
+			Node child = null;
+			if (node != null) {
+				key.setLength(0);
+				readString(values, key);
+				child = node.child(key);
+			} else {
+				readString(values, null);
+			}
+			if (nextClean(values) != ':') {
+				throw syntaxError("Expected ':' after an object key");
+			}
+			readValue(values, nextClean(values), child);
+
+			c = nextClean(values);
+			if (c == '}') {
+				return;
+			} else if (c != ',') {
+				throw syntaxError("Expected ',' or '}' in an object");
+			}
+			c = nextClean(values);
+		}
+	}
+
+	private void skipArray(JSONFieldValues values) throws IOException {
+		int c = nextClean(values);
+		if (c == ']') {
+			return;
+		}
+		while (true) {
+			readValue(values, c, null);
+			c = nextClean(values);
+			if (c == ']') {
+				return;
+			} else if (c != ',') {
+				throw syntaxError("Expected ',' or ']' in an array");
+			}
+			c = nextClean(values);
+		}
+	}
+
+	/**
+	 * Read a string after its opening quote
+	 * @param values Holder and read state
+	 * @param text Where to put the unescaped string, or null to skip it
+	 */
+	private void readString(JSONFieldValues values, StringBuilder text) throws IOException {
+		while (true) {
+			int c = read(values);
+			if (c < 0) {
+				throw syntaxError("Unterminated string");
+			} else if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				c = read(values);
+				switch (c) {
+				case 'b': c = '\b'; break;
+				case 't': c = '\t'; break;
+				case 'n': c = '\n'; break;
+				case 'f': c = '\f'; break;
+				case 'r': c = '\r'; break;
+				case 'u':
+					int code = 0;
+					for(int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(values), 16);
+						if (digit < 0) {
+							throw syntaxError("Invalid \\u escape");
+						}
+						code = (code << 4) | digit;
+					}
+					c = code;
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					break;
+				default:
+					throw syntaxError("Invalid escape");
+				}
+			}
+			if (text != null) {
+				text.append((char) c);
+			}
+		}
+	}
+
+	private void expectLiteral(JSONFieldValues values, String rest) throws IOException {
+		for(int i = 0; i < rest.length(); i++) {
+			if (read(values) != rest.charAt(i)) {
+				throw syntaxError("Invalid literal");
+			}
+		}
+	}
+
+	private static void setBoolean(JSONFieldValues values, int field, boolean value) {
+		if (field >= 0) {
+			values.numbers[field] = value ? 1 : 0;
+			values.types[field] = JSONFieldValues.BOOLEAN;
+		}
+	}
+
+	private static boolean isNumberChar(int c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || c == 'e' || c == 'E';
+	}
+
+	/**
+	 * Parse a number without going through a String when it has no exponent and a short enough mantissa. The
+	 * result is then correctly rounded, the same as Double.parseDouble.
+	 * @param text Number
+	 * @return Value of the number
+	 */
+	static double parseNumber(CharSequence text) {
+		int length = text.length();
+		int i = 0;
+		boolean negative = text.charAt(0) == '-';
+		if (negative) {
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0,
+			fractionDigits = -1;
+		for(; i < length; i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+				if (++digits > 15) {
+					break;
+				}
+			} else if (c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				break;
+			}
+		}
+
+		if (i < length || digits == 0 || fractionDigits == 0 || mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+			try {
+				return Double.parseDouble(text.toString());
+			} catch (NumberFormatException ex) {
+				throw syntaxError("Invalid number: " + text);
+			}
+		}
+
+		double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+		return negative ? -value : value;
+	}
+
+	private static int nextClean(JSONFieldValues values) throws IOException {
+		int c;
+		do {
+			c = read(values);
+		} while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+		return c;
+	}
+
+	private static int read(JSONFieldValues values) throws IOException {
+		int c = peek(values);
+		if (c >= 0) {
+			values.position++;
+		}
+		return c;
+	}
+
+	private static int peek(JSONFieldValues values) throws IOException {
+		if (values.position >= values.limit) {
+			int read;
+			do {
+				read = values.reader.read(values.buffer, 0, values.buffer.length);
+			} while (read == 0);
+			if (read < 0) {
+				return -1;
+			}
+			values.position = 0;
+			values.limit = read;
+		}
+		return values.buffer[values.position];
+	}
+
+	private static JSONException syntaxError(String message) {
+		return new JSONException(message);
+	}
+}
@@ -0,0 +1,157 @@
+package com.rrarey.web;
+
+import java.io.Reader;
+
+/**
+ * Values read by a JSONFieldExtractor, stored by field index in primitive arrays.
+ *
+ * A holder is meant to be kept and filled again for each response, so reading a response allocates nothing but the
+ * strings of declared string fields. Booleans are stored as 1 or 0 alongside numbers. A holder is not thread-safe.
+ */
+public class JSONFieldValues {
+	// Value types
+	public static final byte
+		MISSING = 0,
+		NULL = 1,
+		BOOLEAN = 2,
+		NUMBER = 3,
+		STRING = 4,
+		OBJECT = 5,
+		ARRAY = 6
+	;
+
+	static final int BUFFER_SIZE = 4096;
+
+	private final JSONFieldExtractor extractor;
+
+	final byte[] types;
+	final double[] numbers;
+	final String[] strings;
+
+	// Read state, used by the extractor while filling this holder
+	final char[] buffer = new char[BUFFER_SIZE];
+	final StringBuilder
+		key = new StringBuilder(),
+		text = new StringBuilder()
+	;
+	Reader reader = null;
+	int
+		position = 0,
+		limit = 0
+	;
+
+	/**
+	 * @param extractor Extractor that will fill this holder
+	 */
+	public JSONFieldValues(JSONFieldExtractor extractor) {
+		this.extractor = extractor;
+		int fieldCount = extractor.getFieldCount();
+		types = new byte[fieldCount];
+		numbers = new double[fieldCount];
+		strings = new String[fieldCount];
+	}
+
+	public JSONFieldExtractor getExtractor() {
+		return extractor;
+	}
+
+	/**
+	 * Mark every field missing
+	 */
+	public void clear() {
+		for(int i = 0; i < types.length; i++) {
+			types[i] = MISSING;
+			strings[i] = null;
+		}
+	}
+
+	/**
+	 * @param field Field index
+	 * @return Type of the value, or MISSING if the response didn't have the field
+	 */
+	public byte getType(int field) {
+		return types[field];
+	}
+
+	/**
+	 * @param field Field index
+	 * @return Whether the response had the field, including with a null value
+	 */
+	public boolean has(int field) {
+		return types[field] != MISSING;
+	}
+
+	/**
+	 * @param field Field index
+	 * @return Whether the field was present with a null value
+	 */
+	public boolean isNull(int field) {
+		return types[field] == NULL;
+	}
+
+	/**
+	 * @param field Field index
+	 * @param defaultValue Value to use when the field isn't a number
+	 * @return Value of the field
+	 */
+	public double getDouble(int field, double defaultValue) {
+		return types[field] == NUMBER ? numbers[field] : defaultValue;
+	}
+
+	public int getInt(int field, int defaultValue) {
+		return types[field] == NUMBER ? (int) numbers[field] : defaultValue;
+	}
+
+	public long getLong(int field, long defaultValue) {
+		return types[field] == NUMBER ? (long) numbers[field] : defaultValue;
+	}
+
+	/**
+	 * @param field Field index
+	 * @param defaultValue Value to use when the field isn't a boolean
+	 * @return Value of the field
+	 */
+	public boolean getBoolean(int field, boolean defaultValue) {
+		return types[field] == BOOLEAN ? numbers[field] != 0 : defaultValue;
+	}
+
+	/**
+	 * @param field Field index
+	 * @param defaultValue Value to use when the field isn't a string
+	 * @return Value of the field
+	 */
+	public String getString(int field, String defaultValue) {
+		return types[field] == STRING ? strings[field] : defaultValue;
+	}
+
+	/**
+	 * @return The fields that were present, as path=value pairs
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for(int field = 0; field < types.length; field++) {
+			if (types[field] == MISSING || types[field] == OBJECT) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(extractor.getPath(field)).append('=');
+			switch (types[field]) {
+			case NULL: sb.append("null"); break;
+			case BOOLEAN: sb.append(numbers[field] != 0); break;
+			case NUMBER:
+				double number = numbers[field];
+				if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+					sb.append((long) number);
+				} else {
+					sb.append(number);
+				}
+				break;
+			case STRING: sb.append('"').append(strings[field]).append('"'); break;
+			default: sb.append("[...]");
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -1,5 +1,8 @@
 package com.rrarey.web;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
@@ -9,6 +12,7 @@ import com.rrarey.utils.ExceptionUtils;
 
 public class RESTRequest extends WebRequest {
 	private String baseURL;
+	private ResponseCache cache = null;
 	
 	private static final Logger logger = LogManager.getLogger(RESTRequest.class);	
 
@@ -20,6 +24,11 @@ public class RESTRequest extends WebRequest {
 		super();
 		setBaseUrl(b);
 	}
+
+	public RESTRequest(String b, HttpConnectionPool pool) {
+		super(pool);
+		setBaseUrl(b);
+	}
 	
 	public RESTRequest setBaseUrl(String b) {
 		if (b != null) {
@@ -34,14 +43,76 @@ public class RESTRequest extends WebRequest {
 		return this;
 	}
 
+	/**
+	 * Cache responses for the methods the cache has a TTL for
+	 * @param cache ResponseCache to use, or null to stop caching
+	 * @return this RESTRequest
+	 */
+	public RESTRequest setCache(ResponseCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	public ResponseCache getCache() {
+		return cache;
+	}
+
 	/**
 	 * Get a JSONObject representing the content retrieved from the REST endpoint
 	 * @param method Method to call at endpoint (assumed to be whatever comes after $BASEURL/rest/api/2/)
 	 * @return JSONObject from retrieved content. Note that if an array is retrieved, a JSONObject of the format {d: content} will be returned.
+	 * Responses from the cache are shared, so don't modify them.
 	 */
 	public JSONObject requestJSON(String method) throws Exception {
-		String json = requestData(method);
-		return processResponseData(json, method);
+		ResponseCache cache = this.cache;
+		long ttlMillis = cache != null ? cache.getTTL(method) : -1;
+		if (ttlMillis < 0) {
+			String json = requestData(method);
+			return processResponseData(json, method);
+		}
+
+		String url = baseURL + method;
+		ResponseCache.Entry cached = cache.get(url);
+		if (cached != null && System.currentTimeMillis() < cached.expiresMillis) {
+			cache.recordHit();
+			return cached.json;
+		}
+
+		boolean revalidate = cached != null && cached.canRevalidate();
+		Response response = getConditional(url, revalidate ? cached.etag : null, revalidate ? cached.lastModified : null);
+		if (response.isNotModified() && revalidate) {
+			logger.debug("{} not modified", url);
+			cache.recordNotModified();
+			cached.expiresMillis = System.currentTimeMillis() + ttlMillis;
+			return cached.json;
+		}
+
+		cache.recordMiss();
+		JSONObject json = processResponseData(response.body, method);
+		cache.put(url, json, response, ttlMillis);
+		return json;
+	}
+
+	/**
+	 * Read only the declared fields of the JSON response from the REST endpoint, without building a JSONObject.
+	 * Not cached.
+	 * @param method Method to call at endpoint
+	 * @param extractor Fields to read
+	 * @param values Holder for the fields
+	 * @throws IOException When the request fails or returns an error status
+	 */
+	public void requestFields(String method, JSONFieldExtractor extractor, JSONFieldValues values) throws IOException {
+		getFields(baseURL + method, extractor, values);
+	}
+
+	/**
+	 * Asynchronous version of requestJSON, run on the connection pool's I/O executor
+	 * @see requestJSON
+	 * @param method Method to call at endpoint
+	 * @return Future completed with the JSONObject from retrieved content
+	 */
+	public CompletableFuture<JSONObject> requestJSONAsync(final String method) {
+		return async(() -> requestJSON(method));
 	}
 
 	/**
@@ -50,7 +121,7 @@ public class RESTRequest extends WebRequest {
 	 * @param method Name of REST API endpoint called
 	 * @return JSONObject or null if string could not be parsed to JSON.
 	 */
-	private JSONObject processResponseData(String json, String method) {
+	JSONObject processResponseData(String json, String method) {
 		if (json != null && (json.startsWith("{") || json.startsWith("["))) {
 			try {
 				if (json.startsWith("[")) {
@@ -71,11 +142,6 @@ public class RESTRequest extends WebRequest {
 	 * @return String of content retrieved from endpoint
 	 */
 	private String requestData(String method) throws Exception {
-		String fullRequest = baseURL + method;
-    	WebRequest w = new WebRequest();
-    	w.setBearer(bearer);
-    	String response = w.get(fullRequest);
-
-    	return response;
+		return get(baseURL + method);
 	}
 }
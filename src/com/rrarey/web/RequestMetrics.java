@@ -0,0 +1,51 @@
+package com.rrarey.web;
+
+import com.rrarey.metrics.Counter;
+import com.rrarey.metrics.Histogram;
+import com.rrarey.metrics.MetricsRegistry;
+
+/**
+ * Latency and response status metrics for the requests of one client (e.g. tesla or comed). Every series is
+ * registered up front, so recording a request doesn't allocate.
+ */
+public class RequestMetrics {
+	static final String
+		DURATION = "http_client_request_duration_seconds",
+		RESPONSES = "http_client_responses_total"
+	;
+
+	private final Histogram
+		getDuration,
+		postDuration
+	;
+
+	// By status class: 0 for requests that failed without a response, then 1xx through 5xx
+	private final Counter[] responses = new Counter[6];
+
+	/**
+	 * @param registry Registry to keep the metrics in
+	 * @param client Name for the client label
+	 */
+	public RequestMetrics(MetricsRegistry registry, String client) {
+		String durationHelp = "Time from sending a request to reading its response";
+		getDuration = registry.histogram(DURATION, durationHelp, "client", client, "method", "GET");
+		postDuration = registry.histogram(DURATION, durationHelp, "client", client, "method", "POST");
+
+		String responsesHelp = "Responses by status class. code=\"error\" counts requests that failed without a response.";
+		responses[0] = registry.counter(RESPONSES, responsesHelp, "client", client, "code", "error");
+		for(int statusClass = 1; statusClass < responses.length; statusClass++) {
+			responses[statusClass] = registry.counter(RESPONSES, responsesHelp, "client", client, "code", statusClass + "xx");
+		}
+	}
+
+	/**
+	 * @param method HTTP method
+	 * @param statusCode Response status, or 0 if there was no response
+	 * @param nanos Duration measured with System.nanoTime
+	 */
+	void record(String method, int statusCode, long nanos) {
+		("POST".equals(method) ? postDuration : getDuration).recordNanos(nanos);
+		int statusClass = statusCode / 100;
+		responses[statusClass > 0 && statusClass < responses.length ? statusClass : 0].increment();
+	}
+}
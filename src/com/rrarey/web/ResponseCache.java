@@ -0,0 +1,176 @@
+package com.rrarey.web;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Cache of parsed JSON responses for RESTRequest, keyed by URL.
+ *
+ * Only methods given a TTL with setTTL are cached. A TTL can be set for an exact method, or for an endpoint (the method
+ * up to its first '&') to cover every request to it whatever its other parameters. Entries are still kept per URL.
+ * Within its TTL an entry is returned without a request. After that
+ * it is revalidated with If-None-Match/If-Modified-Since when the server sent an ETag or Last-Modified, and a 304
+ * returns the cached JSONObject without parsing anything. Entries are evicted least recently used first once their
+ * estimated size passes the byte budget.
+ *
+ * Cached JSONObjects are shared between callers, so they must not be modified.
+ */
+public class ResponseCache {
+	// Rough per-entry overhead on top of the body, for the size estimate
+	static final int ENTRY_OVERHEAD_BYTES = 256;
+
+	/**
+	 * A cached response
+	 */
+	static final class Entry {
+		final JSONObject json;
+		final String
+			etag,
+			lastModified
+		;
+		final long sizeBytes;
+		volatile long expiresMillis;
+
+		Entry(JSONObject json, String etag, String lastModified, long sizeBytes, long expiresMillis) {
+			this.json = json;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.sizeBytes = sizeBytes;
+			this.expiresMillis = expiresMillis;
+		}
+
+		boolean canRevalidate() {
+			return etag != null || lastModified != null;
+		}
+	}
+
+	private final long maxBytes;
+	private final Map<String, Long> ttls = new HashMap<String, Long>();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long sizeBytes = 0;
+
+	// Stats
+	private long
+		hits = 0,
+		notModified = 0,
+		misses = 0,
+		evictions = 0
+	;
+
+	/**
+	 * @param maxBytes Byte budget for cached responses, estimated from their body length
+	 */
+	public ResponseCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Cache responses for a method
+	 * @param method REST method, exactly as passed to RESTRequest.requestJSON, or its endpoint: the method up to its
+	 * first '&'
+	 * @param ttlMillis How long a response is used without asking the server. 0 always revalidates.
+	 * @return this ResponseCache
+	 */
+	public synchronized ResponseCache setTTL(String method, long ttlMillis) {
+		ttls.put(method, Math.max(0, ttlMillis));
+		return this;
+	}
+
+	/**
+	 * @param method REST method
+	 * @return TTL for the method in milliseconds, or -1 if it isn't cached
+	 */
+	synchronized long getTTL(String method) {
+		Long ttl = ttls.get(method);
+		if (ttl == null) {
+			int parameters = method.indexOf('&');
+			if (parameters >= 0) {
+				ttl = ttls.get(method.substring(0, parameters));
+			}
+		}
+		return ttl != null ? ttl : -1;
+	}
+
+	/**
+	 * @param url Request URL
+	 * @return Cached entry, or null
+	 */
+	synchronized Entry get(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * Cache a response if it can be reused: it has a TTL, or the server sent validators
+	 * @param url Request URL
+	 * @param json Parsed response
+	 * @param response Raw response
+	 * @param ttlMillis TTL for the method
+	 */
+	synchronized void put(String url, JSONObject json, WebRequest.Response response, long ttlMillis) {
+		if (json == null || response.body == null || (ttlMillis <= 0 && response.etag == null && response.lastModified == null)) {
+			return;
+		}
+
+		long size = ENTRY_OVERHEAD_BYTES + 2L * (url.length() + response.body.length());
+		if (size > maxBytes) {
+			return;
+		}
+
+		Entry previous = entries.put(url, new Entry(json, response.etag, response.lastModified, size, System.currentTimeMillis() + ttlMillis));
+		if (previous != null) {
+			sizeBytes -= previous.sizeBytes;
+		}
+		sizeBytes += size;
+
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (sizeBytes > maxBytes && eldest.hasNext()) {
+			sizeBytes -= eldest.next().getValue().sizeBytes;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	synchronized void recordHit() {
+		hits++;
+	}
+
+	synchronized void recordNotModified() {
+		notModified++;
+	}
+
+	synchronized void recordMiss() {
+		misses++;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getNotModified() {
+		return notModified;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return Estimated size of the cached responses in bytes
+	 */
+	public synchronized long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public synchronized String toString() {
+		return entries.size() + " cached response(s), " + sizeBytes + "/" + maxBytes + " bytes, " +
+			hits + " hit(s), " + notModified + " not modified, " + misses + " miss(es), " + evictions + " eviction(s)";
+	}
+}
@@ -2,19 +2,20 @@ package com.rrarey.web;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
-import java.net.CookieHandler;
-import java.net.CookieManager;
-import java.net.CookiePolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-import javax.servlet.http.Cookie;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
@@ -23,105 +24,134 @@ import com.rrarey.utils.ExceptionUtils;
 
 public class WebRequest {
 
-	protected ArrayList<Cookie> cookies = new ArrayList<Cookie>();
-	protected String bearer;
+	protected volatile String bearer;
+	protected final HttpConnectionPool pool;
+	protected volatile RequestMetrics metrics = null;
 	
 	private static final Logger logger = LogManager.getLogger(WebRequest.class);		
 
+	/**
+	 * Status, body and validators of a response
+	 */
+	static final class Response {
+		final int statusCode;
+		final String
+			body,
+			etag,
+			lastModified
+		;
+
+		Response(int statusCode, String body, String etag, String lastModified) {
+			this.statusCode = statusCode;
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		boolean isNotModified() {
+			return statusCode == 304;
+		}
+	}
+
 	public WebRequest() {
-		CookieHandler.setDefault(new CookieManager(null, CookiePolicy.ACCEPT_ALL));
+		this(HttpConnectionPool.getDefault());
 	}
 
 	/**
-	 * Set the cookies to be used for requests
-	 * @param cookies list of Cookies
+	 * Create a WebRequest that sends its requests through a specific connection pool
+	 * @param pool HttpConnectionPool to use
 	 */
-	public void setCookies(ArrayList<Cookie> cookies) {
-		this.cookies = cookies;
+	public WebRequest(HttpConnectionPool pool) {
+		this.pool = pool;
 	}
 
 	/**
-	 * Set the bearer token to be used for requests
+	 * Set the bearer token to be used for requests. Takes effect for requests that start after this call, including
+	 * requests on other threads.
 	 * @param b Bearer token string
 	 */
 	public void setBearer(String b) {
 		this.bearer = b;
 	}
 	
+	/**
+	 * Record the latency and status of every request made with this object
+	 * @param metrics Metrics for the client these requests belong to, or null to stop recording
+	 */
+	public void setMetrics(RequestMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Perform a GET request on a provided URL
 	 * @param getURL URL to request
 	 * @return String of content retrieved from the URL
 	 */
 	public String get(String getURL) throws Exception {
-        URL url;
-
-        StringWriter returnData = new StringWriter();
-        
-        HttpURLConnection conn = null;
-        InputStreamReader ir = null;
-        
         logger.debug("GET request to: {}", getURL);
 
-        try {
-            url = new URL(getURL);
-            conn = (HttpURLConnection)url.openConnection();
-            conn.setReadTimeout(30000);
-        	conn.setConnectTimeout(15000);
-        	conn.setRequestProperty("Accept", "application/json, text/plain, */*");
-        	conn.setRequestProperty("Content-Type", "application/json");        	
-        	conn.setRequestProperty("User-Agent", "");        	
-        	conn.setRequestProperty("x-tesla-user-agent", "");
-        	conn.setRequestProperty("X-Requested-With", "com.teslamotors.tesla");
-        	if (bearer != null) {
-        		conn.setRequestProperty("Authorization", "Bearer " + bearer);
-        	}
-
-        	try {
-        		conn.connect();
-        	} catch (Exception ex) { 
-        		//logger.error("Could not connect to {} for GET request: {}",  getURL,  ExceptionUtils.getExceptionString(ex));
-        	}
-
-        	try {
-        		ir = new InputStreamReader(conn.getInputStream(), "UTF-8");
-        	} catch (Exception e2) {
-        		throw e2;
-        	}
-            
-            if (ir != null) {
-	            char[] buffer = new char[1024 * 4];
-	            int len = 0;
-	            while ((len = ir.read(buffer)) != -1) {
-	            	returnData.write(buffer, 0, len);
-	            }
-            }
-            
-            processHeaderCookies(conn);
-
-        } catch (Exception e) {
-        	throw e;
-        } finally {
-        	if (ir != null) {
-        		try {
-        			ir.close();
-        		} catch (IOException e) { }
-        	}
-        	if (conn != null) {
-        		conn.disconnect();
-        	}
-        }
+        HttpGet request = new HttpGet(getURL);
+        setRequestHeaders(request);
 
-        returnData.flush();
-        String returnText = returnData.toString();
-        
-        try {
-        	returnData.close();
-        } catch (IOException e) { }
-        
-        return returnText;
+        return execute(request, getURL);
 	}
 	
+	/**
+	 * Perform a GET request that the server can answer with 304 Not Modified
+	 * @param getURL URL to request
+	 * @param etag ETag of the cached response, or null
+	 * @param lastModified Last-Modified of the cached response, or null
+	 * @return Response, with a null body on a 304
+	 * @throws HttpStatusException When the server responds with an error status
+	 * @throws IOException When the request fails
+	 */
+	Response getConditional(String getURL, String etag, String lastModified) throws IOException {
+        logger.debug("Conditional GET request to: {}", getURL);
+
+        HttpGet request = new HttpGet(getURL);
+        setRequestHeaders(request);
+        if (etag != null) {
+        	request.setHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+        	request.setHeader("If-Modified-Since", lastModified);
+        }
+
+        return executeForResponse(request, getURL);
+	}
+
+	/**
+	 * Perform a GET request and read only the declared fields of the JSON response, straight from the connection
+	 * @param getURL URL to request
+	 * @param extractor Fields to read
+	 * @param values Holder for the fields. Cleared first, and left empty when the response has no body.
+	 * @throws HttpStatusException When the server responds with an error status
+	 * @throws org.json.JSONException When the response isn't valid JSON
+	 * @throws IOException When the request fails
+	 */
+	public void getFields(String getURL, JSONFieldExtractor extractor, JSONFieldValues values) throws IOException {
+        logger.debug("GET request to: {}", getURL);
+
+        HttpGet request = new HttpGet(getURL);
+        setRequestHeaders(request);
+
+		values.clear();
+		long start = System.nanoTime();
+		int statusCode = 0;
+		try (CloseableHttpResponse response = pool.getClient().execute(request)) {
+			statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = checkStatus(response, getURL);
+			if (entity != null) {
+				// Closing the reader reads any remainder, so the connection can be reused.
+				try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+					extractor.extract(reader, values);
+				}
+			}
+		} finally {
+			recordMetrics(request, statusCode, start);
+		}
+	}
+
 	/**
 	 * Convenience method to return JSONObject from GET request.
 	 * @see get
@@ -157,111 +187,214 @@ public class WebRequest {
 	 * @throws Exception When things go wrong
 	 */	
 	public String post(String postURL, String body) throws Exception {
-        URL url;
-
-        StringWriter returnData = new StringWriter();
-        
-        HttpURLConnection conn = null;
-        InputStreamReader ir = null;
-        
         logger.debug("POST request to: {}", postURL);
         if (body != null) {
         	logger.debug("POST body: {}", body);
         }
-        
+
+        HttpPost request = new HttpPost(postURL);
+        setRequestHeaders(request);
+		if (body != null && body.length() > 0) {
+			request.setEntity(new StringEntity(body, StandardCharsets.UTF_8));
+		}
+
         try {
-            url = new URL(postURL);
-            conn = (HttpURLConnection)url.openConnection();
-            conn.setReadTimeout(30000);
-        	conn.setConnectTimeout(15000);
-        	conn.setRequestMethod("POST");
-        	HttpURLConnection.setFollowRedirects(false);
-        	conn.setRequestProperty("Accept", "application/json, text/plain, */*");
-        	conn.setRequestProperty("Content-Type", "application/json");
-        	if (body != null && body.length() > 0) {
-        		conn.setRequestProperty("Content-Length", String.valueOf(body.length()));
-        	}
-        	conn.setRequestProperty("User-Agent", "");        	
-        	conn.setRequestProperty("x-tesla-user-agent", "");
-        	conn.setRequestProperty("X-Requested-With", "com.teslamotors.tesla");        	
-        	conn.setDoOutput(true);
-
-        	if (bearer != null) {
-        		conn.setRequestProperty("Authorization", "Bearer " + bearer);
-        	}        	
-
-        	try {
-        		conn.connect();
-        	} catch (Exception ex) { 
-        		//logger.error("Could not connect to {} for POST request: {}", postURL, ExceptionUtils.getExceptionString(ex));
-        	}
-            
-    		if (body != null && body.length() > 0) {
-    			OutputStreamWriter out = null;
-	    		try {
-	    			out = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");			
-    				out.write(body);
-    				out.flush();
-	    		} catch (IOException e1) {
-	    			logger.error("Exception while POSTing body to {}: {}", postURL, ExceptionUtils.getExceptionString(e1));
-	    			throw e1;
-	    		} finally {
-	    			if (out != null) {
-	    				out.close();
-	    			}
-	    		}
-    		}
-
-    		try {
-            	ir = new InputStreamReader(conn.getInputStream(), "UTF-8");
-            } catch (IOException e2) { 
-            	throw e2;
-            }
-            
-            if (ir != null) {
-	            char[] buffer = new char[1024 * 4];
-	            int len = 0;
-	            while ((len = ir.read(buffer)) != -1) {
-	            	returnData.write(buffer, 0, len);
-	            }
-            }
-            
-            processHeaderCookies(conn);        
-
-        } catch (Exception e) {
+        	return execute(request, postURL);
+        } catch (HttpStatusException e) {
+        	// Callers decide what an error status means, so it isn't an error here.
+        	logger.debug("POST to {} returned HTTP {}", postURL, e.getStatusCode());
+        	throw e;
+        } catch (IOException e) {
+        	logger.error("Exception while POSTing to {}: {}", postURL, ExceptionUtils.getExceptionString(e));
         	throw e;
-        } finally {
-        	if (ir != null) {
-        		try {
-        			ir.close();
-        		} catch (IOException e) { }
-        	}
-        	if (conn != null) {
-        		conn.disconnect();
-        	}
         }
+	}
 
-        returnData.flush();
-        String returnText = returnData.toString();
-        
-        try {
-        	returnData.close();
-        } catch (IOException e) { }
-        
-        return returnText;
+	/**
+	 * Perform a GET request on the I/O executor
+	 * @see get
+	 * @param getURL URL to request
+	 * @return Future completed with the content retrieved from the URL
+	 */
+	public CompletableFuture<String> getAsync(final String getURL) {
+		return async(() -> get(getURL));
+	}
+
+	/**
+	 * Perform a GET request on the I/O executor and parse the response as JSON
+	 * @see getJSON
+	 * @param getURL URL to request
+	 * @return Future completed with the JSONObject from the response, or null for a non-JSON response
+	 */
+	public CompletableFuture<JSONObject> getJSONAsync(final String getURL) {
+		return async(() -> getJSON(getURL));
+	}
+
+	/**
+	 * Perform a POST without a body on the I/O executor
+	 * @see post(String)
+	 * @param postURL URL for POST
+	 * @return Future completed with the result of the POST
+	 */
+	public CompletableFuture<String> postAsync(final String postURL) {
+		return postAsync(postURL, null);
+	}
+
+	/**
+	 * Perform a POST with a body on the I/O executor
+	 * @see post(String, String)
+	 * @param postURL URL for POST
+	 * @param body String for POST body
+	 * @return Future completed with the result of the POST
+	 */
+	public CompletableFuture<String> postAsync(final String postURL, final String body) {
+		return async(() -> post(postURL, body));
+	}
+
+	/**
+	 * Perform a POST with a body on the I/O executor and parse the response as JSON
+	 * @param postURL URL for POST
+	 * @param body String for POST body, or null
+	 * @return Future completed with the JSONObject from the response, or null for a non-JSON response
+	 */
+	public CompletableFuture<JSONObject> postJSONAsync(final String postURL, final String body) {
+		return postAsync(postURL, body).thenApply(responseText -> {
+			try {
+				return new JSONObject(responseText);
+			} catch (Exception ex) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Run a task on the I/O executor, retrying when it throws or returns null. The delay between attempts is
+	 * scheduled on the executor, so no thread sleeps while waiting.
+	 * @param task Task to run
+	 * @param maxAttempts Maximum number of attempts
+	 * @param retryDelaySeconds Seconds to wait between attempts
+	 * @return Future completed with the first non-null result, or null when every attempt failed
+	 */
+	public <T> CompletableFuture<T> retryAsync(Callable<T> task, int maxAttempts, int retryDelaySeconds) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		attempt(task, future, 1, maxAttempts, retryDelaySeconds);
+		return future;
+	}
+
+	private <T> void attempt(final Callable<T> task, final CompletableFuture<T> future, final int attempt, final int maxAttempts, final int retryDelaySeconds) {
+		async(task).whenComplete((result, ex) -> {
+			if (result != null) {
+				future.complete(result);
+			} else if (attempt >= maxAttempts) {
+				future.complete(null);
+			} else {
+				pool.getExecutor().schedule(() -> attempt(task, future, attempt + 1, maxAttempts, retryDelaySeconds), retryDelaySeconds, TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	/**
+	 * Run a task on the I/O executor
+	 * @param task Task to run
+	 * @return Future completed with the task's result, or exceptionally with whatever it threw
+	 */
+	protected <T> CompletableFuture<T> async(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		pool.getExecutor().execute(() -> {
+			try {
+				future.complete(task.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Send a request through the connection pool and read the full response, so the connection can be reused.
+	 * @param request Request to send
+	 * @param requestURL URL of the request, for error messages
+	 * @return String of content retrieved from the URL
+	 * @throws HttpStatusException When the server responds with an error status
+	 * @throws IOException When the request fails
+	 */
+	private String execute(HttpRequestBase request, String requestURL) throws IOException {
+		return executeForResponse(request, requestURL).body;
+	}
+
+	/**
+	 * Send a request through the connection pool and read the full response, keeping its status and validators
+	 * @param request Request to send
+	 * @param requestURL URL of the request, for error messages
+	 * @return Response. The body is null on a 304, and empty when there is no entity.
+	 * @throws HttpStatusException When the server responds with an error status
+	 * @throws IOException When the request fails
+	 */
+	private Response executeForResponse(HttpRequestBase request, String requestURL) throws IOException {
+		long start = System.nanoTime();
+		int statusCode = 0;
+		try (CloseableHttpResponse response = pool.getClient().execute(request)) {
+			statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = checkStatus(response, requestURL);
+
+			String returnText;
+			if (statusCode == 304) {
+				EntityUtils.consumeQuietly(entity);
+				returnText = null;
+			} else {
+				returnText = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+			}
+			Header etag = response.getFirstHeader("ETag");
+			Header lastModified = response.getFirstHeader("Last-Modified");
+			return new Response(statusCode, returnText, etag != null ? etag.getValue() : null, lastModified != null ? lastModified.getValue() : null);
+		} finally {
+			recordMetrics(request, statusCode, start);
+		}
+	}
+
+	/**
+	 * @param request Request that finished
+	 * @param statusCode Response status, or 0 if the request failed without one
+	 * @param start System.nanoTime when the request was sent
+	 */
+	private void recordMetrics(HttpRequestBase request, int statusCode, long start) {
+		RequestMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.record(request.getMethod(), statusCode, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Throw for an error status, reading the error body first
+	 * @param response Response to check
+	 * @param requestURL URL of the request, for error messages
+	 * @return The response entity, which may be null
+	 * @throws HttpStatusException When the server responded with an error status
+	 */
+	private HttpEntity checkStatus(CloseableHttpResponse response, String requestURL) throws HttpStatusException {
+		int statusCode = response.getStatusLine().getStatusCode();
+		HttpEntity entity = response.getEntity();
+		if (statusCode >= 400) {
+			String errorBody = null;
+			try {
+				errorBody = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : null;
+			} catch (IOException ex) {
+				EntityUtils.consumeQuietly(entity);
+			}
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			throw new HttpStatusException(statusCode, requestURL, retryAfter != null ? retryAfter.getValue() : null, errorBody);
+		}
+		return entity;
+	}
+
+	private void setRequestHeaders(HttpRequestBase request) {
+    	request.setHeader("Accept", "application/json, text/plain, */*");
+    	request.setHeader("Content-Type", "application/json");
+    	request.setHeader("User-Agent", "");
+    	request.setHeader("x-tesla-user-agent", "");
+    	request.setHeader("X-Requested-With", "com.teslamotors.tesla");
+    	if (bearer != null) {
+    		request.setHeader("Authorization", "Bearer " + bearer);
+    	}
 	}
-	
-    private void processHeaderCookies(HttpURLConnection conn) {
-        Map<String, List<String>> headerFields = conn.getHeaderFields();
-        List<String> headerCookies = headerFields.get("Set-Cookie");
-        if (headerCookies != null) {
-        	for(int i = 0; i < headerCookies.size(); i++) {
-        		String cookie = headerCookies.get(i);
-        		String[] parts = cookie.split("=", 2);
-        		if (parts.length > 1) {
-        			cookies.add(new Cookie(parts[0], parts[1]));
-        		}
-        	}
-        }
-    }	
 }